@@ -0,0 +1,47 @@
+package com.dataart.vkharitonov.practicechat.bench;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Options of a driver given as {@code name=value}. Every option has a default, so the drivers run without any
+ */
+final class Args {
+
+    private final Map<String, String> values = new HashMap<>();
+    private final Set<String> used = new HashSet<>();
+
+    Args(String[] args) {
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Expected name=value: " + arg);
+            }
+
+            values.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+    }
+
+    String getString(String name, String defaultValue) {
+        used.add(name);
+        return values.getOrDefault(name, defaultValue);
+    }
+
+    int getInt(String name, int defaultValue) {
+        String value = getString(name, null);
+        return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+
+    /**
+     * Fails on options the driver hasn't read, which are most likely misspelled
+     */
+    void checkUnused() {
+        Set<String> unused = new HashSet<>(values.keySet());
+        unused.removeAll(used);
+        if (!unused.isEmpty()) {
+            throw new IllegalArgumentException("Unknown options: " + unused);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.dataart.vkharitonov.practicechat.bench;
+
+import com.dataart.vkharitonov.practicechat.client.ChatConnection;
+import com.dataart.vkharitonov.practicechat.client.ServerMessageListener;
+import com.dataart.vkharitonov.practicechat.common.json.ChatMsg;
+import com.dataart.vkharitonov.practicechat.common.json.out.UserListOutMessage;
+import com.dataart.vkharitonov.practicechat.server.db.MemoryStorage;
+import com.dataart.vkharitonov.practicechat.server.db.Storage;
+import com.dataart.vkharitonov.practicechat.server.journal.DirectMessageJournal;
+import com.dataart.vkharitonov.practicechat.server.net.BlockingConnectionManager;
+import com.dataart.vkharitonov.practicechat.server.net.ConnectionManager;
+import com.dataart.vkharitonov.practicechat.server.net.FlushPolicy;
+import com.dataart.vkharitonov.practicechat.server.net.InteractorManager;
+import com.dataart.vkharitonov.practicechat.server.net.OverflowPolicy;
+import com.dataart.vkharitonov.practicechat.server.utils.ThreadModel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Room messages to a big room of which only a few members are online, against a room of the online members alone.
+ * The offline members are added to the {@link MemoryStorage} of a server assembled in this JVM, the online ones
+ * connect over TCP and join the room. Since a message is fanned out to the online members only, both rooms must
+ * deliver at the same rate. Every online member must receive every message.
+ */
+final class BigRoomBench {
+
+    private static final String PASSWORD = "bench";
+
+    private final int port;
+    private final long timeoutMillis;
+    private final String prefix = "r" + Long.toString(System.currentTimeMillis(), 36);
+    private final Latencies latencies = new Latencies();
+    private final AtomicLong received = new AtomicLong();
+
+    private BigRoomBench(int port, long timeoutMillis) {
+        this.port = port;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    static boolean run(Args args) throws IOException, InterruptedException {
+        int port = args.getInt("port", 17777);
+        int members = args.getInt("members", 50000);
+        int online = args.getInt("online", 500);
+        int messages = args.getInt("messages", 200);
+        int timeoutSeconds = args.getInt("timeout", 30);
+        args.checkUnused();
+
+        System.out.format("bigRoom: members=%d online=%d messages=%d%n", members, online, messages);
+        if (online < 2 || online > members) {
+            throw new IllegalArgumentException("Expected 2 <= online <= members");
+        }
+
+        long timeoutMillis = TimeUnit.SECONDS.toMillis(timeoutSeconds);
+        boolean isCorrect = new BigRoomBench(port, timeoutMillis).run(online, online, messages);
+        isCorrect &= new BigRoomBench(port, timeoutMillis).run(members, online, messages);
+
+        return isCorrect;
+    }
+
+    private boolean run(int members, int online, int messages) throws IOException, InterruptedException {
+        String room = "#" + prefix;
+        Storage storage = new MemoryStorage();
+        long start = System.nanoTime();
+        storage.getUserDao().createUser(prefix + "_admin", "hash", "salt").join();
+        storage.getRoomDao().createRoom(room, prefix + "_admin").join();
+        for (int i = 0; i < members - online - 1; i++) {
+            String username = prefix + "_offline" + i;
+            storage.getUserDao().createUser(username, "hash", "salt").join();
+            storage.getRoomDao().addUserToRoom(room, username).join();
+        }
+        System.out.format("%d offline members added in %s%n", members - online,
+                          Latencies.format(System.nanoTime() - start));
+
+        int cpus = Runtime.getRuntime().availableProcessors();
+        InteractorManager interactorManager =
+                new InteractorManager(ThreadModel.PLATFORM, cpus, new FlushPolicy(8192, 0),
+                                      new OverflowPolicy(64L * 1024 * 1024, OverflowPolicy.Action.DISCONNECT),
+                                      storage, new DirectMessageJournal(storage));
+        ConnectionManager connectionManager = new BlockingConnectionManager(ThreadModel.PLATFORM);
+        connectionManager.start(port, interactorManager);
+
+        List<ChatConnection> connections = new ArrayList<>();
+        try {
+            for (int i = 0; i < online; i++) {
+                connections.add(connect(prefix + "_online" + i));
+            }
+            for (ChatConnection connection : connections) {
+                connection.joinRoomAsync(room).get(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+
+            long expected = (long) (online - 1) * messages;
+            start = System.nanoTime();
+            ChatConnection sender = connections.get(0);
+            for (int i = 0; i < messages; i++) {
+                sender.sendMessage(room, Long.toString(System.nanoTime()));
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (received.get() < expected && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            System.out.format("%d members, %d online: %d of %d room messages received in %s, %.0f messages/s: %s%n",
+                              members, online, received.get(), expected, Latencies.format(elapsed),
+                              received.get() * 1e9 / elapsed, latencies.summary());
+            if (received.get() != expected) {
+                System.out.println("  FAILED: " + (expected - received.get()) + " room messages weren't received");
+                return false;
+            }
+
+            return true;
+        } catch (ExecutionException | TimeoutException e) {
+            System.out.println("  FAILED: " + e);
+            return false;
+        } finally {
+            connections.forEach(ChatConnection::disconnect);
+            connectionManager.stop();
+            interactorManager.shutdown();
+            storage.close();
+        }
+    }
+
+    private ChatConnection connect(String username) throws IOException, InterruptedException {
+        Listener listener = new Listener();
+        ChatConnection connection = new ChatConnection(username, PASSWORD, "localhost", port, listener);
+        if (!listener.connected.await(timeoutMillis, TimeUnit.MILLISECONDS) || !listener.isConnected) {
+            connection.disconnect();
+            throw new IOException(username + " couldn't connect");
+        }
+
+        return connection;
+    }
+
+    private class Listener implements ServerMessageListener {
+
+        private final CountDownLatch connected = new CountDownLatch(1);
+        private volatile boolean isConnected;
+
+        @Override
+        public void onConnectionResult(boolean success, boolean userExists) {
+            isConnected = success;
+            connected.countDown();
+        }
+
+        @Override
+        public void onNewMessage(String sender, Optional<String> room, String message, boolean userOnline,
+                                 long timestamp) {
+            if (room.isPresent()) {
+                latencies.recordSince(Long.parseLong(message));
+                received.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onMessageSent(String user) {
+        }
+
+        @Override
+        public void onUserList(Optional<String> roomName, List<UserListOutMessage.User> users) {
+        }
+
+        @Override
+        public void onRoomList(List<String> rooms) {
+        }
+
+        @Override
+        public void onMessageHistory(List<ChatMsg> messages) {
+        }
+
+        @Override
+        public void onRoomJoined(String roomName, boolean roomExists) {
+        }
+
+        @Override
+        public void onRoomLeft(String roomName, boolean success) {
+        }
+
+        @Override
+        public void onRoomDropped(String roomName, boolean success) {
+        }
+
+        @Override
+        public void onDisconnect() {
+        }
+    }
+}
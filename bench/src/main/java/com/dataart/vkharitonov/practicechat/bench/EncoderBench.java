@@ -0,0 +1,81 @@
+package com.dataart.vkharitonov.practicechat.bench;
+
+import com.dataart.vkharitonov.practicechat.common.json.ChatMsg;
+import com.dataart.vkharitonov.practicechat.common.json.Message;
+import com.dataart.vkharitonov.practicechat.common.json.out.MsgHistoryOutMessage;
+import com.dataart.vkharitonov.practicechat.common.json.out.NewMsgOutMessage;
+import com.dataart.vkharitonov.practicechat.common.util.JsonUtils;
+import com.dataart.vkharitonov.practicechat.common.util.MessageEncoder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * {@link MessageEncoder} against serializing a {@link Message} with Gson, on a single thread. Checks that both produce
+ * the same bytes.
+ */
+final class EncoderBench {
+
+    static boolean run(Args args) {
+        int iterations = args.getInt("iterations", 200000);
+        int historySize = args.getInt("history", 50);
+        args.checkUnused();
+
+        System.out.format("encode: iterations=%d history=%d%n", iterations, historySize);
+
+        NewMsgOutMessage newMsg = new NewMsgOutMessage("john_doe1952", "sup m8 <3 \u043f\u0440\u0438\u0432\u0435\u0442",
+                                                       true, 1438182184000L);
+        List<ChatMsg> history = new ArrayList<>();
+        for (int i = 0; i < historySize; i++) {
+            history.add(new ChatMsg("NAGibaTOR_40k", "john_doe1952", "message number " + i, 1438182184000L + i));
+        }
+        MsgHistoryOutMessage historyMsg = new MsgHistoryOutMessage(history, "AAABTtnh0UAAAAAAAAAAKg");
+
+        boolean isCorrect = compare("new_message", Message.MessageType.NEW_MESSAGE, newMsg, null, iterations);
+        isCorrect &= compare("message_history", Message.MessageType.MESSAGE_HISTORY, historyMsg, 42L,
+                             Math.max(iterations / historySize, 1));
+        return isCorrect;
+    }
+
+    private static boolean compare(String name, Message.MessageType type, Object payload, Long requestId,
+                                   int iterations) {
+        Supplier<byte[]> gson = () -> JsonUtils.GSON.toJson(new Message(type, payload, requestId))
+                                                    .getBytes(StandardCharsets.UTF_8);
+        Supplier<byte[]> encoder = () -> MessageEncoder.encode(type, payload, requestId);
+
+        boolean isSame = Arrays.equals(gson.get(), encoder.get());
+
+        // The first pass warms up both
+        time(gson, iterations);
+        time(encoder, iterations);
+        long gsonNanos = time(gson, iterations);
+        long encoderNanos = time(encoder, iterations);
+
+        System.out.format("%s: gson %s/op, encoder %s/op%n", name, Latencies.format(gsonNanos / iterations),
+                          Latencies.format(encoderNanos / iterations));
+        if (!isSame) {
+            System.out.println("  FAILED: encoder output differs from gson");
+        }
+
+        return isSame;
+    }
+
+    private static long time(Supplier<byte[]> encode, int iterations) {
+        long start = System.nanoTime();
+        int length = 0;
+        for (int i = 0; i < iterations; i++) {
+            length += encode.get().length;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        // Keeps the results alive
+        if (length == 42) {
+            System.out.println();
+        }
+
+        return elapsed;
+    }
+}
@@ -0,0 +1,55 @@
+package com.dataart.vkharitonov.practicechat.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recorded latencies of a single run. Recording is synchronized, the drivers record far less often than they work
+ */
+final class Latencies {
+
+    private long[] nanos = new long[1024];
+    private int size;
+
+    synchronized void record(long latencyNanos) {
+        if (size == nanos.length) {
+            nanos = Arrays.copyOf(nanos, size * 2);
+        }
+        nanos[size++] = latencyNanos;
+    }
+
+    void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return e.g. {@code n=100 p50=0.25ms p99=1.20ms max=3.00ms}
+     */
+    synchronized String summary() {
+        if (size == 0) {
+            return "n=0";
+        }
+
+        long[] sorted = Arrays.copyOf(nanos, size);
+        Arrays.sort(sorted);
+        return String.format("n=%d p50=%s p99=%s max=%s", size, format(percentile(sorted, 50)),
+                             format(percentile(sorted, 99)), format(sorted[size - 1]));
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        int index = (int) Math.ceil(sorted.length * percent / 100.0) - 1;
+        return sorted[Math.max(index, 0)];
+    }
+
+    static String format(long nanos) {
+        if (nanos < TimeUnit.MICROSECONDS.toNanos(100)) {
+            return String.format("%.2fus", nanos / 1e3);
+        }
+
+        return String.format("%.2fms", nanos / 1e6);
+    }
+}
@@ -0,0 +1,304 @@
+package com.dataart.vkharitonov.practicechat.bench;
+
+import com.dataart.vkharitonov.practicechat.client.ChatConnection;
+import com.dataart.vkharitonov.practicechat.client.ServerMessageListener;
+import com.dataart.vkharitonov.practicechat.common.json.ChatMsg;
+import com.dataart.vkharitonov.practicechat.common.json.out.RoomJoinedOutMessage;
+import com.dataart.vkharitonov.practicechat.common.json.out.UserListOutMessage;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load on a running server over TCP, e.g. to compare the transports and the thread models of the server. The users
+ * and the room get new names on every run, so the driver works with both storage engines.
+ * <ol>
+ * <li>Opens idle sockets which never send `connect` and keeps them open during the run</li>
+ * <li>Connects the users concurrently and measures the time to `connection_result`</li>
+ * <li>Every user joins the room twice at once. Exactly one join must create the room, and none may fail</li>
+ * <li>Offline members join the room and disconnect, so the fan-out has to skip them</li>
+ * <li>The senders send room messages, and every other user must receive all of them. Measures the time from sending
+ * a message to receiving it</li>
+ * </ol>
+ */
+final class LoadDriver {
+
+    private static final String PASSWORD = "bench";
+
+    private final String host;
+    private final int port;
+    private final long timeoutMillis;
+    private final String prefix = "b" + Long.toString(System.currentTimeMillis(), 36);
+    private final List<String> errors = new ArrayList<>();
+
+    private final Latencies connectLatencies = new Latencies();
+    private final Latencies deliveryLatencies = new Latencies();
+    private final AtomicLong received = new AtomicLong();
+
+    private LoadDriver(String host, int port, long timeoutMillis) {
+        this.host = host;
+        this.port = port;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    static boolean run(Args args) throws InterruptedException {
+        String host = args.getString("host", "localhost");
+        int port = args.getInt("port", 1234);
+        int idle = args.getInt("idle", 0);
+        int users = args.getInt("users", 50);
+        int offline = args.getInt("offline", 0);
+        int senders = args.getInt("senders", 5);
+        int messages = args.getInt("messages", 200);
+        int timeoutSeconds = args.getInt("timeout", 30);
+        args.checkUnused();
+
+        System.out.format("load: %s:%d idle=%d users=%d offline=%d senders=%d messages=%d%n", host, port, idle,
+                          users, offline, senders, messages);
+
+        return run(host, port, idle, users, offline, senders, messages, timeoutSeconds);
+    }
+
+    /**
+     * Runs the load once, e.g. against a server started by another driver
+     *
+     * @return false if any step has failed
+     */
+    static boolean run(String host, int port, int idle, int users, int offline, int senders, int messages,
+                       int timeoutSeconds) throws InterruptedException {
+        if (senders > users) {
+            throw new IllegalArgumentException("More senders than users");
+        }
+
+        LoadDriver driver = new LoadDriver(host, port, TimeUnit.SECONDS.toMillis(timeoutSeconds));
+        driver.run(idle, users, offline, senders, messages);
+        driver.errors.stream().limit(10).forEach(error -> System.out.println("  FAILED: " + error));
+
+        return driver.errors.isEmpty();
+    }
+
+    private void run(int idle, int users, int offline, int senders, int messages) throws InterruptedException {
+        List<Socket> idleSockets = new ArrayList<>();
+        List<ChatConnection> online = new ArrayList<>();
+        try {
+            for (int i = 0; i < idle; i++) {
+                try {
+                    idleSockets.add(new Socket(host, port));
+                } catch (IOException e) {
+                    errors.add("couldn't open idle socket " + i + ": " + e.getMessage());
+                    return;
+                }
+            }
+
+            long start = System.nanoTime();
+            online.addAll(connect("user", users));
+            if (online.size() < users) {
+                return;
+            }
+            System.out.format("connected %d users in %s: %s%n", users, Latencies.format(System.nanoTime() - start),
+                              connectLatencies.summary());
+
+            String room = "#" + prefix;
+            ChatConnection creator = joinTwice(online, room);
+            if (creator == null) {
+                if (errors.isEmpty()) {
+                    errors.add(room + " wasn't created");
+                }
+                return;
+            }
+
+            if (offline > 0) {
+                List<ChatConnection> members = connect("offline", offline);
+                joinTwice(members, room);
+                members.forEach(ChatConnection::disconnect);
+            }
+
+            sendToRoom(online, room, senders, messages);
+
+            try {
+                creator.dropRoomAsync(room).get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                errors.add("couldn't drop " + room + ": " + e);
+            }
+        } finally {
+            online.forEach(ChatConnection::disconnect);
+            for (Socket socket : idleSockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Closed by the server's handshake timeout
+                }
+            }
+        }
+    }
+
+    /**
+     * Connects new users from a pool of threads
+     *
+     * @return connected users, all of them unless an error is recorded
+     */
+    private List<ChatConnection> connect(String kind, int count) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(count, 16));
+        List<Future<ChatConnection>> futures = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String username = prefix + "_" + kind + i;
+            futures.add(executor.submit(() -> {
+                Listener listener = new Listener();
+                long start = System.nanoTime();
+                ChatConnection connection = new ChatConnection(username, PASSWORD, host, port, listener);
+                if (!listener.connected.await(timeoutMillis, TimeUnit.MILLISECONDS) || !listener.isConnected) {
+                    connection.disconnect();
+                    throw new IOException(username + " couldn't connect");
+                }
+                connectLatencies.recordSince(start);
+
+                return connection;
+            }));
+        }
+        executor.shutdown();
+
+        List<ChatConnection> connections = new ArrayList<>();
+        for (Future<ChatConnection> future : futures) {
+            try {
+                connections.add(future.get());
+            } catch (ExecutionException e) {
+                errors.add(e.getCause().getMessage());
+            }
+        }
+
+        return connections;
+    }
+
+    /**
+     * @return user who has created the room, or null if the joins have failed
+     */
+    private ChatConnection joinTwice(List<ChatConnection> connections, String room) throws InterruptedException {
+        long start = System.nanoTime();
+        List<CompletableFuture<RoomJoinedOutMessage>> joins = new ArrayList<>();
+        for (ChatConnection connection : connections) {
+            joins.add(connection.joinRoomAsync(room));
+            joins.add(connection.joinRoomAsync(room));
+        }
+
+        ChatConnection creator = null;
+        int created = 0;
+        for (int i = 0; i < joins.size(); i++) {
+            try {
+                if (!joins.get(i).get(timeoutMillis, TimeUnit.MILLISECONDS).isRoomExists()) {
+                    creator = connections.get(i / 2);
+                    created++;
+                }
+            } catch (ExecutionException | TimeoutException e) {
+                errors.add("join " + i + " of " + room + " failed: " + e);
+                return null;
+            }
+        }
+
+        System.out.format("%d joins of %s in %s%n", joins.size(), room, Latencies.format(System.nanoTime() - start));
+        if (created > 1) {
+            errors.add(room + " created " + created + " times");
+        }
+
+        return creator;
+    }
+
+    private void sendToRoom(List<ChatConnection> online, String room, int senders, int messages)
+            throws InterruptedException {
+        long expected = (long) senders * messages * (online.size() - 1);
+        long start = System.nanoTime();
+        List<Thread> threads = new ArrayList<>();
+        for (ChatConnection sender : online.subList(0, senders)) {
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < messages; i++) {
+                        sender.sendMessage(room, Long.toString(System.nanoTime()));
+                    }
+                } catch (IOException e) {
+                    synchronized (errors) {
+                        errors.add("couldn't send: " + e.getMessage());
+                    }
+                }
+            }, "load-sender"));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (received.get() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.format("%d of %d room messages received in %s, %.0f messages/s: %s%n", received.get(), expected,
+                          Latencies.format(elapsed), received.get() * 1e9 / elapsed, deliveryLatencies.summary());
+        if (received.get() != expected) {
+            errors.add((expected - received.get()) + " room messages weren't received");
+        }
+    }
+
+    private class Listener implements ServerMessageListener {
+
+        private final CountDownLatch connected = new CountDownLatch(1);
+        private volatile boolean isConnected;
+
+        @Override
+        public void onConnectionResult(boolean success, boolean userExists) {
+            isConnected = success;
+            connected.countDown();
+        }
+
+        @Override
+        public void onNewMessage(String sender, Optional<String> room, String message, boolean userOnline,
+                                 long timestamp) {
+            if (room.isPresent()) {
+                deliveryLatencies.recordSince(Long.parseLong(message));
+                received.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onMessageSent(String user) {
+        }
+
+        @Override
+        public void onUserList(Optional<String> roomName, List<UserListOutMessage.User> users) {
+        }
+
+        @Override
+        public void onRoomList(List<String> rooms) {
+        }
+
+        @Override
+        public void onMessageHistory(List<ChatMsg> messages) {
+        }
+
+        @Override
+        public void onRoomJoined(String roomName, boolean roomExists) {
+        }
+
+        @Override
+        public void onRoomLeft(String roomName, boolean success) {
+        }
+
+        @Override
+        public void onRoomDropped(String roomName, boolean success) {
+        }
+
+        @Override
+        public void onDisconnect() {
+        }
+    }
+}
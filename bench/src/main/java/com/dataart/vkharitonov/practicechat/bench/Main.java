@@ -0,0 +1,87 @@
+package com.dataart.vkharitonov.practicechat.bench;
+
+import java.util.Arrays;
+
+/**
+ * Runs one of the benchmark drivers. A driver prints its timings, checks its results and fails the run if they are
+ * wrong, so the drivers double as concurrency tests
+ */
+public class Main {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            showUsageAndExit();
+        }
+
+        Args options = new Args(Arrays.copyOfRange(args, 1, args.length));
+        boolean isCorrect;
+        switch (args[0]) {
+            case "roomJoin":
+                isCorrect = RoomJoinBench.run(options);
+                break;
+            case "undelivered":
+                isCorrect = UndeliveredBench.run(options);
+                break;
+            case "encode":
+                isCorrect = EncoderBench.run(options);
+                break;
+            case "rowMapper":
+                isCorrect = RowMapperBench.run(options);
+                break;
+            case "load":
+                isCorrect = LoadDriver.run(options);
+                break;
+            case "stalledReader":
+                isCorrect = StalledReaderBench.run(options);
+                break;
+            case "threadModel":
+                isCorrect = ThreadModelBench.run(options);
+                break;
+            case "bigRoom":
+                isCorrect = BigRoomBench.run(options);
+                break;
+            case "roomAlloc":
+                isCorrect = RoomAllocationBench.run(options);
+                break;
+            default:
+                showUsageAndExit();
+                return;
+        }
+
+        System.out.println(isCorrect ? "PASSED" : "FAILED");
+        System.exit(isCorrect ? 0 : 1);
+    }
+
+    private static void showUsageAndExit() {
+        System.out.println("usage: bench.jar <driver> [<option>=<value> ...]\n" +
+                                   "\n" +
+                                   "Drivers and their options:\n" +
+                                   "    roomJoin - concurrent joinOrCreateRoom on the memory storage\n" +
+                                   "        threads=8 rooms=100 users=100 rounds=5\n" +
+                                   "    undelivered - chunked undelivered messages on the memory storage while " +
+                                   "they are written\n" +
+                                   "        writers=4 messages=200000 chunk=100 chunksPerSession=50\n" +
+                                   "    encode - MessageEncoder against Gson\n" +
+                                   "        iterations=200000 history=50\n" +
+                                   "    rowMapper - RowMapper against BeanListHandler\n" +
+                                   "        pages=20000 rows=100\n" +
+                                   "    load - logins, room joins and room messages on a running server, next to " +
+                                   "idle sockets\n" +
+                                   "        host=localhost port=1234 idle=0 users=50 offline=0 senders=5 " +
+                                   "messages=200 timeout=30\n" +
+                                   "    stalledReader - room messages next to a client which doesn't read, on " +
+                                   "one writer stripe\n" +
+                                   "        port=17777 readers=10 messages=3000 size=4096 timeout=30\n" +
+                                   "    threadModel - the load on a memory server in this JVM, once per thread " +
+                                   "model\n" +
+                                   "        port=17777 transport=blocking idle=1000 users=200 offline=100 " +
+                                   "senders=10 messages=100 timeout=30\n" +
+                                   "    bigRoom - room messages to a big room with a few members online, against " +
+                                   "a room of those members\n" +
+                                   "        port=17777 members=50000 online=500 messages=200 timeout=30\n" +
+                                   "    roomAlloc - bytes allocated per room message against the number of " +
+                                   "members\n" +
+                                   "        members=2,10,100,1000 messages=2000 size=100 timeout=30");
+        System.exit(1);
+    }
+}
@@ -0,0 +1,198 @@
+package com.dataart.vkharitonov.practicechat.bench;
+
+import com.dataart.vkharitonov.practicechat.common.json.Framing;
+import com.dataart.vkharitonov.practicechat.common.util.MessageProducer;
+import com.dataart.vkharitonov.practicechat.server.db.MemoryStorage;
+import com.dataart.vkharitonov.practicechat.server.db.Storage;
+import com.dataart.vkharitonov.practicechat.server.journal.DirectMessageJournal;
+import com.dataart.vkharitonov.practicechat.server.net.ClientConnection;
+import com.dataart.vkharitonov.practicechat.server.net.FlushPolicy;
+import com.dataart.vkharitonov.practicechat.server.net.InteractorManager;
+import com.dataart.vkharitonov.practicechat.server.net.OverflowPolicy;
+import com.dataart.vkharitonov.practicechat.server.utils.ThreadModel;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory allocated by the server per room message, against the number of online members of the room. The members are
+ * connected to an {@link InteractorManager} through connections which only count the written messages, so the
+ * allocations of the clients and the sockets aren't measured. Allocations are summed over the threads alive at the end
+ * of a run. The fan-out runs on the long-lived user list and writer threads, but with a single CPU the async stages of
+ * each message run on threads of their own, whose allocations are lost, so only the cost per recipient is exact then.
+ * <p>
+ * A room message is encoded once and its bytes are shared by all recipients, so each recipient should add a small
+ * constant which doesn't depend on the size of the message. Checks that every member receives every message.
+ */
+final class RoomAllocationBench {
+
+    private static final String PASSWORD = "bench";
+
+    private final String prefix = "a" + Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicLong written = new AtomicLong();
+    private final long timeoutMillis;
+
+    private RoomAllocationBench(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    static boolean run(Args args) throws InterruptedException {
+        int[] memberCounts = Arrays.stream(args.getString("members", "2,10,100,1000").split(","))
+                                   .mapToInt(members -> Integer.parseInt(members.trim()))
+                                   .toArray();
+        int messages = args.getInt("messages", 2000);
+        int size = args.getInt("size", 100);
+        int timeoutSeconds = args.getInt("timeout", 30);
+        args.checkUnused();
+
+        System.out.format("roomAlloc: members=%s messages=%d size=%d%n", Arrays.toString(memberCounts), messages,
+                          size);
+        long timeoutMillis = TimeUnit.SECONDS.toMillis(timeoutSeconds);
+
+        // Warms up the JIT on the largest room, the results are discarded
+        int maxMembers = Arrays.stream(memberCounts).max().orElse(2);
+        if (new RoomAllocationBench(timeoutMillis).run(maxMembers, messages, size) < 0) {
+            return false;
+        }
+
+        boolean isCorrect = true;
+        for (int members : memberCounts) {
+            long allocated = new RoomAllocationBench(timeoutMillis).run(members, messages, size);
+            if (allocated < 0) {
+                isCorrect = false;
+                continue;
+            }
+
+            double perMessage = (double) allocated / messages;
+            System.out.format("%d members: %.0f bytes per message, %.0f bytes per message and recipient%n", members,
+                              perMessage, perMessage / (members - 1));
+        }
+
+        return isCorrect;
+    }
+
+    /**
+     * @return bytes allocated while the messages were sent and written, or -1 if some weren't written
+     */
+    private long run(int members, int messages, int size) throws InterruptedException {
+        if (members < 2) {
+            throw new IllegalArgumentException("A room needs at least 2 members");
+        }
+
+        String room = "#" + prefix;
+        Storage storage = new MemoryStorage();
+        int cpus = Runtime.getRuntime().availableProcessors();
+        InteractorManager interactorManager =
+                new InteractorManager(ThreadModel.PLATFORM, cpus, new FlushPolicy(8192, 0),
+                                      new OverflowPolicy(64L * 1024 * 1024, OverflowPolicy.Action.DISCONNECT),
+                                      storage, new DirectMessageJournal(storage));
+        try {
+            for (int i = 0; i < members; i++) {
+                interactorManager.connectUser(username(i), PASSWORD, Framing.NEWLINE, new CountingConnection());
+            }
+            // connection_result of every member
+            if (!awaitWritten(members)) {
+                System.out.println("  FAILED: members haven't connected");
+                return -1;
+            }
+
+            for (int i = 0; i < members; i++) {
+                interactorManager.joinRoom(username(i), room).join();
+            }
+
+            char[] text = new char[size];
+            Arrays.fill(text, 'x');
+            String message = new String(text);
+
+            long expected = written.get() + (long) (members - 1) * messages;
+            long start = allocatedBytes();
+            for (int i = 0; i < messages; i++) {
+                interactorManager.sendMessage(username(0), room, message, System.currentTimeMillis(), null).join();
+            }
+            if (!awaitWritten(expected)) {
+                System.out.format("  FAILED: %d of %d room messages written to %d members%n",
+                                  written.get() - expected + (long) (members - 1) * messages,
+                                  (long) (members - 1) * messages, members);
+                return -1;
+            }
+
+            return allocatedBytes() - start;
+        } finally {
+            interactorManager.shutdown().join();
+            storage.close();
+        }
+    }
+
+    private String username(int member) {
+        return prefix + "_" + member;
+    }
+
+    private boolean awaitWritten(long expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (written.get() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+
+        return written.get() >= expected;
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            // -1 for threads which have terminated meanwhile
+            total += Math.max(bytes, 0);
+        }
+
+        return total;
+    }
+
+    /**
+     * Counts the written messages and drops them
+     */
+    private class CountingConnection implements ClientConnection {
+
+        @Override
+        public void start(MessageProducer.Consumer consumer) {
+        }
+
+        @Override
+        public void write(byte[] message) {
+            written.incrementAndGet();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void setInputFraming(Framing framing) {
+        }
+
+        @Override
+        public void setOutputFraming(Framing framing) {
+        }
+
+        @Override
+        public long getWriteSyscalls() {
+            return 0;
+        }
+
+        @Override
+        public long getUnsentBytes() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return "bench";
+        }
+    }
+}
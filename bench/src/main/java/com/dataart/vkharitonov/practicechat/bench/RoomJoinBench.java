@@ -0,0 +1,155 @@
+package com.dataart.vkharitonov.practicechat.bench;
+
+import com.dataart.vkharitonov.practicechat.server.db.MemoryStorage;
+import com.dataart.vkharitonov.practicechat.server.db.RoomDao;
+import com.dataart.vkharitonov.practicechat.server.db.Storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Concurrent {@link RoomDao#joinOrCreateRoom(String, String)} on {@link MemoryStorage}. Every user joins every new
+ * room twice, and the joins are shuffled over the threads, so the rooms are created concurrently and every join races
+ * with its repetition.
+ * <p>
+ * Checks that every room is created once, every user becomes a member of every room once, and no join fails.
+ */
+final class RoomJoinBench {
+
+    private final int threads;
+    private final int rooms;
+    private final int users;
+
+    private RoomJoinBench(int threads, int rooms, int users) {
+        this.threads = threads;
+        this.rooms = rooms;
+        this.users = users;
+    }
+
+    static boolean run(Args args) throws InterruptedException {
+        int threads = args.getInt("threads", 8);
+        int rooms = args.getInt("rooms", 100);
+        int users = args.getInt("users", 100);
+        int rounds = args.getInt("rounds", 5);
+        args.checkUnused();
+
+        System.out.format("roomJoin: threads=%d rooms=%d users=%d rounds=%d%n", threads, rooms, users, rounds);
+        RoomJoinBench bench = new RoomJoinBench(threads, rooms, users);
+        boolean isCorrect = true;
+        for (int round = 1; round <= rounds; round++) {
+            isCorrect &= bench.runRound(round);
+        }
+
+        return isCorrect;
+    }
+
+    private boolean runRound(int round) throws InterruptedException {
+        Storage storage = new MemoryStorage();
+        try {
+            for (int user = 0; user < users; user++) {
+                storage.getUserDao().createUser(username(user), "hash", "salt").join();
+            }
+
+            // Room * users + user of every join, twice
+            List<Integer> joins = new ArrayList<>();
+            for (int join = 0; join < rooms * users; join++) {
+                joins.add(join);
+                joins.add(join);
+            }
+            Collections.shuffle(joins, new Random(round));
+
+            AtomicIntegerArray created = new AtomicIntegerArray(rooms);
+            AtomicIntegerArray added = new AtomicIntegerArray(rooms * users);
+            AtomicInteger alreadyMember = new AtomicInteger();
+            AtomicInteger failed = new AtomicInteger();
+            AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+
+            List<Thread> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                int first = i;
+                Thread worker = new Thread(() -> {
+                    for (int j = first; j < joins.size(); j += threads) {
+                        int join = joins.get(j);
+                        int room = join / users;
+                        int user = join % users;
+                        try {
+                            RoomDao.JoinResult result = storage.getRoomDao()
+                                                               .joinOrCreateRoom(roomName(room), username(user))
+                                                               .join();
+                            switch (result) {
+                                case CREATED:
+                                    created.incrementAndGet(room);
+                                    added.incrementAndGet(join);
+                                    break;
+                                case JOINED:
+                                    added.incrementAndGet(join);
+                                    break;
+                                case ALREADY_MEMBER:
+                                default:
+                                    alreadyMember.incrementAndGet();
+                                    break;
+                            }
+                        } catch (RuntimeException e) {
+                            failed.incrementAndGet();
+                            firstFailure.compareAndSet(null, e);
+                        }
+                    }
+                }, "room-join-" + i);
+                workers.add(worker);
+            }
+
+            long startNanos = System.nanoTime();
+            workers.forEach(Thread::start);
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            long elapsedNanos = System.nanoTime() - startNanos;
+
+            List<String> errors = new ArrayList<>();
+            if (failed.get() > 0) {
+                errors.add(failed.get() + " joins failed, e.g. " + firstFailure.get());
+            }
+            for (int room = 0; room < rooms; room++) {
+                if (created.get(room) != 1) {
+                    errors.add("room " + roomName(room) + " created " + created.get(room) + " times");
+                }
+
+                int members = storage.getRoomDao().getUsersForRoom(roomName(room)).join().size();
+                if (members != users) {
+                    errors.add("room " + roomName(room) + " has " + members + " members");
+                }
+            }
+            for (int join = 0; join < rooms * users; join++) {
+                if (added.get(join) != 1) {
+                    errors.add(username(join % users) + " added to " + roomName(join / users) + " " +
+                                       added.get(join) + " times");
+                }
+            }
+            if (alreadyMember.get() != rooms * users - failed.get()) {
+                errors.add(alreadyMember.get() + " repeated joins instead of " + rooms * users);
+            }
+
+            System.out.format("round %d: %d joins in %s, %.0f joins/s, %d repeated%n", round, joins.size(),
+                              Latencies.format(elapsedNanos), joins.size() * 1e9 / elapsedNanos,
+                              alreadyMember.get());
+            errors.stream().limit(10).forEach(error -> System.out.println("  FAILED: " + error));
+
+            return errors.isEmpty();
+        } finally {
+            storage.close();
+        }
+    }
+
+    private static String username(int user) {
+        return "user" + user;
+    }
+
+    private static String roomName(int room) {
+        return "#room" + room;
+    }
+}
@@ -0,0 +1,135 @@
+package com.dataart.vkharitonov.practicechat.bench;
+
+import com.dataart.vkharitonov.practicechat.server.db.RowMapper;
+import com.dataart.vkharitonov.practicechat.server.db.dto.ChatMsgDto;
+import org.apache.commons.dbutils.BasicRowProcessor;
+import org.apache.commons.dbutils.BeanProcessor;
+import org.apache.commons.dbutils.ResultSetHandler;
+import org.apache.commons.dbutils.handlers.BeanListHandler;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A {@link RowMapper} of undelivered message rows, written like the ones of the DAOs, against the {@link
+ * BeanListHandler} they replaced. The pages are served by an in-memory {@link ResultSet}, so only the mapping is
+ * measured. Checks that both produce the same messages.
+ */
+final class RowMapperBench {
+
+    private static final String[] COLUMNS = {"id", "sender", "destination", "message", "delivered", "sending_time"};
+
+    static boolean run(Args args) throws SQLException {
+        int pages = args.getInt("pages", 20000);
+        int rows = args.getInt("rows", 100);
+        args.checkUnused();
+
+        System.out.format("rowMapper: pages=%d rows=%d%n", pages, rows);
+
+        Object[][] page = new Object[rows][];
+        for (int i = 0; i < rows; i++) {
+            page[i] = new Object[]{(long) i + 1, "NAGibaTOR_40k", "john_doe1952", "message number " + i, false,
+                    1438182184000L + i};
+        }
+
+        ResultSetHandler<List<ChatMsgDto>> mapper = RowMapper.listHandler(RowMapperBench::mapMsg);
+        ResultSetHandler<List<ChatMsgDto>> beans = new BeanListHandler<>(ChatMsgDto.class, new BasicRowProcessor(
+                new BeanProcessor(Collections.singletonMap("sending_time", "sendingTime"))));
+
+        boolean isSame = describe(mapper.handle(resultSet(page))).equals(describe(beans.handle(resultSet(page))));
+
+        // The first pass warms up both
+        time(mapper, page, pages);
+        time(beans, page, pages);
+        long mapperNanos = time(mapper, page, pages);
+        long beanNanos = time(beans, page, pages);
+
+        System.out.format("RowMapper %.2fus/page, BeanListHandler %.2fus/page%n", mapperNanos / 1e3 / pages,
+                          beanNanos / 1e3 / pages);
+        if (!isSame) {
+            System.out.println("  FAILED: the handlers map the rows differently");
+        }
+
+        return isSame;
+    }
+
+    private static ChatMsgDto mapMsg(ResultSet resultSet) throws SQLException {
+        ChatMsgDto msg = new ChatMsgDto(resultSet.getString("sender"), resultSet.getString("destination"),
+                                        resultSet.getString("message"), resultSet.getLong("sending_time"),
+                                        resultSet.getBoolean("delivered"));
+        msg.setId(resultSet.getLong("id"));
+        return msg;
+    }
+
+    private static long time(ResultSetHandler<List<ChatMsgDto>> handler, Object[][] page, int pages)
+            throws SQLException {
+        long start = System.nanoTime();
+        int mapped = 0;
+        for (int i = 0; i < pages; i++) {
+            mapped += handler.handle(resultSet(page)).size();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        if (mapped != pages * page.length) {
+            throw new IllegalStateException("Mapped " + mapped + " rows");
+        }
+
+        return elapsed;
+    }
+
+    private static String describe(List<ChatMsgDto> msgs) {
+        StringBuilder builder = new StringBuilder();
+        for (ChatMsgDto msg : msgs) {
+            builder.append(Arrays.asList(msg.getId(), msg.getSender(), msg.getDestination(), msg.getMessage(),
+                                         msg.isDelivered(), msg.getSendingTime()))
+                   .append('\n');
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * @return forward-only result set over the rows, with the columns of {@link #COLUMNS}
+     */
+    private static ResultSet resultSet(Object[][] rows) {
+        ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(
+                RowMapperBench.class.getClassLoader(), new Class<?>[]{ResultSetMetaData.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getColumnCount":
+                            return COLUMNS.length;
+                        case "getColumnLabel":
+                        case "getColumnName":
+                            return COLUMNS[(Integer) args[0] - 1];
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+
+        int[] row = {-1};
+        return (ResultSet) Proxy.newProxyInstance(
+                RowMapperBench.class.getClassLoader(), new Class<?>[]{ResultSet.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "next":
+                            return ++row[0] < rows.length;
+                        case "getMetaData":
+                            return metaData;
+                        case "wasNull":
+                            return false;
+                        case "getObject":
+                        case "getString":
+                        case "getLong":
+                        case "getBoolean":
+                            int column = args[0] instanceof Integer ? (Integer) args[0] - 1
+                                                                    : Arrays.asList(COLUMNS).indexOf(args[0]);
+                            return rows[row[0]][column];
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
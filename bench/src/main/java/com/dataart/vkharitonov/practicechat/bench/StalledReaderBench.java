@@ -0,0 +1,195 @@
+package com.dataart.vkharitonov.practicechat.bench;
+
+import com.dataart.vkharitonov.practicechat.client.ChatConnection;
+import com.dataart.vkharitonov.practicechat.client.ServerMessageListener;
+import com.dataart.vkharitonov.practicechat.common.json.ChatMsg;
+import com.dataart.vkharitonov.practicechat.common.json.out.UserListOutMessage;
+import com.dataart.vkharitonov.practicechat.server.ChatServer;
+import com.dataart.vkharitonov.practicechat.server.db.Storage;
+import com.dataart.vkharitonov.practicechat.server.net.ConnectionManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Room messages on a server started in this JVM with the blocking transport and a single writer stripe, so every
+ * connection shares it. One member of the room stops reading as soon as the first message arrives, long before the
+ * messages fit into the socket buffers. The other members must still receive all messages. The outbound queues are
+ * large enough for all of the messages, so that a member which merely lags behind isn't evicted.
+ */
+final class StalledReaderBench {
+
+    private static final String PASSWORD = "bench";
+
+    private final String prefix = "s" + Long.toString(System.currentTimeMillis(), 36);
+    private final int port;
+    private final long timeoutMillis;
+    private final CountDownLatch stallReleased = new CountDownLatch(1);
+    private final Latencies latencies = new Latencies();
+    private final AtomicLong received = new AtomicLong();
+
+    private StalledReaderBench(int port, long timeoutMillis) {
+        this.port = port;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    static boolean run(Args args) throws IOException, InterruptedException {
+        int port = args.getInt("port", 17777);
+        int readers = args.getInt("readers", 10);
+        int messages = args.getInt("messages", 3000);
+        int size = args.getInt("size", 4096);
+        int timeoutSeconds = args.getInt("timeout", 30);
+        args.checkUnused();
+
+        System.out.format("stalledReader: readers=%d messages=%d size=%d%n", readers, messages, size);
+
+        ChatServer server = new ChatServer.Builder().port(port)
+                                                    .storage(Storage.Engine.MEMORY)
+                                                    .transport(ConnectionManager.Transport.BLOCKING)
+                                                    .writerThreads(1)
+                                                    .outboundMaxBytes(2L * messages * size)
+                                                    .create();
+        server.start();
+        try {
+            StalledReaderBench bench = new StalledReaderBench(port, TimeUnit.SECONDS.toMillis(timeoutSeconds));
+            return bench.run(readers, messages, size);
+        } finally {
+            server.stop();
+        }
+    }
+
+    private boolean run(int readers, int messages, int size) throws InterruptedException {
+        String room = "#" + prefix;
+        List<ChatConnection> connections = new ArrayList<>();
+        try {
+            ChatConnection sender = connect("sender", new Listener(false));
+            ChatConnection stalled = connect("stalled", new Listener(true));
+            connections.add(sender);
+            connections.add(stalled);
+            for (int i = 0; i < readers; i++) {
+                connections.add(connect("reader" + i, new Listener(false)));
+            }
+
+            for (ChatConnection connection : connections) {
+                connection.joinRoomAsync(room).get(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+
+            char[] padding = new char[Math.max(0, size - 20)];
+            Arrays.fill(padding, 'x');
+            String text = " " + new String(padding);
+
+            long expected = (long) readers * messages;
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                sender.sendMessage(room, System.nanoTime() + text);
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (received.get() < expected && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            System.out.format("%d of %d room messages received in %s next to the stalled reader: %s%n",
+                              received.get(), expected, Latencies.format(elapsed), latencies.summary());
+            if (received.get() != expected) {
+                System.out.println("  FAILED: " + (expected - received.get()) + " room messages weren't received");
+                return false;
+            }
+
+            return true;
+        } catch (IOException | ExecutionException | TimeoutException e) {
+            System.out.println("  FAILED: " + e);
+            return false;
+        } finally {
+            stallReleased.countDown();
+            connections.forEach(ChatConnection::disconnect);
+        }
+    }
+
+    private ChatConnection connect(String name, Listener listener) throws IOException, InterruptedException {
+        ChatConnection connection = new ChatConnection(prefix + "_" + name, PASSWORD, "localhost", port, listener);
+        if (!listener.connected.await(timeoutMillis, TimeUnit.MILLISECONDS) || !listener.isConnected) {
+            connection.disconnect();
+            throw new IOException(name + " couldn't connect");
+        }
+
+        return connection;
+    }
+
+    private class Listener implements ServerMessageListener {
+
+        private final boolean isStalled;
+        private final CountDownLatch connected = new CountDownLatch(1);
+        private volatile boolean isConnected;
+
+        private Listener(boolean isStalled) {
+            this.isStalled = isStalled;
+        }
+
+        @Override
+        public void onConnectionResult(boolean success, boolean userExists) {
+            isConnected = success;
+            connected.countDown();
+        }
+
+        @Override
+        public void onNewMessage(String sender, Optional<String> room, String message, boolean userOnline,
+                                 long timestamp) {
+            if (isStalled) {
+                // Holds up the client's reading thread, so the server's writes to it pile up
+                try {
+                    stallReleased.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+
+            if (room.isPresent()) {
+                latencies.recordSince(Long.parseLong(message.substring(0, message.indexOf(' '))));
+                received.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onMessageSent(String user) {
+        }
+
+        @Override
+        public void onUserList(Optional<String> roomName, List<UserListOutMessage.User> users) {
+        }
+
+        @Override
+        public void onRoomList(List<String> rooms) {
+        }
+
+        @Override
+        public void onMessageHistory(List<ChatMsg> messages) {
+        }
+
+        @Override
+        public void onRoomJoined(String roomName, boolean roomExists) {
+        }
+
+        @Override
+        public void onRoomLeft(String roomName, boolean success) {
+        }
+
+        @Override
+        public void onRoomDropped(String roomName, boolean success) {
+        }
+
+        @Override
+        public void onDisconnect() {
+        }
+    }
+}
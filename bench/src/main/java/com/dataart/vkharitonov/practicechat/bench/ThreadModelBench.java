@@ -0,0 +1,58 @@
+package com.dataart.vkharitonov.practicechat.bench;
+
+import com.dataart.vkharitonov.practicechat.server.ChatServer;
+import com.dataart.vkharitonov.practicechat.server.db.Storage;
+import com.dataart.vkharitonov.practicechat.server.net.ConnectionManager;
+import com.dataart.vkharitonov.practicechat.server.utils.ThreadModel;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * The same {@link LoadDriver} load on a server started in this JVM once per {@link ThreadModel}, so the thread models
+ * are compared on the same machine, transport and storage. A thread model this JVM doesn't support is reported and
+ * not run, since the server would fall back to {@link ThreadModel#PLATFORM}.
+ */
+final class ThreadModelBench {
+
+    private ThreadModelBench() {
+    }
+
+    static boolean run(Args args) throws IOException, InterruptedException {
+        int port = args.getInt("port", 17777);
+        ConnectionManager.Transport transport = ConnectionManager.Transport.valueOf(
+                args.getString("transport", "blocking").trim().toUpperCase(Locale.ROOT));
+        int idle = args.getInt("idle", 1000);
+        int users = args.getInt("users", 200);
+        int offline = args.getInt("offline", 100);
+        int senders = args.getInt("senders", 10);
+        int messages = args.getInt("messages", 100);
+        int timeoutSeconds = args.getInt("timeout", 30);
+        args.checkUnused();
+
+        boolean isCorrect = true;
+        for (ThreadModel threadModel : ThreadModel.values()) {
+            System.out.format("threadModel: %s transport=%s idle=%d users=%d offline=%d senders=%d messages=%d%n",
+                              threadModel, transport, idle, users, offline, senders, messages);
+            if (!threadModel.isSupported()) {
+                System.out.format("%s isn't supported by this JVM%n", threadModel);
+                continue;
+            }
+
+            ChatServer server = new ChatServer.Builder().port(port)
+                                                        .storage(Storage.Engine.MEMORY)
+                                                        .transport(transport)
+                                                        .threadModel(threadModel)
+                                                        .create();
+            server.start();
+            try {
+                isCorrect &= LoadDriver.run("localhost", port, idle, users, offline, senders, messages,
+                                            timeoutSeconds);
+            } finally {
+                server.stop();
+            }
+        }
+
+        return isCorrect;
+    }
+}
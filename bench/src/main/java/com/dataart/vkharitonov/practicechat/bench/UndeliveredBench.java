@@ -0,0 +1,143 @@
+package com.dataart.vkharitonov.practicechat.bench;
+
+import com.dataart.vkharitonov.practicechat.server.db.ChatMsgDao;
+import com.dataart.vkharitonov.practicechat.server.db.MemoryStorage;
+import com.dataart.vkharitonov.practicechat.server.db.Storage;
+import com.dataart.vkharitonov.practicechat.server.db.dto.ChatMsgDto;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Chunked reading of the undelivered messages on {@link MemoryStorage} while they are being written. Writer threads
+ * send direct messages to a single recipient. The reader streams them like the server does on connect: it reads a
+ * chunk after the last id it has seen, marks the chunk delivered up to its last id and reads the next one. Every
+ * {@code chunksPerSession} chunks it starts over from id 0, like a user who reconnects.
+ * <p>
+ * Checks that every message is read exactly once, in id order and, for every sender, in the order of sending.
+ */
+final class UndeliveredBench {
+
+    private static final String RECIPIENT = "recipient";
+
+    static boolean run(Args args) throws InterruptedException {
+        int writers = args.getInt("writers", 4);
+        int messages = args.getInt("messages", 200000);
+        int chunkSize = args.getInt("chunk", 100);
+        int chunksPerSession = args.getInt("chunksPerSession", 50);
+        args.checkUnused();
+
+        System.out.format("undelivered: writers=%d messages=%d chunk=%d chunksPerSession=%d%n", writers, messages,
+                          chunkSize, chunksPerSession);
+
+        Storage storage = new MemoryStorage();
+        try {
+            storage.getUserDao().createUser(RECIPIENT, "hash", "salt").join();
+            for (int writer = 0; writer < writers; writer++) {
+                storage.getUserDao().createUser(sender(writer), "hash", "salt").join();
+            }
+            ChatMsgDao msgDao = storage.getMsgDao();
+
+            Set<Long> storedIds = ConcurrentHashMap.newKeySet();
+            AtomicInteger failed = new AtomicInteger();
+            AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+            List<Thread> threads = new ArrayList<>();
+            for (int writer = 0; writer < writers; writer++) {
+                String sender = sender(writer);
+                int count = messages / writers + (writer < messages % writers ? 1 : 0);
+                threads.add(new Thread(() -> {
+                    for (int i = 0; i < count; i++) {
+                        ChatMsgDto msg = new ChatMsgDto(sender, RECIPIENT, Integer.toString(i),
+                                                        System.currentTimeMillis(), false);
+                        try {
+                            storedIds.add(msgDao.addMsg(msg).join());
+                        } catch (RuntimeException e) {
+                            failed.incrementAndGet();
+                            firstFailure.compareAndSet(null, e);
+                        }
+                    }
+                }, "undelivered-" + sender));
+            }
+
+            long startNanos = System.nanoTime();
+            threads.forEach(Thread::start);
+
+            List<String> errors = new ArrayList<>();
+            Set<Long> readIds = new HashSet<>();
+            Map<String, Integer> lastSeqs = new HashMap<>();
+            Latencies chunkLatencies = new Latencies();
+            int sessions = 0;
+            boolean isWritten = false;
+            while (true) {
+                sessions++;
+                long afterId = 0;
+                int chunks = 0;
+                boolean isEmpty = false;
+                while (chunks < chunksPerSession) {
+                    long chunkStart = System.nanoTime();
+                    List<ChatMsgDto> chunk = msgDao.getUndeliveredMsgsForUser(RECIPIENT, afterId, chunkSize).join();
+                    if (chunk.isEmpty()) {
+                        isEmpty = true;
+                        break;
+                    }
+
+                    for (ChatMsgDto msg : chunk) {
+                        if (msg.getId() <= afterId) {
+                            errors.add("message " + msg.getId() + " read after " + afterId);
+                        }
+                        if (!readIds.add(msg.getId())) {
+                            errors.add("message " + msg.getId() + " read twice");
+                        }
+
+                        int seq = Integer.parseInt(msg.getMessage());
+                        Integer lastSeq = lastSeqs.put(msg.getSender(), seq);
+                        if (lastSeq != null && seq <= lastSeq) {
+                            errors.add("message " + seq + " of " + msg.getSender() + " read after " + lastSeq);
+                        }
+                        afterId = msg.getId();
+                    }
+
+                    msgDao.setDeliveredUpTo(RECIPIENT, afterId).join();
+                    chunkLatencies.recordSince(chunkStart);
+                    chunks++;
+                }
+
+                // Only a read which has started after the last write may find nothing left
+                if (isEmpty && isWritten) {
+                    break;
+                }
+                isWritten = threads.stream().noneMatch(Thread::isAlive);
+            }
+            long elapsedNanos = System.nanoTime() - startNanos;
+
+            if (failed.get() > 0) {
+                errors.add(failed.get() + " messages failed, e.g. " + firstFailure.get());
+            }
+            Set<Long> unread = new HashSet<>(storedIds);
+            unread.removeAll(readIds);
+            if (!unread.isEmpty()) {
+                errors.add(unread.size() + " messages never read");
+            }
+
+            System.out.format("%d messages written and read in %s, %.0f messages/s, %d sessions%n", readIds.size(),
+                              Latencies.format(elapsedNanos), readIds.size() * 1e9 / elapsedNanos, sessions);
+            System.out.println("chunk read and mark: " + chunkLatencies.summary());
+            errors.stream().limit(10).forEach(error -> System.out.println("  FAILED: " + error));
+
+            return errors.isEmpty();
+        } finally {
+            storage.close();
+        }
+    }
+
+    private static String sender(int writer) {
+        return "sender" + writer;
+    }
+}
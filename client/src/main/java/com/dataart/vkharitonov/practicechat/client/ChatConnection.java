@@ -1,41 +1,65 @@
 package com.dataart.vkharitonov.practicechat.client;
 
+import com.dataart.vkharitonov.practicechat.common.json.Framing;
 import com.dataart.vkharitonov.practicechat.common.json.Message;
 import com.dataart.vkharitonov.practicechat.common.json.in.*;
 import com.dataart.vkharitonov.practicechat.common.json.out.*;
-import com.dataart.vkharitonov.practicechat.common.util.JsonUtils;
+import com.dataart.vkharitonov.practicechat.common.util.FrameEncoder;
+import com.dataart.vkharitonov.practicechat.common.util.MessageEncoder;
 import com.dataart.vkharitonov.practicechat.common.util.MessageProducer;
 import org.apache.commons.net.io.Util;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
 import java.util.OptionalInt;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Manages client's connection to the server
+ * Manages client's connection to the server. Requests {@link Framing#LENGTH_PREFIXED} framing, but keeps using newlines
+ * if the server doesn't support it.
+ * <p>
+ * Responses to the requests sent by the methods returning {@link CompletableFuture} are matched by request id and
+ * complete the futures instead of being passed to the {@link ServerMessageListener}, so any number of such requests
+ * may be in flight at once. The futures are completed on the reading thread. Such requests made before the server has
+ * answered `connect` don't wait for it: they are queued and sent as soon as the connection is accepted, or fail if it
+ * is rejected or closed.
  */
 public class ChatConnection {
 
     private final static Logger log = LoggerFactory.getLogger(ChatConnection.class.getName());
     public static final int HISTORY_DEFAULT_LIMIT = 100;
+    private static final int CONNECTION_RESULT_TIMEOUT = 5000;
+
+    private final CountDownLatch connectionResultReceived = new CountDownLatch(1);
+    private final MessageProducer producer = new MessageProducer();
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final Map<Long, CompletableFuture<Message>> pendingRequests = new ConcurrentHashMap<>();
+    // Encoded requests by their ids, until the connection result arrives. Guarded by this
+    private Map<Long, byte[]> queuedRequests = new LinkedHashMap<>();
 
     private Socket socket;
-    private PrintWriter writer;
+    private OutputStream out;
     private ServerMessageListener listener;
+    private volatile Framing framing = Framing.NEWLINE;
 
     public ChatConnection(String username, String password, String host, int port, ServerMessageListener listener)
             throws IOException {
         this.listener = listener;
 
         socket = new Socket(host, port);
-        writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
-        MessageProducer producer = new MessageProducer();
+        out = new BufferedOutputStream(socket.getOutputStream());
         producer.start(socket.getInputStream(), new MessageConsumer());
         writeConnectMessage(username, password);
     }
@@ -54,7 +78,8 @@ public class ChatConnection {
      */
     public void disconnect() {
         try {
-            if (socket != null) {
+            // Until the connection result is received, the server doesn't know which framing to expect
+            if (socket != null && connectionResultReceived.getCount() == 0) {
                 sendMessage(Message.MessageType.DISCONNECT, null);
             }
         } catch (IOException e) {
@@ -99,6 +124,67 @@ public class ChatConnection {
         sendMessage(Message.MessageType.DROP_ROOM, new DropRoomInMessage(name));
     }
 
+    /**
+     * Requests the list of users in the room if {@code roomName} is not null, or the list of all online users otherwise
+     *
+     * @return {@link CompletableFuture} that completes with the server's response
+     */
+    public CompletableFuture<UserListOutMessage> listUsersAsync(String roomName) {
+        return request(Message.MessageType.LIST_USERS, roomName != null ? new ListUsersInMessage(roomName) : null,
+                       UserListOutMessage.class);
+    }
+
+    /**
+     * @return {@link CompletableFuture} that completes with the server's response
+     */
+    public CompletableFuture<RoomListOutMessage> listRoomsAsync() {
+        return request(Message.MessageType.LIST_ROOMS, null, RoomListOutMessage.class);
+    }
+
+    /**
+     * @return {@link CompletableFuture} that completes with the server's response
+     */
+    public CompletableFuture<MsgHistoryOutMessage> getHistoryAsync(String username, OptionalInt limit) {
+        return request(Message.MessageType.GET_HISTORY,
+                       new GetHistoryInMessage(username, limit.orElseGet(() -> HISTORY_DEFAULT_LIMIT),
+                                               System.currentTimeMillis()),
+                       MsgHistoryOutMessage.class);
+    }
+
+    /**
+     * Requests the page of the history which precedes the page that returned {@code cursor}
+     *
+     * @param cursor {@link MsgHistoryOutMessage#getNextCursor()} of the previous page
+     *
+     * @return {@link CompletableFuture} that completes with the server's response
+     */
+    public CompletableFuture<MsgHistoryOutMessage> getHistoryAsync(String username, OptionalInt limit, String cursor) {
+        return request(Message.MessageType.GET_HISTORY,
+                       new GetHistoryInMessage(username, limit.orElseGet(() -> HISTORY_DEFAULT_LIMIT), cursor),
+                       MsgHistoryOutMessage.class);
+    }
+
+    /**
+     * @return {@link CompletableFuture} that completes with the server's response
+     */
+    public CompletableFuture<RoomJoinedOutMessage> joinRoomAsync(String name) {
+        return request(Message.MessageType.JOIN_ROOM, new JoinRoomInMessage(name), RoomJoinedOutMessage.class);
+    }
+
+    /**
+     * @return {@link CompletableFuture} that completes with the server's response
+     */
+    public CompletableFuture<RoomLeftOutMessage> leaveRoomAsync(String name) {
+        return request(Message.MessageType.LEAVE_ROOM, new LeaveRoomInMessage(name), RoomLeftOutMessage.class);
+    }
+
+    /**
+     * @return {@link CompletableFuture} that completes with the server's response
+     */
+    public CompletableFuture<RoomDroppedOutMessage> dropRoomAsync(String name) {
+        return request(Message.MessageType.DROP_ROOM, new DropRoomInMessage(name), RoomDroppedOutMessage.class);
+    }
+
     /**
      * Sends `send_message` message to the server
      *
@@ -117,20 +203,89 @@ public class ChatConnection {
     private void close() {
         Util.closeQuietly(socket);
         socket = null;
-        writer = null;
+        out = null;
+        connectionResultReceived.countDown();
+
+        IOException e = new IOException("Connection is closed");
+        pendingRequests.keySet().forEach(requestId -> {
+            CompletableFuture<Message> request = pendingRequests.remove(requestId);
+            if (request != null) {
+                request.completeExceptionally(e);
+            }
+        });
     }
 
     private void writeConnectMessage(String username, String password) throws IOException {
-        sendMessage(Message.MessageType.CONNECT, new ConnectInMessage(username, password));
+        sendMessage(Message.MessageType.CONNECT, new ConnectInMessage(username, password, Framing.LENGTH_PREFIXED));
+    }
+
+    /**
+     * Sends the request with a new request id, or queues it until the connection result arrives, and waits for the
+     * response with the same id
+     */
+    private <T, R> CompletableFuture<R> request(Message.MessageType type, T payload, Class<R> responseClass) {
+        long requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<Message> response = new CompletableFuture<>();
+        pendingRequests.put(requestId, response);
+
+        try {
+            if (!isConnected()) {
+                throw new IOException("Connection is closed");
+            }
+
+            byte[] message = MessageEncoder.encode(type, payload, requestId);
+            synchronized (this) {
+                if (queuedRequests != null) {
+                    queuedRequests.put(requestId, message);
+                } else {
+                    write(message);
+                }
+            }
+        } catch (IOException e) {
+            pendingRequests.remove(requestId);
+            response.completeExceptionally(e);
+        }
+
+        return response.thenApply(message -> message.getPayload(responseClass));
     }
 
     private <T> void sendMessage(Message.MessageType type, T payload) throws IOException {
-        if (writer != null) {
-            Message message = new Message(type, payload);
-            writer.println(JsonUtils.GSON.toJson(message));
-            if (writer.checkError()) {
-                throw new IOException("Couldn't write to socket");
+        sendMessage(type, payload, null);
+    }
+
+    private <T> void sendMessage(Message.MessageType type, T payload, Long requestId) throws IOException {
+        if (type != Message.MessageType.CONNECT) {
+            awaitConnectionResult();
+        }
+
+        byte[] message = MessageEncoder.encode(type, payload, requestId);
+        synchronized (this) {
+            write(message);
+        }
+    }
+
+    /**
+     * Must be called while holding the lock on this
+     */
+    private void write(byte[] message) throws IOException {
+        OutputStream out = this.out;
+        if (out != null) {
+            FrameEncoder.write(out, message, framing);
+            out.flush();
+        }
+    }
+
+    /**
+     * Waits until the framing is negotiated. Nothing but `connect` may be sent before that
+     */
+    private void awaitConnectionResult() throws IOException {
+        try {
+            if (!connectionResultReceived.await(CONNECTION_RESULT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Server didn't respond to connect message");
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting", e);
         }
     }
 
@@ -152,6 +307,37 @@ public class ChatConnection {
 
     private void handleConnectionResult(Message message) {
         ConnectionResultOutMessage payload = message.getPayload(ConnectionResultOutMessage.class);
+        Map<Long, byte[]> queued;
+        IOException error = null;
+        synchronized (this) {
+            queued = queuedRequests;
+            queuedRequests = null;
+            if (payload.isSuccess()) {
+                // Both sides switch right after this message. Old servers don't send the framing and keep using
+                // newlines
+                framing = payload.getFraming();
+                producer.setFraming(framing);
+                try {
+                    for (Iterator<byte[]> requests = queued.values().iterator(); requests.hasNext(); ) {
+                        write(requests.next());
+                        requests.remove();
+                    }
+                } catch (IOException e) {
+                    error = e;
+                }
+            } else {
+                error = new IOException("Server rejected the connection");
+            }
+        }
+
+        for (Long requestId : queued.keySet()) {
+            CompletableFuture<Message> request = pendingRequests.remove(requestId);
+            if (request != null) {
+                request.completeExceptionally(error);
+            }
+        }
+
+        connectionResultReceived.countDown();
         listener.onConnectionResult(payload.isSuccess(), payload.isUserExists());
     }
 
@@ -184,6 +370,14 @@ public class ChatConnection {
 
         @Override
         public void onNext(Message message) {
+            if (message.getRequestId() != null) {
+                CompletableFuture<Message> request = pendingRequests.remove(message.getRequestId());
+                if (request != null) {
+                    request.complete(message);
+                    return;
+                }
+            }
+
             switch (message.getMessageType()) {
                 case CONNECTION_RESULT:
                     handleConnectionResult(message);
@@ -0,0 +1,22 @@
+package com.dataart.vkharitonov.practicechat.common.json;
+
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * Determines how messages are separated in the byte stream. Negotiated with `connect` and `connection_result`
+ * messages, which are always delimited by newlines.
+ */
+public enum Framing {
+
+    /**
+     * Every message is followed by a newline
+     */
+    @SerializedName("newline")
+    NEWLINE,
+
+    /**
+     * Every message is preceded by its length in bytes, a 4-byte big-endian integer
+     */
+    @SerializedName("length_prefixed")
+    LENGTH_PREFIXED
+}
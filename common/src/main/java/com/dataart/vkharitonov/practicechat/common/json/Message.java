@@ -8,29 +8,81 @@ public class Message {
 
     private MessageType messageType;
     private JsonElement payload;
+    private Long requestId;
+
+    /**
+     * Payload decoded straight from the stream, {@link #payload} is then built only on demand
+     */
+    private transient Object decodedPayload;
 
     public <T> Message(MessageType messageType, T payload) {
+        this(messageType, payload, null);
+    }
+
+    /**
+     * @param requestId id chosen by the client for a request, or the id of the request for a response. May be null
+     */
+    public <T> Message(MessageType messageType, T payload, Long requestId) {
         this.messageType = messageType;
         this.payload = JsonUtils.GSON.toJsonTree(payload);
+        this.requestId = requestId;
+    }
+
+    private Message(MessageType messageType, JsonElement payload, Object decodedPayload, Long requestId) {
+        this.messageType = messageType;
+        this.payload = payload;
+        this.decodedPayload = decodedPayload;
+        this.requestId = requestId;
+    }
+
+    /**
+     * Creates a message with an already deserialized payload, without converting it to a JSON tree
+     *
+     * @param payload payload object, or a {@link JsonElement} if the payload type is unknown. May be null
+     */
+    public static Message decoded(MessageType messageType, Object payload, Long requestId) {
+        if (payload instanceof JsonElement) {
+            return new Message(messageType, (JsonElement) payload, null, requestId);
+        } else {
+            return new Message(messageType, null, payload, requestId);
+        }
     }
 
     public MessageType getMessageType() {
         return messageType;
     }
 
+    /**
+     * @return id which correlates a request with its response, or null if the client didn't set it
+     */
+    public Long getRequestId() {
+        return requestId;
+    }
+
     public <T> T getPayload(Class<T> cls) {
-        return JsonUtils.GSON.fromJson(payload, cls);
+        if (cls.isInstance(decodedPayload)) {
+            return cls.cast(decodedPayload);
+        }
+
+        return JsonUtils.GSON.fromJson(getRawPayload(), cls);
     }
 
     public JsonElement getRawPayload() {
+        if (payload == null && decodedPayload != null) {
+            payload = JsonUtils.GSON.toJsonTree(decodedPayload);
+        }
+
         return payload;
     }
 
+    /**
+     * Leaves the payload out, so logging a message neither builds its JSON tree nor leaks passwords and texts
+     */
     @Override
     public String toString() {
         return "Message{" +
                 "messageType=" + messageType +
-                ", payload=" + payload +
+                ", requestId=" + requestId +
                 '}';
     }
 
@@ -1,13 +1,21 @@
 package com.dataart.vkharitonov.practicechat.common.json.in;
 
+import com.dataart.vkharitonov.practicechat.common.json.Framing;
+
 public class ConnectInMessage {
 
     private String username;
     private String password;
+    private Framing framing;
 
     public ConnectInMessage(String username, String password) {
+        this(username, password, null);
+    }
+
+    public ConnectInMessage(String username, String password, Framing framing) {
         this.username = username;
         this.password = password;
+        this.framing = framing;
     }
 
     public String getUsername() {
@@ -18,11 +26,19 @@ public class ConnectInMessage {
         return password;
     }
 
+    /**
+     * @return framing requested by the client, {@link Framing#NEWLINE} if the client didn't request any
+     */
+    public Framing getFraming() {
+        return framing != null ? framing : Framing.NEWLINE;
+    }
+
     @Override
     public String toString() {
         return "ConnectInMessage{" +
                 "username='" + username + '\'' +
                 ", password='" + password + '\'' +
+                ", framing=" + framing +
                 '}';
     }
 }
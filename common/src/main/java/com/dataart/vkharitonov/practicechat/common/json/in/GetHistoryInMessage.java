@@ -5,6 +5,7 @@ public class GetHistoryInMessage {
     private String username;
     private int limit;
     private long timestampTo;
+    private String cursor;
 
     public GetHistoryInMessage(String username, int limit, long timestampTo) {
         this.username = username;
@@ -12,6 +13,15 @@ public class GetHistoryInMessage {
         this.timestampTo = timestampTo;
     }
 
+    /**
+     * @param cursor `next_cursor` of the previous page
+     */
+    public GetHistoryInMessage(String username, int limit, String cursor) {
+        this.username = username;
+        this.limit = limit;
+        this.cursor = cursor;
+    }
+
     public String getUsername() {
         return username;
     }
@@ -23,4 +33,11 @@ public class GetHistoryInMessage {
     public int getLimit() {
         return limit;
     }
+
+    /**
+     * @return cursor of the requested page, or null if the history is requested by {@link #getTimestampTo()}
+     */
+    public String getCursor() {
+        return cursor;
+    }
 }
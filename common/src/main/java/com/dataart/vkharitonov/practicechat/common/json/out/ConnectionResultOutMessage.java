@@ -1,13 +1,21 @@
 package com.dataart.vkharitonov.practicechat.common.json.out;
 
+import com.dataart.vkharitonov.practicechat.common.json.Framing;
+
 public class ConnectionResultOutMessage {
 
     private boolean success;
     private boolean userExists;
+    private Framing framing;
 
     public ConnectionResultOutMessage(boolean success, boolean userExists) {
+        this(success, userExists, null);
+    }
+
+    public ConnectionResultOutMessage(boolean success, boolean userExists, Framing framing) {
         this.success = success;
         this.userExists = userExists;
+        this.framing = framing;
     }
 
     public boolean isSuccess() {
@@ -17,4 +25,11 @@ public class ConnectionResultOutMessage {
     public boolean isUserExists() {
         return userExists;
     }
+
+    /**
+     * @return framing used by both sides after this message, {@link Framing#NEWLINE} if the server didn't specify any
+     */
+    public Framing getFraming() {
+        return framing != null ? framing : Framing.NEWLINE;
+    }
 }
@@ -9,12 +9,25 @@ import java.util.List;
 public class MsgHistoryOutMessage {
 
     private List<ChatMsg> messages;
+    private String nextCursor;
 
     public MsgHistoryOutMessage(List<ChatMsg> messages) {
+        this(messages, null);
+    }
+
+    /**
+     * @param nextCursor cursor of the previous page of the history, or null if there are no older messages
+     */
+    public MsgHistoryOutMessage(List<ChatMsg> messages, String nextCursor) {
         this.messages = new ArrayList<>(messages);
+        this.nextCursor = nextCursor;
     }
 
     public List<ChatMsg> getMessages() {
         return Collections.unmodifiableList(messages);
     }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
 }
@@ -0,0 +1,102 @@
+package com.dataart.vkharitonov.practicechat.common.util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of heap byte buffers which lets large messages be read without allocating a new array for every one of them.
+ * Buffers are grouped by capacity into power-of-two size classes, each class retains a limited number of bytes.
+ * <p>
+ * Thread-safe.
+ */
+public final class BufferPool {
+
+    private static final int MIN_CLASS_SHIFT = 12;
+    private static final int MAX_CLASS_SHIFT = 21;
+    private static final int MAX_RETAINED_BYTES_PER_CLASS = 4 * 1024 * 1024;
+
+    private static final BufferPool SHARED = new BufferPool(MAX_RETAINED_BYTES_PER_CLASS);
+
+    private final int maxRetainedBytesPerClass;
+    private final SizeClass[] classes = new SizeClass[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+
+    /**
+     * @param maxRetainedBytesPerClass maximum total capacity of the idle buffers of a single size class
+     */
+    public BufferPool(int maxRetainedBytesPerClass) {
+        this.maxRetainedBytesPerClass = maxRetainedBytesPerClass;
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass();
+        }
+    }
+
+    /**
+     * @return pool shared by all connections of this process
+     */
+    public static BufferPool getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Takes a buffer from the pool or allocates a new one. The buffer should be {@link #release(ByteBuffer)
+     * released} when it's no longer used
+     *
+     * @param minCapacity minimum capacity of the buffer
+     *
+     * @return a cleared buffer with at least {@code minCapacity} capacity
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        int shift = classShift(minCapacity);
+        if (shift > MAX_CLASS_SHIFT) {
+            return ByteBuffer.allocate(minCapacity);
+        }
+
+        SizeClass sizeClass = classes[shift - MIN_CLASS_SHIFT];
+        ByteBuffer buffer = sizeClass.buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(1 << shift);
+        }
+
+        sizeClass.retainedBytes.addAndGet(-buffer.capacity());
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns the buffer to the pool. The buffer must not be used afterwards
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int shift = classShift(capacity);
+        if (shift > MAX_CLASS_SHIFT || capacity != 1 << shift || !buffer.hasArray()) {
+            // Not allocated by this pool
+            return;
+        }
+
+        SizeClass sizeClass = classes[shift - MIN_CLASS_SHIFT];
+        if (sizeClass.retainedBytes.addAndGet(capacity) <= maxRetainedBytesPerClass) {
+            sizeClass.buffers.add(buffer);
+        } else {
+            sizeClass.retainedBytes.addAndGet(-capacity);
+        }
+    }
+
+    /**
+     * @return log2 of the smallest size class which fits {@code capacity} bytes
+     */
+    private static int classShift(int capacity) {
+        if (capacity <= 1 << MIN_CLASS_SHIFT) {
+            return MIN_CLASS_SHIFT;
+        }
+
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1);
+    }
+
+    private static class SizeClass {
+
+        private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger retainedBytes = new AtomicInteger();
+    }
+}
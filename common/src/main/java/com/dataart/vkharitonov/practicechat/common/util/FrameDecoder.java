@@ -0,0 +1,61 @@
+package com.dataart.vkharitonov.practicechat.common.util;
+
+import com.dataart.vkharitonov.practicechat.common.json.Framing;
+import com.dataart.vkharitonov.practicechat.common.json.Message;
+import com.google.gson.JsonParseException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Incrementally splits a byte stream into messages. Bytes are read from a channel as they arrive, and complete messages
+ * are taken one at a time with {@link #next()}.
+ * <p>
+ * Implementations are not thread-safe.
+ */
+public interface FrameDecoder {
+
+    /**
+     * Creates a decoder for the {@code framing}
+     *
+     * @param maxFrameLength maximum length of a single message in bytes
+     * @param pending        bytes which were already read from the stream, may be null
+     */
+    static FrameDecoder create(Framing framing, int maxFrameLength, ByteBuffer pending) {
+        switch (framing) {
+            case LENGTH_PREFIXED:
+                return new LengthPrefixedFrameDecoder(maxFrameLength, BufferPool.getShared(), pending);
+            case NEWLINE:
+            default:
+                return new LineFrameDecoder(maxFrameLength, pending);
+        }
+    }
+
+    /**
+     * Reads available bytes from the {@code channel}
+     *
+     * @return number of bytes read, or -1 if the end of the stream was reached
+     *
+     * @throws IOException thrown if couldn't read from the channel or the pending message is too long
+     */
+    int readFrom(ReadableByteChannel channel) throws IOException;
+
+    /**
+     * Takes the next complete message from the accumulated bytes
+     *
+     * @return a message, or null if there is no complete message yet
+     *
+     * @throws IOException        thrown if the pending message is too long
+     * @throws JsonParseException thrown if the message is not a valid JSON
+     */
+    Message next() throws IOException;
+
+    /**
+     * Takes the bytes which were read but not decoded yet, so that the rest of the stream can be decoded with a
+     * different framing. The decoder must not be used afterwards.
+     *
+     * @return buffer ready for reading
+     */
+    ByteBuffer takeRemaining();
+}
@@ -0,0 +1,41 @@
+package com.dataart.vkharitonov.practicechat.common.util;
+
+import com.dataart.vkharitonov.practicechat.common.json.Framing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes serialized messages with the specified {@link Framing}
+ */
+public final class FrameEncoder {
+
+    private FrameEncoder() {
+    }
+
+    /**
+     * Writes the message to the {@code out} with its delimiter or length prefix
+     *
+     * @param message serialized message
+     */
+    public static void write(OutputStream out, byte[] message, Framing framing) throws IOException {
+        switch (framing) {
+            case LENGTH_PREFIXED:
+                out.write(lengthPrefix(message.length));
+                out.write(message);
+                break;
+            case NEWLINE:
+            default:
+                out.write(message);
+                out.write('\n');
+                break;
+        }
+    }
+
+    /**
+     * @return prefix of a message of the {@code length} for {@link Framing#LENGTH_PREFIXED} framing
+     */
+    public static byte[] lengthPrefix(int length) {
+        return new byte[]{(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length};
+    }
+}
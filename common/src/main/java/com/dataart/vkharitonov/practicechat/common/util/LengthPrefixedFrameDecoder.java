@@ -0,0 +1,178 @@
+package com.dataart.vkharitonov.practicechat.common.util;
+
+import com.dataart.vkharitonov.practicechat.common.json.Message;
+import com.google.gson.JsonParseException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incrementally splits a byte stream into JSON messages, each one preceded by its length, a 4-byte big-endian integer.
+ * Bytes are read from a channel as they arrive, and complete messages are taken one at a time with {@link #next()}.
+ * <p>
+ * Small messages are decoded right from the read buffer. A message which doesn't fit there is read into a buffer taken
+ * from the {@link BufferPool}, which is sized by the length prefix, so the message is never copied while it grows. A
+ * message longer than the limit is rejected as soon as its prefix is read.
+ * <p>
+ * Not thread-safe.
+ */
+public final class LengthPrefixedFrameDecoder implements FrameDecoder {
+
+    /**
+     * Length of the prefix in bytes
+     */
+    public static final int PREFIX_LENGTH = 4;
+
+    private static final int READ_BUFFER_CAPACITY = 8192;
+
+    private final int maxFrameLength;
+    private final BufferPool pool;
+
+    /**
+     * Accumulated bytes, always in "write" mode. Bytes in [start, position) are not consumed yet
+     */
+    private ByteBuffer buffer;
+    private int start;
+
+    /**
+     * Body of a message which is too long for the read buffer, taken from the pool. The limit is the message length
+     */
+    private ByteBuffer frame;
+
+    /**
+     * @param maxFrameLength maximum length of a single message in bytes, not including the prefix
+     * @param pool          pool of the buffers for long messages
+     * @param pending       bytes which were already read from the stream, may be null
+     */
+    public LengthPrefixedFrameDecoder(int maxFrameLength, BufferPool pool, ByteBuffer pending) {
+        this.maxFrameLength = maxFrameLength;
+        this.pool = pool;
+
+        int pendingLength = pending != null ? pending.remaining() : 0;
+        buffer = ByteBuffer.allocate(Math.max(READ_BUFFER_CAPACITY, pendingLength));
+        if (pending != null) {
+            buffer.put(pending);
+        }
+    }
+
+    @Override
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        if (frame != null) {
+            return channel.read(frame);
+        }
+
+        if (!buffer.hasRemaining()) {
+            compact();
+        }
+
+        return channel.read(buffer);
+    }
+
+    /**
+     * Takes the next complete message from the accumulated bytes
+     *
+     * @return a message, or null if there is no complete message yet
+     *
+     * @throws IOException        thrown if the pending message is too long
+     * @throws JsonParseException thrown if the message is not a valid JSON
+     */
+    @Override
+    public Message next() throws IOException {
+        while (true) {
+            if (frame != null) {
+                if (frame.hasRemaining()) {
+                    return null;
+                }
+
+                try {
+                    return decode(frame.array(), 0, frame.position());
+                } finally {
+                    pool.release(frame);
+                    frame = null;
+                }
+            }
+
+            int available = buffer.position() - start;
+            if (available < PREFIX_LENGTH) {
+                return null;
+            }
+
+            int length = buffer.getInt(start);
+            if (length < 0 || length > maxFrameLength) {
+                throw new IOException("Message is longer than " + maxFrameLength + " bytes");
+            }
+
+            int bodyStart = start + PREFIX_LENGTH;
+            if (available - PREFIX_LENGTH < length) {
+                if (PREFIX_LENGTH + length > buffer.capacity()) {
+                    takeFrame(length);
+                } else if (bodyStart + length > buffer.capacity()) {
+                    compact();
+                }
+
+                return null;
+            }
+
+            consume(PREFIX_LENGTH + length);
+            if (length > 0) {
+                return decode(buffer.array(), bodyStart, length);
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer takeRemaining() {
+        ByteBuffer remaining;
+        if (frame != null) {
+            // The prefix has already been consumed, restore it
+            frame.flip();
+            remaining = ByteBuffer.allocate(PREFIX_LENGTH + frame.remaining());
+            remaining.putInt(frame.limit()).put(frame).flip();
+            pool.release(frame);
+            frame = null;
+        } else {
+            remaining = ByteBuffer.wrap(buffer.array(), start, buffer.position() - start);
+        }
+
+        buffer = null;
+        return remaining;
+    }
+
+    /**
+     * Moves the beginning of a long message from the read buffer to a pooled buffer of the message's size
+     */
+    private void takeFrame(int length) {
+        int bodyStart = start + PREFIX_LENGTH;
+
+        frame = pool.acquire(length);
+        frame.limit(length);
+        frame.put(buffer.array(), bodyStart, buffer.position() - bodyStart);
+
+        buffer.clear();
+        start = 0;
+    }
+
+    private void consume(int length) {
+        start += length;
+        if (start == buffer.position()) {
+            buffer.clear();
+            start = 0;
+        }
+    }
+
+    /**
+     * Moves pending bytes to the start of the buffer
+     */
+    private void compact() {
+        buffer.flip();
+        buffer.position(start);
+        buffer.compact();
+        start = 0;
+    }
+
+    private static Message decode(byte[] array, int offset, int length) {
+        return MessageDecoder.decode(new String(array, offset, length, StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,133 @@
+package com.dataart.vkharitonov.practicechat.common.util;
+
+import com.dataart.vkharitonov.practicechat.common.json.Message;
+import com.google.gson.JsonParseException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incrementally splits a byte stream into newline-delimited JSON messages. Bytes are read from a channel as they
+ * arrive, and complete messages are taken one at a time with {@link #next()}.
+ * <p>
+ * Not thread-safe.
+ */
+public final class LineFrameDecoder implements FrameDecoder {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int maxFrameLength;
+
+    /**
+     * Accumulated bytes, always in "write" mode. Bytes in [start, position) are not consumed yet
+     */
+    private ByteBuffer buffer;
+    private int start;
+
+    /**
+     * Bytes in [start, scanned) are known not to contain a delimiter
+     */
+    private int scanned;
+
+    /**
+     * @param maxFrameLength maximum length of a single message in bytes
+     */
+    public LineFrameDecoder(int maxFrameLength) {
+        this(maxFrameLength, null);
+    }
+
+    /**
+     * @param maxFrameLength maximum length of a single message in bytes
+     * @param pending        bytes which were already read from the stream, may be null
+     */
+    public LineFrameDecoder(int maxFrameLength, ByteBuffer pending) {
+        this.maxFrameLength = maxFrameLength;
+
+        int pendingLength = pending != null ? pending.remaining() : 0;
+        buffer = ByteBuffer.allocate(Math.max(Math.min(INITIAL_CAPACITY, maxFrameLength + 1), pendingLength));
+        if (pending != null) {
+            buffer.put(pending);
+        }
+    }
+
+    @Override
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        if (!buffer.hasRemaining()) {
+            compactOrGrow();
+        }
+
+        return channel.read(buffer);
+    }
+
+    /**
+     * Takes the next complete message from the accumulated bytes
+     *
+     * @return a message, or null if there is no complete message yet
+     *
+     * @throws JsonParseException thrown if the message is not a valid JSON
+     */
+    @Override
+    public Message next() {
+        while (true) {
+            int end = indexOfDelimiter();
+            if (end < 0) {
+                return null;
+            }
+
+            String line = new String(buffer.array(), start, end - start, StandardCharsets.UTF_8).trim();
+            start = end + 1;
+            scanned = start;
+            if (start == buffer.position()) {
+                buffer.clear();
+                start = 0;
+                scanned = 0;
+            }
+
+            if (!line.isEmpty()) {
+                return MessageDecoder.decode(line);
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer takeRemaining() {
+        ByteBuffer remaining = ByteBuffer.wrap(buffer.array(), start, buffer.position() - start);
+        buffer = null;
+        return remaining;
+    }
+
+    private int indexOfDelimiter() {
+        byte[] array = buffer.array();
+        for (int i = scanned; i < buffer.position(); i++) {
+            if (array[i] == '\n') {
+                return i;
+            }
+        }
+
+        scanned = buffer.position();
+        return -1;
+    }
+
+    /**
+     * Moves pending bytes to the start of the buffer, or reallocates the buffer if it's full of a single message
+     */
+    private void compactOrGrow() throws IOException {
+        if (start > 0) {
+            buffer.flip();
+            buffer.position(start);
+            buffer.compact();
+        } else if (buffer.capacity() > maxFrameLength) {
+            throw new IOException("Message is longer than " + maxFrameLength + " bytes");
+        } else {
+            ByteBuffer newBuffer = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, maxFrameLength + 1));
+            buffer.flip();
+            newBuffer.put(buffer);
+            buffer = newBuffer;
+        }
+
+        scanned -= start;
+        start = 0;
+    }
+}
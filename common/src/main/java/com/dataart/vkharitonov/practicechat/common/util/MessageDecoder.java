@@ -0,0 +1,126 @@
+package com.dataart.vkharitonov.practicechat.common.util;
+
+import com.dataart.vkharitonov.practicechat.common.json.Message;
+import com.dataart.vkharitonov.practicechat.common.json.in.*;
+import com.dataart.vkharitonov.practicechat.common.json.out.*;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Deserializes {@link Message} envelopes in a single pass. As soon as `message_type` is read, the payload is streamed
+ * into its class with the type adapter registered for that type, so no {@link JsonElement} tree is built.
+ * <p>
+ * A payload which comes before `message_type`, or belongs to a type without a registered class, is kept as a tree,
+ * and {@link Message#getPayload(Class)} converts it on demand.
+ */
+public final class MessageDecoder {
+
+    private static final Map<Message.MessageType, TypeAdapter<?>> PAYLOAD_ADAPTERS =
+            new EnumMap<>(Message.MessageType.class);
+    private static final TypeAdapter<JsonElement> TREE_ADAPTER = JsonUtils.GSON.getAdapter(JsonElement.class);
+
+    static {
+        register(Message.MessageType.CONNECT, ConnectInMessage.class);
+        register(Message.MessageType.LIST_USERS, ListUsersInMessage.class);
+        register(Message.MessageType.SEND_MESSAGE, SendMsgInMessage.class);
+        register(Message.MessageType.GET_HISTORY, GetHistoryInMessage.class);
+        register(Message.MessageType.JOIN_ROOM, JoinRoomInMessage.class);
+        register(Message.MessageType.DROP_ROOM, DropRoomInMessage.class);
+        register(Message.MessageType.LEAVE_ROOM, LeaveRoomInMessage.class);
+
+        register(Message.MessageType.CONNECTION_RESULT, ConnectionResultOutMessage.class);
+        register(Message.MessageType.USER_LIST, UserListOutMessage.class);
+        register(Message.MessageType.ROOM_LIST, RoomListOutMessage.class);
+        register(Message.MessageType.NEW_MESSAGE, NewMsgOutMessage.class);
+        register(Message.MessageType.MESSAGE_SENT, MsgSentOutMessage.class);
+        register(Message.MessageType.MESSAGE_HISTORY, MsgHistoryOutMessage.class);
+        register(Message.MessageType.ROOM_JOINED, RoomJoinedOutMessage.class);
+        register(Message.MessageType.ROOM_LEFT, RoomLeftOutMessage.class);
+        register(Message.MessageType.ROOM_DROPPED, RoomDroppedOutMessage.class);
+    }
+
+    private MessageDecoder() {
+    }
+
+    private static void register(Message.MessageType type, Class<?> payloadClass) {
+        PAYLOAD_ADAPTERS.put(type, JsonUtils.GSON.getAdapter(payloadClass));
+    }
+
+    /**
+     * Deserializes the message. Accepts the same input as {@code GSON.fromJson(json, Message.class)}
+     *
+     * @return message, or null if the JSON is empty or `null`
+     *
+     * @throws JsonParseException thrown if the message is not a valid JSON
+     */
+    public static Message decode(String json) {
+        JsonReader reader = new JsonReader(new StringReader(json));
+        reader.setLenient(true);
+        try {
+            JsonToken token;
+            try {
+                token = reader.peek();
+            } catch (EOFException e) {
+                // Empty document
+                return null;
+            }
+
+            if (token == JsonToken.NULL) {
+                reader.nextNull();
+                return null;
+            }
+
+            Message message = read(reader);
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new JsonSyntaxException("JSON document was not fully consumed.");
+            }
+
+            return message;
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    private static Message read(JsonReader reader) throws IOException {
+        Message.MessageType type = null;
+        Object payload = null;
+        Long requestId = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "message_type":
+                    type = reader.peek() != JsonToken.NULL ? MessageTypes.forName(reader.nextString())
+                                                           : skipNull(reader);
+                    break;
+                case "payload":
+                    TypeAdapter<?> adapter = type != null ? PAYLOAD_ADAPTERS.get(type) : null;
+                    payload = adapter != null ? adapter.read(reader) : TREE_ADAPTER.read(reader);
+                    break;
+                case "request_id":
+                    requestId = reader.peek() != JsonToken.NULL ? reader.nextLong() : skipNull(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return Message.decoded(type, payload, requestId);
+    }
+
+    private static <T> T skipNull(JsonReader reader) throws IOException {
+        reader.nextNull();
+        return null;
+    }
+}
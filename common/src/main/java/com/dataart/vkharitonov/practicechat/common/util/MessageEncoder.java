@@ -0,0 +1,270 @@
+package com.dataart.vkharitonov.practicechat.common.util;
+
+import com.dataart.vkharitonov.practicechat.common.json.ChatMsg;
+import com.dataart.vkharitonov.practicechat.common.json.Message;
+import com.dataart.vkharitonov.practicechat.common.json.out.MsgHistoryOutMessage;
+import com.dataart.vkharitonov.practicechat.common.json.out.MsgSentOutMessage;
+import com.dataart.vkharitonov.practicechat.common.json.out.NewMsgOutMessage;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serializes {@link Message} envelopes straight into UTF-8 bytes, without building a {@link com.google.gson.JsonElement}
+ * tree or an intermediate String. Every thread reuses its own output buffer and {@link JsonWriter}.
+ * <p>
+ * Payloads are written by writers prepared once per class: hand-written ones for the messages sent most often, and
+ * {@link JsonUtils#GSON}'s type adapters for the rest. The output is the same as {@code GSON.toJson(new Message(...))}.
+ */
+public final class MessageEncoder {
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private static final Map<Class<?>, PayloadWriter<?>> WRITERS = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Output> OUTPUT = ThreadLocal.withInitial(Output::new);
+
+    static {
+        WRITERS.put(NewMsgOutMessage.class, (PayloadWriter<NewMsgOutMessage>) MessageEncoder::writeNewMsg);
+        WRITERS.put(MsgSentOutMessage.class, (PayloadWriter<MsgSentOutMessage>) MessageEncoder::writeMsgSent);
+        WRITERS.put(MsgHistoryOutMessage.class, (PayloadWriter<MsgHistoryOutMessage>) MessageEncoder::writeHistory);
+        WRITERS.put(ChatMsg.class, (PayloadWriter<ChatMsg>) MessageEncoder::writeChatMsg);
+    }
+
+    private MessageEncoder() {
+    }
+
+    /**
+     * Serializes the message
+     *
+     * @param payload   message payload, may be null
+     * @param requestId id which correlates a request with its response, may be null
+     *
+     * @return serialized message without a delimiter
+     */
+    public static byte[] encode(Message.MessageType type, Object payload, Long requestId) {
+        Output output = OUTPUT.get();
+        boolean isComplete = false;
+        try {
+            JsonWriter json = output.json;
+            json.beginObject();
+            json.name("message_type").value(MessageTypes.name(type));
+            json.name("payload");
+            writePayload(json, payload);
+            if (requestId != null) {
+                json.name("request_id").value(requestId);
+            }
+            json.endObject();
+            json.flush();
+
+            byte[] bytes = output.bytes.toByteArray();
+            isComplete = true;
+            return bytes;
+        } catch (IOException e) {
+            // Can't happen, the output is in memory
+            throw new UncheckedIOException(e);
+        } finally {
+            if (!isComplete || output.bytes.size() > MAX_RETAINED_BUFFER_SIZE) {
+                // The writer is left in the middle of an object or holds on to a large buffer
+                OUTPUT.remove();
+            } else {
+                output.bytes.reset();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void writePayload(JsonWriter json, T payload) throws IOException {
+        if (payload == null) {
+            json.nullValue();
+            return;
+        }
+
+        PayloadWriter<T> writer = (PayloadWriter<T>) WRITERS.computeIfAbsent(payload.getClass(),
+                                                                             MessageEncoder::adapterWriter);
+        writer.write(json, payload);
+    }
+
+    private static <T> PayloadWriter<T> adapterWriter(Class<T> cls) {
+        TypeAdapter<T> adapter = JsonUtils.GSON.getAdapter(cls);
+        return adapter::write;
+    }
+
+    private static void writeNewMsg(JsonWriter json, NewMsgOutMessage msg) throws IOException {
+        json.beginObject();
+        json.name("room").value(msg.getRoom());
+        json.name("username").value(msg.getUsername());
+        json.name("message").value(msg.getMessage());
+        json.name("online").value(msg.isOnline());
+        json.name("timestamp").value(msg.getTimestamp());
+        json.endObject();
+    }
+
+    private static void writeMsgSent(JsonWriter json, MsgSentOutMessage msg) throws IOException {
+        json.beginObject();
+        json.name("username").value(msg.getUsername());
+        json.endObject();
+    }
+
+    private static void writeHistory(JsonWriter json, MsgHistoryOutMessage msg) throws IOException {
+        json.beginObject();
+        if (msg.getMessages() != null) {
+            json.name("messages");
+            json.beginArray();
+            for (ChatMsg chatMsg : msg.getMessages()) {
+                if (chatMsg != null) {
+                    writeChatMsg(json, chatMsg);
+                } else {
+                    json.nullValue();
+                }
+            }
+            json.endArray();
+        }
+        if (msg.getNextCursor() != null) {
+            json.name("next_cursor").value(msg.getNextCursor());
+        }
+        json.endObject();
+    }
+
+    private static void writeChatMsg(JsonWriter json, ChatMsg msg) throws IOException {
+        json.beginObject();
+        json.name("sender").value(msg.getSender());
+        json.name("destination").value(msg.getDestination());
+        json.name("message").value(msg.getMessage());
+        json.name("timestamp").value(msg.getTimestamp());
+        json.endObject();
+    }
+
+    private interface PayloadWriter<T> {
+
+        void write(JsonWriter json, T payload) throws IOException;
+    }
+
+    /**
+     * Reusable output of a single thread
+     */
+    private static class Output {
+
+        private final Utf8Buffer bytes = new Utf8Buffer(INITIAL_BUFFER_SIZE);
+        private final JsonWriter json = new JsonWriter(bytes);
+
+        private Output() {
+            // Same settings as Gson.toJson. Lenient mode lets the writer be reused for the next top-level value
+            json.setLenient(true);
+            json.setHtmlSafe(true);
+            json.setSerializeNulls(false);
+        }
+    }
+
+    /**
+     * Growable byte array which encodes the characters written to it as UTF-8. Unlike {@link
+     * java.io.OutputStreamWriter}, it has no locks and no intermediate char buffer, which matters with the many short
+     * writes made by {@link JsonWriter}
+     */
+    private static class Utf8Buffer extends Writer {
+
+        private byte[] buf;
+        private int count;
+        private char highSurrogate;
+
+        private Utf8Buffer(int initialCapacity) {
+            buf = new byte[initialCapacity];
+        }
+
+        @Override
+        public void write(int c) {
+            write((char) c);
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            ensureCapacity(len * 3);
+            for (int i = off; i < off + len; i++) {
+                write(str.charAt(i));
+            }
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            ensureCapacity(len * 3);
+            for (int i = off; i < off + len; i++) {
+                write(cbuf[i]);
+            }
+        }
+
+        private void write(char c) {
+            if (c < 0x80 && highSurrogate == 0) {
+                ensureCapacity(1);
+                buf[count++] = (byte) c;
+                return;
+            }
+
+            ensureCapacity(4);
+            if (highSurrogate != 0) {
+                char high = highSurrogate;
+                highSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int codePoint = Character.toCodePoint(high, c);
+                    buf[count++] = (byte) (0xF0 | (codePoint >> 18));
+                    buf[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buf[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buf[count++] = (byte) (0x80 | (codePoint & 0x3F));
+                    return;
+                }
+
+                // Unpaired surrogate, replaced the same way as String.getBytes does
+                buf[count++] = '?';
+                write(c);
+            } else if (c < 0x800) {
+                buf[count++] = (byte) (0xC0 | (c >> 6));
+                buf[count++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c)) {
+                highSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                buf[count++] = '?';
+            } else {
+                buf[count++] = (byte) (0xE0 | (c >> 12));
+                buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        private void ensureCapacity(int extra) {
+            if (count + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + extra));
+            }
+        }
+
+        @Override
+        public void flush() {
+            if (highSurrogate != 0) {
+                highSurrogate = 0;
+                ensureCapacity(1);
+                buf[count++] = '?';
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private int size() {
+            return count;
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(buf, count);
+        }
+
+        private void reset() {
+            count = 0;
+            highSurrogate = 0;
+        }
+    }
+}
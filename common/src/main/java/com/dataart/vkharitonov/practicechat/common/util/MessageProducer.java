@@ -1,20 +1,27 @@
 package com.dataart.vkharitonov.practicechat.common.util;
 
+import com.dataart.vkharitonov.practicechat.common.json.Framing;
 import com.dataart.vkharitonov.practicechat.common.json.Message;
-import com.google.gson.stream.JsonReader;
-import com.google.gson.stream.JsonToken;
 
-import java.io.BufferedReader;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ThreadFactory;
 
 /**
- * Reads messages from an input stream asynchronously and notifies the consumer about them
+ * Reads messages from an input stream asynchronously and notifies the consumer about them. Messages are delimited by
+ * newlines until the framing is changed with {@link #setFraming(Framing)}.
  */
 public final class MessageProducer {
 
-    private ReadThread readThread;
+    /**
+     * Maximum length of a single message in bytes
+     */
+    public static final int MAX_MESSAGE_LENGTH = 1024 * 1024;
+
+    private Thread readThread;
+    private volatile Framing framing = Framing.NEWLINE;
 
     /**
      * Starts reading messages from {@code inputStream} and notifying the {@code consumer}. The consumer takes ownership
@@ -25,14 +32,37 @@ public final class MessageProducer {
      * @param consumer    a consumer
      */
     public void start(InputStream inputStream, Consumer consumer) {
+        start(inputStream, consumer, Thread::new);
+    }
+
+    /**
+     * Same as {@link #start(InputStream, Consumer)}, but the reading thread is created by the {@code threadFactory}
+     *
+     * @param inputStream   an input stream to read from
+     * @param consumer      a consumer
+     * @param threadFactory factory of the reading thread
+     */
+    public void start(InputStream inputStream, Consumer consumer, ThreadFactory threadFactory) {
         if (consumer == null) {
             throw new NullPointerException();
         }
 
-        readThread = new ReadThread(inputStream, consumer);
+        readThread = threadFactory.newThread(new ReadLoop(inputStream, consumer));
         readThread.start();
     }
 
+    /**
+     * Changes the framing of the messages which follow the current one. Should be called by the consumer, so that the
+     * change takes effect right after the message which negotiated it
+     */
+    public void setFraming(Framing framing) {
+        if (framing == null) {
+            throw new NullPointerException();
+        }
+
+        this.framing = framing;
+    }
+
     /**
      * Stops reading from the stream. Consumer will be notified by onCompleted method. The InputStream which was
      * supplied to {@link #start(InputStream, Consumer)} method will be closed
@@ -65,32 +95,40 @@ public final class MessageProducer {
         void onCompleted();
     }
 
-    private static class ReadThread extends Thread {
+    private class ReadLoop implements Runnable {
 
         private InputStream inputStream;
         private Consumer consumer;
 
-        private ReadThread(InputStream inputStream, Consumer consumer) {
+        private ReadLoop(InputStream inputStream, Consumer consumer) {
             this.inputStream = inputStream;
             this.consumer = consumer;
         }
 
         @Override
         public void run() {
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
-                 JsonReader reader = new JsonReader(in)
-            ) {
-                reader.setLenient(true);
-                while (!isInterrupted() && reader.peek() != JsonToken.END_DOCUMENT) {
-                    Message message = JsonUtils.GSON.fromJson(reader, Message.class);
-
+            Thread thread = Thread.currentThread();
+            Framing currentFraming = framing;
+            FrameDecoder decoder = FrameDecoder.create(currentFraming, MAX_MESSAGE_LENGTH, null);
+
+            // The channel is interruptible, so stop() doesn't have to wait for the next message
+            try (ReadableByteChannel channel = Channels.newChannel(inputStream)) {
+                while (!thread.isInterrupted()) {
+                    Message message = decoder.next();
                     if (message != null) {
                         consumer.onNext(message);
-                    } else {
-                        interrupt();
+
+                        if (framing != currentFraming) {
+                            currentFraming = framing;
+                            decoder = FrameDecoder.create(currentFraming, MAX_MESSAGE_LENGTH, decoder.takeRemaining());
+                        }
+                    } else if (decoder.readFrom(channel) < 0) {
+                        break;
                     }
                 }
 
+                consumer.onCompleted();
+            } catch (ClosedByInterruptException e) {
                 consumer.onCompleted();
             } catch (Exception e) {
                 consumer.onError(e);
@@ -0,0 +1,48 @@
+package com.dataart.vkharitonov.practicechat.common.util;
+
+import com.dataart.vkharitonov.practicechat.common.json.Message;
+import com.google.gson.annotations.SerializedName;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Wire names of the {@link Message.MessageType}s, as declared by their {@link SerializedName} annotations
+ */
+final class MessageTypes {
+
+    private static final Map<Message.MessageType, String> NAMES = new EnumMap<>(Message.MessageType.class);
+    private static final Map<String, Message.MessageType> TYPES = new HashMap<>();
+
+    static {
+        for (Message.MessageType type : Message.MessageType.values()) {
+            String name = serializedName(type);
+            NAMES.put(type, name);
+            TYPES.put(name, type);
+        }
+    }
+
+    private MessageTypes() {
+    }
+
+    static String name(Message.MessageType type) {
+        return NAMES.get(type);
+    }
+
+    /**
+     * @return message type, or null if the name is unknown
+     */
+    static Message.MessageType forName(String name) {
+        return TYPES.get(name);
+    }
+
+    private static String serializedName(Message.MessageType type) {
+        try {
+            SerializedName name = Message.MessageType.class.getField(type.name()).getAnnotation(SerializedName.class);
+            return name != null ? name.value() : type.name();
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
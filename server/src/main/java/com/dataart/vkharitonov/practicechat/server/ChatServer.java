@@ -1,12 +1,29 @@
 package com.dataart.vkharitonov.practicechat.server;
 
+import com.dataart.vkharitonov.practicechat.server.db.BatchPolicy;
+import com.dataart.vkharitonov.practicechat.server.db.BulkheadPolicy;
 import com.dataart.vkharitonov.practicechat.server.db.DbHelper;
+import com.dataart.vkharitonov.practicechat.server.db.MemoryStorage;
+import com.dataart.vkharitonov.practicechat.server.db.Storage;
+import com.dataart.vkharitonov.practicechat.server.db.Workload;
+import com.dataart.vkharitonov.practicechat.server.journal.DirectMessageJournal;
+import com.dataart.vkharitonov.practicechat.server.journal.JournalPolicy;
+import com.dataart.vkharitonov.practicechat.server.journal.MappedMessageJournal;
+import com.dataart.vkharitonov.practicechat.server.journal.MessageJournal;
+import com.dataart.vkharitonov.practicechat.server.net.BlockingConnectionManager;
 import com.dataart.vkharitonov.practicechat.server.net.ConnectionManager;
+import com.dataart.vkharitonov.practicechat.server.net.FlushPolicy;
 import com.dataart.vkharitonov.practicechat.server.net.InteractorManager;
+import com.dataart.vkharitonov.practicechat.server.net.NioConnectionManager;
+import com.dataart.vkharitonov.practicechat.server.net.OverflowPolicy;
+import com.dataart.vkharitonov.practicechat.server.utils.ThreadModel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -15,51 +32,153 @@ public class ChatServer {
     private final static Logger log = LoggerFactory.getLogger(ChatServer.class.getName());
 
     private final int port;
+    private final Storage.Engine storageEngine;
     private final String dbServerName;
     private final String dbName;
     private final String dbUsername;
     private final String dbPassword;
+    private final ConnectionManager.Transport transport;
+    private final int ioThreads;
+    private final ThreadModel threadModel;
+    private final int writerThreads;
+    private final FlushPolicy flushPolicy;
+    private final OverflowPolicy overflowPolicy;
+    private final BulkheadPolicy bulkheadPolicy;
+    private final BatchPolicy batchPolicy;
+    private final long historyCacheMessages;
+    private final JournalPolicy journalPolicy;
 
+    private Storage storage;
+    private MessageJournal journal;
     private ConnectionManager connectionManager;
     private InteractorManager interactorManager;
 
-    private ChatServer(int port, String dbServerName, String dbName, String dbUsername, String dbPassword) {
+    private ChatServer(int port, Storage.Engine storageEngine, String dbServerName, String dbName,
+                       String dbUsername, String dbPassword, ConnectionManager.Transport transport, int ioThreads,
+                       ThreadModel threadModel, int writerThreads, FlushPolicy flushPolicy,
+                       OverflowPolicy overflowPolicy, BulkheadPolicy bulkheadPolicy,
+                       BatchPolicy batchPolicy, long historyCacheMessages, JournalPolicy journalPolicy) {
         this.port = port;
+        this.storageEngine = storageEngine;
         this.dbServerName = dbServerName;
         this.dbName = dbName;
         this.dbUsername = dbUsername;
         this.dbPassword = dbPassword;
+        this.transport = transport;
+        this.ioThreads = ioThreads;
+        this.writerThreads = writerThreads;
+        this.flushPolicy = flushPolicy;
+        this.overflowPolicy = overflowPolicy;
+        this.bulkheadPolicy = bulkheadPolicy;
+        this.batchPolicy = batchPolicy;
+        this.historyCacheMessages = historyCacheMessages;
+        this.journalPolicy = journalPolicy;
+
+        if (threadModel.isSupported()) {
+            this.threadModel = threadModel;
+        } else {
+            log.warn("{} thread model is not supported by this JVM, falling back to {}", threadModel,
+                     ThreadModel.PLATFORM);
+            this.threadModel = ThreadModel.PLATFORM;
+        }
     }
 
     public void start() throws IOException {
-        DbHelper.init(dbName, dbServerName, dbUsername, dbPassword);
+        storage = createStorage();
+        // Replays the messages left in the journal before new ones are accepted
+        journal = journalPolicy != null ? MappedMessageJournal.open(journalPolicy, storage)
+                                        : new DirectMessageJournal(storage);
 
-        connectionManager = new ConnectionManager();
-        interactorManager = new InteractorManager();
+        connectionManager = createConnectionManager();
+        interactorManager = new InteractorManager(threadModel, writerThreads, flushPolicy, overflowPolicy, storage,
+                                                  journal);
 
         connectionManager.start(port, interactorManager);
-        log.info("Started server on port " + port);
+        log.info("Started server on port {} using {} transport, {} threads and {} storage", port, transport,
+                 threadModel, storageEngine);
     }
 
+    /**
+     * Stops whatever {@link #start()} has managed to start, e.g. only the storage if replaying the journal failed
+     */
     public void stop() {
-        connectionManager.stop();
-        interactorManager.shutdown();
-        DbHelper.close();
+        if (connectionManager != null) {
+            connectionManager.stop();
+        }
+
+        if (interactorManager != null) {
+            interactorManager.shutdown();
+        }
+
+        if (journal != null) {
+            journal.close();
+        }
+
+        if (storage != null) {
+            storage.close();
+        }
+    }
+
+    private Storage createStorage() {
+        switch (storageEngine) {
+            case MEMORY:
+                return new MemoryStorage();
+            case POSTGRES:
+            default:
+                return new DbHelper(dbName, dbServerName, dbUsername, dbPassword, threadModel, bulkheadPolicy,
+                                    batchPolicy, historyCacheMessages);
+        }
+    }
+
+    private ConnectionManager createConnectionManager() {
+        switch (transport) {
+            case NIO:
+                return new NioConnectionManager(ioThreads);
+            case BLOCKING:
+            default:
+                return new BlockingConnectionManager(threadModel);
+        }
     }
 
     public static class Builder {
 
         private int port;
+        private Storage.Engine storageEngine = Storage.Engine.POSTGRES;
         private String dbServerName;
         private String dbName;
         private String dbUsername;
         private String dbPassword;
+        private ConnectionManager.Transport transport = ConnectionManager.Transport.BLOCKING;
+        private int ioThreads = Runtime.getRuntime().availableProcessors();
+        private ThreadModel threadModel = ThreadModel.PLATFORM;
+        private int writerThreads = Runtime.getRuntime().availableProcessors();
+        private int flushMaxBytes = 8192;
+        private long flushMaxDelayMillis = 0;
+        private long outboundMaxBytes = 1024 * 1024;
+        private OverflowPolicy.Action outboundOverflowAction = OverflowPolicy.Action.DISCONNECT;
+        private final Map<Workload, BulkheadPolicy.Quota> dbQuotas = new EnumMap<>(Workload.class);
+        private int dbBatchSize = 128;
+        private long dbBatchMaxDelayMillis = 0;
+        private long historyCacheMessages = 100000;
+        private Path journalDir;
+        private int journalSegmentBytes = 64 * 1024 * 1024;
+        private boolean journalForce;
 
         public Builder port(int port) {
             this.port = port;
             return this;
         }
 
+        /**
+         * Where users, rooms and messages are stored. The DB options are only used by {@link
+         * Storage.Engine#POSTGRES}
+         */
+        public Builder storage(Storage.Engine storageEngine) {
+            this.storageEngine = storageEngine;
+            checkNotNull(storageEngine, "Storage engine must not be null");
+            return this;
+        }
+
         public Builder dbServerName(String dbServerName) {
             this.dbServerName = dbServerName;
             checkNotNull(dbServerName, "DB serverName must not be null");
@@ -84,8 +203,142 @@ public class ChatServer {
             return this;
         }
 
+        public Builder transport(ConnectionManager.Transport transport) {
+            this.transport = transport;
+            checkNotNull(transport, "Transport must not be null");
+            return this;
+        }
+
+        /**
+         * Number of event loop threads for {@link ConnectionManager.Transport#NIO} transport
+         */
+        public Builder ioThreads(int ioThreads) {
+            this.ioThreads = ioThreads;
+            return this;
+        }
+
+        public Builder threadModel(ThreadModel threadModel) {
+            this.threadModel = threadModel;
+            checkNotNull(threadModel, "Thread model must not be null");
+            return this;
+        }
+
+        /**
+         * Number of threads shared by all connections to write messages to the clients
+         */
+        public Builder writerThreads(int writerThreads) {
+            this.writerThreads = writerThreads;
+            return this;
+        }
+
+        /**
+         * Messages buffered for a client are flushed as soon as their size reaches this number of bytes
+         */
+        public Builder flushMaxBytes(int flushMaxBytes) {
+            this.flushMaxBytes = flushMaxBytes;
+            return this;
+        }
+
+        /**
+         * How long a message to a client may wait for other messages to be sent together
+         */
+        public Builder flushMaxDelayMillis(long flushMaxDelayMillis) {
+            this.flushMaxDelayMillis = flushMaxDelayMillis;
+            return this;
+        }
+
+        /**
+         * Maximum size of messages waiting to be sent to a single client
+         */
+        public Builder outboundMaxBytes(long outboundMaxBytes) {
+            this.outboundMaxBytes = outboundMaxBytes;
+            return this;
+        }
+
+        /**
+         * What to do when a client doesn't read messages fast enough and exceeds {@link #outboundMaxBytes(long)}
+         */
+        public Builder outboundOverflowAction(OverflowPolicy.Action outboundOverflowAction) {
+            this.outboundOverflowAction = outboundOverflowAction;
+            checkNotNull(outboundOverflowAction, "Overflow action must not be null");
+            return this;
+        }
+
+        /**
+         * Connections and queue of a class of DB work, which no other class can use up. The connection pool holds the
+         * connections of all workloads. Workloads without a quota get their defaults
+         *
+         * @param maxConnections maximum number of connections used by the workload at the same time
+         * @param maxQueued      maximum number of tasks waiting for a connection, further tasks fail right away
+         */
+        public Builder dbQuota(Workload workload, int maxConnections, int maxQueued) {
+            checkNotNull(workload, "Workload must not be null");
+            dbQuotas.put(workload, new BulkheadPolicy.Quota(maxConnections, maxQueued));
+            return this;
+        }
+
+        /**
+         * Maximum number of chat messages inserted into the DB in one transaction
+         */
+        public Builder dbBatchSize(int dbBatchSize) {
+            this.dbBatchSize = dbBatchSize;
+            return this;
+        }
+
+        /**
+         * How long a chat message may wait to be inserted into the DB together with other messages. Messages which
+         * arrive while a batch is being committed are always written together
+         */
+        public Builder dbBatchMaxDelayMillis(long dbBatchMaxDelayMillis) {
+            this.dbBatchMaxDelayMillis = dbBatchMaxDelayMillis;
+            return this;
+        }
+
+        /**
+         * Maximum number of recent messages kept in memory to serve history requests without querying the DB, 0
+         * disables the cache
+         */
+        public Builder historyCacheMessages(long historyCacheMessages) {
+            this.historyCacheMessages = historyCacheMessages;
+            return this;
+        }
+
+        /**
+         * Directory of the message journal. If set, messages are delivered as soon as they are written to the journal
+         * and are written to the DB in the background. Otherwise they are delivered after they are written to the DB
+         */
+        public Builder journalDir(Path journalDir) {
+            this.journalDir = journalDir;
+            return this;
+        }
+
+        /**
+         * Size of a journal segment file
+         */
+        public Builder journalSegmentBytes(int journalSegmentBytes) {
+            this.journalSegmentBytes = journalSegmentBytes;
+            return this;
+        }
+
+        /**
+         * Whether a message is forced to the disk before it is delivered, so that it survives a crash of the OS
+         */
+        public Builder journalForce(boolean journalForce) {
+            this.journalForce = journalForce;
+            return this;
+        }
+
         public ChatServer create() {
-            return new ChatServer(port, dbServerName, dbName, dbUsername, dbPassword);
+            JournalPolicy journalPolicy = journalDir != null ?
+                    new JournalPolicy(journalDir, journalSegmentBytes, journalForce) : null;
+
+            return new ChatServer(port, storageEngine, dbServerName, dbName, dbUsername, dbPassword, transport,
+                                  ioThreads, threadModel, writerThreads,
+                                  new FlushPolicy(flushMaxBytes, flushMaxDelayMillis),
+                                  new OverflowPolicy(outboundMaxBytes, outboundOverflowAction),
+                                  new BulkheadPolicy(dbQuotas),
+                                  new BatchPolicy(dbBatchSize, dbBatchMaxDelayMillis), historyCacheMessages,
+                                  journalPolicy);
         }
     }
 }
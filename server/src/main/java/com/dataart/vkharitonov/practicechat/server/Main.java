@@ -1,5 +1,10 @@
 package com.dataart.vkharitonov.practicechat.server;
 
+import com.dataart.vkharitonov.practicechat.server.db.Storage;
+import com.dataart.vkharitonov.practicechat.server.db.Workload;
+import com.dataart.vkharitonov.practicechat.server.net.ConnectionManager;
+import com.dataart.vkharitonov.practicechat.server.net.OverflowPolicy;
+import com.dataart.vkharitonov.practicechat.server.utils.ThreadModel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -8,6 +13,8 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Locale;
 import java.util.Objects;
 import java.util.Properties;
 
@@ -52,10 +59,30 @@ public class Main {
                                    "\n" +
                                    "Required properties:\n" +
                                    "    server.port = \n" +
-                                   "    db.name = \n" +
-                                   "    db.serverName = \n" +
-                                   "    db.username = \n" +
-                                   "    db.password = ");
+                                   "    db.name = <unless db.engine = memory>\n" +
+                                   "    db.serverName = <unless db.engine = memory>\n" +
+                                   "    db.username = <unless db.engine = memory>\n" +
+                                   "    db.password = <unless db.engine = memory>\n" +
+                                   "\n" +
+                                   "Optional properties:\n" +
+                                   "    db.engine = postgres | memory\n" +
+                                   "    server.transport = blocking | nio\n" +
+                                   "    server.ioThreads = <number of nio event loops>\n" +
+                                   "    server.threadModel = platform | virtual\n" +
+                                   "    server.writerThreads = <number of threads writing to clients>\n" +
+                                   "    server.flushMaxBytes = <bytes buffered per client before flushing>\n" +
+                                   "    server.flushMaxDelayMs = <how long a message may wait to be batched>\n" +
+                                   "    server.outboundMaxBytes = <bytes queued per client>\n" +
+                                   "    server.outboundOverflow = drop_oldest | drop_non_critical | disconnect\n" +
+                                   "    db.<workload>.maxConnections = <connections of the workload>\n" +
+                                   "    db.<workload>.maxQueued = <DB tasks of the workload waiting for a connection>\n" +
+                                   "        where <workload> = auth | messageWrites | historyReads | roomAdmin\n" +
+                                   "    db.batchSize = <chat messages inserted in one transaction>\n" +
+                                   "    db.batchMaxDelayMs = <how long a message may wait to be inserted>\n" +
+                                   "    db.historyCacheMessages = <recent messages kept in memory, 0 disables>\n" +
+                                   "    journal.dir = <message journal directory, unset disables the journal>\n" +
+                                   "    journal.segmentBytes = <size of a journal file>\n" +
+                                   "    journal.force = <true to force messages to disk before delivery>");
         System.exit(1);
     }
 
@@ -64,13 +91,107 @@ public class Main {
             Properties props = new Properties();
             props.load(propertiesFile);
 
-            return new ChatServer.Builder().port(Integer.parseInt(props.getProperty("server.port")))
-                                           .dbServerName(props.getProperty("db.serverName"))
-                                           .dbName(props.getProperty("db.name"))
-                                           .dbUsername(props.getProperty("db.username"))
-                                           .dbPassword(props.getProperty("db.password"))
-                                           .create();
-        } catch (IOException | NumberFormatException e) {
+            ChatServer.Builder builder = new ChatServer.Builder();
+            builder.port(Integer.parseInt(props.getProperty("server.port")));
+
+            Storage.Engine storage = Storage.Engine.POSTGRES;
+            String dbEngine = props.getProperty("db.engine");
+            if (dbEngine != null) {
+                storage = Storage.Engine.valueOf(dbEngine.trim().toUpperCase(Locale.ROOT));
+                builder.storage(storage);
+            }
+
+            if (storage == Storage.Engine.POSTGRES) {
+                builder.dbServerName(props.getProperty("db.serverName"))
+                       .dbName(props.getProperty("db.name"))
+                       .dbUsername(props.getProperty("db.username"))
+                       .dbPassword(props.getProperty("db.password"));
+            }
+
+            String transport = props.getProperty("server.transport");
+            if (transport != null) {
+                builder.transport(ConnectionManager.Transport.valueOf(transport.trim().toUpperCase(Locale.ROOT)));
+            }
+
+            String ioThreads = props.getProperty("server.ioThreads");
+            if (ioThreads != null) {
+                builder.ioThreads(Integer.parseInt(ioThreads.trim()));
+            }
+
+            String threadModel = props.getProperty("server.threadModel");
+            if (threadModel != null) {
+                builder.threadModel(ThreadModel.valueOf(threadModel.trim().toUpperCase(Locale.ROOT)));
+            }
+
+            String writerThreads = props.getProperty("server.writerThreads");
+            if (writerThreads != null) {
+                builder.writerThreads(Integer.parseInt(writerThreads.trim()));
+            }
+
+            String flushMaxBytes = props.getProperty("server.flushMaxBytes");
+            if (flushMaxBytes != null) {
+                builder.flushMaxBytes(Integer.parseInt(flushMaxBytes.trim()));
+            }
+
+            String flushMaxDelay = props.getProperty("server.flushMaxDelayMs");
+            if (flushMaxDelay != null) {
+                builder.flushMaxDelayMillis(Long.parseLong(flushMaxDelay.trim()));
+            }
+
+            String outboundMaxBytes = props.getProperty("server.outboundMaxBytes");
+            if (outboundMaxBytes != null) {
+                builder.outboundMaxBytes(Long.parseLong(outboundMaxBytes.trim()));
+            }
+
+            String outboundOverflow = props.getProperty("server.outboundOverflow");
+            if (outboundOverflow != null) {
+                builder.outboundOverflowAction(
+                        OverflowPolicy.Action.valueOf(outboundOverflow.trim().toUpperCase(Locale.ROOT)));
+            }
+
+            for (Workload workload : Workload.values()) {
+                String maxConnections = props.getProperty("db." + workload.getName() + ".maxConnections");
+                String maxQueued = props.getProperty("db." + workload.getName() + ".maxQueued");
+                if (maxConnections != null || maxQueued != null) {
+                    builder.dbQuota(workload, maxConnections != null ? Integer.parseInt(maxConnections.trim())
+                                                                     : workload.getDefaultMaxConnections(),
+                                    maxQueued != null ? Integer.parseInt(maxQueued.trim())
+                                                      : workload.getDefaultMaxQueued());
+                }
+            }
+
+            String dbBatchSize = props.getProperty("db.batchSize");
+            if (dbBatchSize != null) {
+                builder.dbBatchSize(Integer.parseInt(dbBatchSize.trim()));
+            }
+
+            String dbBatchMaxDelay = props.getProperty("db.batchMaxDelayMs");
+            if (dbBatchMaxDelay != null) {
+                builder.dbBatchMaxDelayMillis(Long.parseLong(dbBatchMaxDelay.trim()));
+            }
+
+            String historyCacheMessages = props.getProperty("db.historyCacheMessages");
+            if (historyCacheMessages != null) {
+                builder.historyCacheMessages(Long.parseLong(historyCacheMessages.trim()));
+            }
+
+            String journalDir = props.getProperty("journal.dir");
+            if (journalDir != null) {
+                builder.journalDir(Paths.get(journalDir.trim()));
+            }
+
+            String journalSegmentBytes = props.getProperty("journal.segmentBytes");
+            if (journalSegmentBytes != null) {
+                builder.journalSegmentBytes(Integer.parseInt(journalSegmentBytes.trim()));
+            }
+
+            String journalForce = props.getProperty("journal.force");
+            if (journalForce != null) {
+                builder.journalForce(Boolean.parseBoolean(journalForce.trim()));
+            }
+
+            return builder.create();
+        } catch (IOException | IllegalArgumentException e) {
             return null;
         }
     }
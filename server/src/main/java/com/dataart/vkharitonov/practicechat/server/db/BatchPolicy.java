@@ -0,0 +1,45 @@
+package com.dataart.vkharitonov.practicechat.server.db;
+
+/**
+ * Determines when the messages waiting to be stored are written to the database in a single transaction
+ */
+public final class BatchPolicy {
+
+    private final int maxBatchSize;
+    private final long maxDelayMillis;
+
+    /**
+     * @param maxBatchSize   maximum number of messages inserted in one transaction. Pending messages are written as
+     *                       soon as there are that many of them
+     * @param maxDelayMillis how long a message may wait for other messages to be inserted together. 0 means that
+     *                       pending messages are written right away
+     */
+    public BatchPolicy(int maxBatchSize, long maxDelayMillis) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("Max batch size must be positive");
+        }
+
+        if (maxDelayMillis < 0) {
+            throw new IllegalArgumentException("Max delay must not be negative");
+        }
+
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchPolicy{" +
+                "maxBatchSize=" + maxBatchSize +
+                ", maxDelayMillis=" + maxDelayMillis +
+                '}';
+    }
+}
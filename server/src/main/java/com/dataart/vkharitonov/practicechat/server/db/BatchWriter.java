@@ -0,0 +1,293 @@
+package com.dataart.vkharitonov.practicechat.server.db;
+
+import com.dataart.vkharitonov.practicechat.server.metrics.MetricGroup;
+import com.dataart.vkharitonov.practicechat.server.metrics.Timer;
+import com.dataart.vkharitonov.practicechat.server.utils.FutureUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Group commit for inserts coming from many senders. Rows are collected and written by a single statement in one
+ * transaction, when there are {@link BatchPolicy#getMaxBatchSize()} of them, or after {@link
+ * BatchPolicy#getMaxDelayMillis()}.
+ * <p>
+ * Only one batch is written at a time. Rows added during a commit are written right after it, so the batches grow
+ * with the load and the commit rate stays bounded.
+ *
+ * @param <T> type of the rows
+ */
+final class BatchWriter<T> {
+
+    private final static Logger log = LoggerFactory.getLogger(BatchWriter.class.getName());
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private final Dao<?> dao;
+    private final ScheduledExecutorService timer;
+    private final BatchPolicy policy;
+    private final BatchInsert<T> insert;
+
+    private final Queue<PendingRow<T>> rows = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingRows = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean isFlushing = new AtomicBoolean();
+
+    private final MetricGroup metrics;
+    private final LongAdder batches;
+    private final LongAdder rowsWritten;
+    private final LongAdder failedBatches;
+    private final LongAccumulator maxBatchSize = new LongAccumulator(Math::max, 0);
+    private final Timer flushInterval;
+    private final Timer commitLatency;
+    private final Timer rowLatency;
+
+    private long lastFlushNanos;
+    private volatile CompletableFuture<?> lastBatch = CompletableFuture.completedFuture(null);
+    private volatile boolean isClosed;
+
+    /**
+     * @param name   name of the batched table, used for the metrics
+     * @param dao    provides the connections
+     * @param timer  schedules the delayed flushes
+     * @param insert writes a batch of rows
+     */
+    BatchWriter(String name, Dao<?> dao, ScheduledExecutorService timer, BatchPolicy policy, BatchInsert<T> insert) {
+        this.dao = dao;
+        this.timer = timer;
+        this.policy = policy;
+        this.insert = insert;
+
+        metrics = new MetricGroup("BatchWriter", name);
+        batches = metrics.counter("batches");
+        rowsWritten = metrics.counter("rows");
+        failedBatches = metrics.counter("failedBatches");
+        metrics.gauge("pendingRows", pendingRows::get);
+        metrics.gauge("maxBatchSize", maxBatchSize::get);
+        metrics.gauge("avgBatchSize", () -> {
+            long count = batches.sum();
+            return count == 0 ? 0 : (double) rowsWritten.sum() / count;
+        });
+        flushInterval = metrics.timer("flushInterval");
+        commitLatency = metrics.timer("commit");
+        rowLatency = metrics.timer("rowLatency");
+        metrics.register();
+    }
+
+    /**
+     * Queues the row for insertion
+     *
+     * @return {@link CompletableFuture} that completes with the id of the row when the transaction containing it is
+     * committed
+     */
+    CompletableFuture<Long> add(T row) {
+        if (isClosed) {
+            return FutureUtils.failure(new IllegalStateException("Writer is closed"));
+        }
+
+        PendingRow<T> pending = new PendingRow<>(row);
+        rows.add(pending);
+        int count = pendingRows.incrementAndGet();
+
+        if (count >= policy.getMaxBatchSize() || policy.getMaxDelayMillis() == 0) {
+            flush();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            timer.schedule(() -> {
+                flushScheduled.set(false);
+                flush();
+            }, policy.getMaxDelayMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        return pending.future;
+    }
+
+    /**
+     * Writes the pending rows and waits for them to be committed. No more rows are accepted
+     */
+    void close() {
+        isClosed = true;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MILLIS);
+        try {
+            while (!rows.isEmpty() || isFlushing.get()) {
+                flush();
+                lastBatch.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+        } catch (TimeoutException e) {
+            log.warn("{} rows haven't been written in {} ms", pendingRows.get(), CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Failed rows have been reported to the senders
+        }
+
+        metrics.unregister();
+    }
+
+    private void flush() {
+        if (!isFlushing.compareAndSet(false, true)) {
+            // The rows are picked up as soon as the current batch is committed
+            return;
+        }
+
+        List<PendingRow<T>> batch = new ArrayList<>();
+        PendingRow<T> row;
+        while (batch.size() < policy.getMaxBatchSize() && (row = rows.poll()) != null) {
+            batch.add(row);
+        }
+        pendingRows.addAndGet(-batch.size());
+
+        if (batch.isEmpty()) {
+            isFlushing.set(false);
+            if (!rows.isEmpty()) {
+                // Added concurrently after the poll
+                flush();
+            }
+
+            return;
+        }
+
+        long now = System.nanoTime();
+        if (lastFlushNanos != 0) {
+            flushInterval.record(now - lastFlushNanos);
+        }
+        lastFlushNanos = now;
+
+        CompletableFuture<Void> written;
+        try {
+            written = dao.supplyAsync(connection -> {
+                write(connection, batch);
+                return null;
+            });
+        } catch (RuntimeException e) {
+            // The executor has been shut down
+            written = FutureUtils.failure(e);
+        }
+
+        lastBatch = written;
+        written.whenComplete((r, e) -> {
+            long completed = System.nanoTime();
+            for (PendingRow<T> pending : batch) {
+                if (e != null) {
+                    pending.future.completeExceptionally(e);
+                } else if (pending.error != null) {
+                    pending.future.completeExceptionally(pending.error);
+                } else {
+                    rowLatency.record(completed - pending.addedNanos);
+                    pending.future.complete(pending.id);
+                }
+            }
+
+            isFlushing.set(false);
+            if (!rows.isEmpty()) {
+                flush();
+            }
+        });
+    }
+
+    /**
+     * Inserts the batch in one transaction. If it fails, the rows are inserted one by one, so that a single bad row
+     * doesn't fail the whole batch. Sets the id or the error of every row
+     */
+    private void write(Connection connection, List<PendingRow<T>> batch) throws SQLException {
+        List<T> values = new ArrayList<>(batch.size());
+        batch.forEach(pending -> values.add(pending.row));
+
+        long start = System.nanoTime();
+        try {
+            List<Long> ids = inTransaction(connection, values);
+            commitLatency.recordSince(start);
+            batches.increment();
+            rowsWritten.add(values.size());
+            maxBatchSize.accumulate(values.size());
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).id = ids.get(i);
+            }
+
+            return;
+        } catch (SQLException e) {
+            failedBatches.increment();
+            if (batch.size() == 1) {
+                batch.get(0).error = e;
+                return;
+            }
+
+            // The message contains the whole statement, which is too long to log
+            log.warn("Batch of {} rows failed with SQL state {}, inserting them one by one", batch.size(),
+                     e.getSQLState());
+        }
+
+        for (PendingRow<T> pending : batch) {
+            try {
+                pending.id = inTransaction(connection, Collections.singletonList(pending.row)).get(0);
+                rowsWritten.increment();
+            } catch (SQLException e) {
+                pending.error = e;
+            }
+        }
+    }
+
+    /**
+     * @return ids of the committed rows
+     */
+    private List<Long> inTransaction(Connection connection, List<T> values) throws SQLException {
+        return Dao.inTransaction(connection, conn -> {
+            List<Long> ids = insert.insert(conn, values);
+            if (ids.size() != values.size()) {
+                throw new SQLException("Expected " + values.size() + " ids, got " + ids.size());
+            }
+
+            return ids;
+        });
+    }
+
+    /**
+     * Repeats the row of a multi-row `VALUES` list
+     *
+     * @param row  values of a single row in parentheses, e.g. {@code "(?, ?)"}
+     * @param rows number of rows
+     */
+    static String values(String row, int rows) {
+        return String.join(", ", Collections.nCopies(rows, row));
+    }
+
+    /**
+     * Writes rows to the database
+     */
+    interface BatchInsert<T> {
+
+        /**
+         * @return generated ids of the rows, in the same order
+         */
+        List<Long> insert(Connection connection, List<T> rows) throws SQLException;
+    }
+
+    private static class PendingRow<T> {
+
+        private final T row;
+        private final long addedNanos = System.nanoTime();
+        private final CompletableFuture<Long> future = new CompletableFuture<>();
+
+        // Set by the DB thread, read after the batch completes
+        private Long id;
+        private SQLException error;
+
+        private PendingRow(T row) {
+            this.row = row;
+        }
+    }
+}
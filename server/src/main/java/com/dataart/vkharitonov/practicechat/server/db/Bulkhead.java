@@ -0,0 +1,121 @@
+package com.dataart.vkharitonov.practicechat.server.db;
+
+import com.dataart.vkharitonov.practicechat.server.metrics.MetricGroup;
+import com.dataart.vkharitonov.practicechat.server.metrics.Timer;
+import com.dataart.vkharitonov.practicechat.server.utils.FutureUtils;
+import com.dataart.vkharitonov.practicechat.server.utils.ThreadModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Executor and connection quota of a single {@link Workload}. Tasks wait for a thread and then for one of the
+ * connections of the workload. When too many tasks are waiting, new ones fail right away with {@link
+ * RejectedExecutionException} instead of queueing up without a bound.
+ */
+final class Bulkhead {
+
+    private final static Logger log = LoggerFactory.getLogger(Bulkhead.class.getName());
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private final Workload workload;
+    private final BulkheadPolicy.Quota quota;
+    private final ExecutorService executor;
+    private final Semaphore connections;
+
+    // Submitted tasks which don't have a connection yet
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final MetricGroup metrics;
+    private final LongAdder rejected;
+    private final Timer waitLatency;
+    private final Timer holdLatency;
+
+    Bulkhead(Workload workload, BulkheadPolicy.Quota quota, ThreadModel threadModel) {
+        this.workload = workload;
+        this.quota = quota;
+        executor = threadModel.newExecutor("db-" + workload.getName(), quota.getMaxConnections());
+        connections = new Semaphore(quota.getMaxConnections());
+
+        metrics = new MetricGroup("Bulkhead", workload.getName());
+        metrics.gauge("queued", queued::get);
+        metrics.gauge("activeConnections", active::get);
+        metrics.gauge("maxConnections", quota::getMaxConnections);
+        rejected = metrics.counter("rejected");
+        waitLatency = metrics.timer("wait");
+        holdLatency = metrics.timer("hold");
+        metrics.register();
+    }
+
+    /**
+     * Runs the {@code work} on a connection of this workload
+     *
+     * @return {@link CompletableFuture} that completes with the result of the work, or fails with {@link
+     * RejectedExecutionException} if the queue is full or the bulkhead is closed
+     */
+    <U> CompletableFuture<U> supplyAsync(DataSource dataSource, Dao.Supplier<U> work) {
+        if (queued.incrementAndGet() > quota.getMaxQueued()) {
+            queued.decrementAndGet();
+            rejected.increment();
+            return FutureUtils.failure(new RejectedExecutionException(
+                    "Too many queued " + workload.getName() + " DB tasks"));
+        }
+
+        long submitted = System.nanoTime();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                connections.acquireUninterruptibly();
+                queued.decrementAndGet();
+                active.incrementAndGet();
+                try (Connection connection = dataSource.getConnection()) {
+                    long start = System.nanoTime();
+                    waitLatency.record(start - submitted);
+                    try {
+                        return work.get(connection);
+                    } finally {
+                        holdLatency.recordSince(start);
+                    }
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    active.decrementAndGet();
+                    connections.release();
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            // The executor has been shut down
+            queued.decrementAndGet();
+            return FutureUtils.failure(e);
+        }
+    }
+
+    /**
+     * Rejects new tasks and waits for the submitted ones to complete, so that none of them uses the data source after
+     * it's closed
+     */
+    void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                log.warn("{} DB tasks haven't completed in {} ms", workload.getName(), CLOSE_TIMEOUT_MILLIS);
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        metrics.unregister();
+    }
+}
@@ -0,0 +1,82 @@
+package com.dataart.vkharitonov.practicechat.server.db;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Connections and queue of each {@link Workload}, see {@link Bulkhead}. The connection pool holds the connections of
+ * all workloads
+ */
+public final class BulkheadPolicy {
+
+    private final Map<Workload, Quota> quotas = new EnumMap<>(Workload.class);
+
+    /**
+     * @param quotas quotas of the workloads, the workloads which aren't in the map get their default quotas
+     */
+    public BulkheadPolicy(Map<Workload, Quota> quotas) {
+        for (Workload workload : Workload.values()) {
+            Quota quota = quotas.get(workload);
+            this.quotas.put(workload, quota != null ? quota : new Quota(workload.getDefaultMaxConnections(),
+                                                                        workload.getDefaultMaxQueued()));
+        }
+    }
+
+    public Quota getQuota(Workload workload) {
+        return quotas.get(workload);
+    }
+
+    /**
+     * @return size of the connection pool
+     */
+    public int getMaxConnections() {
+        return quotas.values().stream().mapToInt(Quota::getMaxConnections).sum();
+    }
+
+    @Override
+    public String toString() {
+        return "BulkheadPolicy{" +
+                "quotas=" + quotas +
+                '}';
+    }
+
+    public static final class Quota {
+
+        private final int maxConnections;
+        private final int maxQueued;
+
+        /**
+         * @param maxConnections maximum number of connections used by the workload at the same time, also the number
+         *                       of platform threads
+         * @param maxQueued      maximum number of tasks waiting for a connection, further tasks are rejected
+         */
+        public Quota(int maxConnections, int maxQueued) {
+            if (maxConnections <= 0) {
+                throw new IllegalArgumentException("Max connections must be positive");
+            }
+
+            if (maxQueued < 0) {
+                throw new IllegalArgumentException("Max queued tasks must not be negative");
+            }
+
+            this.maxConnections = maxConnections;
+            this.maxQueued = maxQueued;
+        }
+
+        public int getMaxConnections() {
+            return maxConnections;
+        }
+
+        public int getMaxQueued() {
+            return maxQueued;
+        }
+
+        @Override
+        public String toString() {
+            return "Quota{" +
+                    "maxConnections=" + maxConnections +
+                    ", maxQueued=" + maxQueued +
+                    '}';
+        }
+    }
+}
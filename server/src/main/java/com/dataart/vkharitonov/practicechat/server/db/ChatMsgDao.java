@@ -1,86 +1,73 @@
 package com.dataart.vkharitonov.practicechat.server.db;
 
-import com.dataart.vkharitonov.practicechat.common.json.ChatMsg;
 import com.dataart.vkharitonov.practicechat.common.json.out.MsgHistoryOutMessage;
 import com.dataart.vkharitonov.practicechat.server.db.dto.ChatMsgDto;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import javax.sql.DataSource;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
-import java.util.stream.Collectors;
 
-public class ChatMsgDao extends Dao<ChatMsgDto> {
+/**
+ * Messages between two users
+ */
+public interface ChatMsgDao {
 
-    private final static Logger log = LoggerFactory.getLogger(ChatMsgDao.class.getName());
+    /**
+     * Reads the undelivered messages in chunks. Messages are stored in the order of sending, so their ids grow
+     *
+     * @param afterId id of the last message of the previous chunk, or 0
+     *
+     * @return up to {@code limit} messages to {@code username} with ids greater than {@code afterId} which haven't
+     * been delivered, in the order of ids
+     */
+    CompletableFuture<List<ChatMsgDto>> getUndeliveredMsgsForUser(String username, long afterId, int limit);
 
-    ChatMsgDao(DataSource dataSource) {
-        super(dataSource, ChatMsgDto.class);
-    }
+    /**
+     * Stores the message. Fails if the sender or the destination doesn't exist, or a message with the same journal id
+     * has already been stored
+     *
+     * @return {@link CompletableFuture} that completes with the id of the message when it is committed
+     */
+    CompletableFuture<Long> addMsg(ChatMsgDto chatMsg);
 
-    public CompletableFuture<List<ChatMsgDto>> getUndeliveredMsgsForUser(String username) {
-        return supplyAsync(connection -> {
-            String query = "SELECT sender, destination, message, delivered, sending_time AS " +
-                    "sendingTime\n" +
-                    "FROM messages\n" +
-                    "WHERE destination = ? AND NOT delivered\n" +
-                    "ORDER BY sendingTime;";
+    /**
+     * @return journal sequence numbers from {@code from} to {@code to} inclusive, which messages have been written
+     */
+    CompletableFuture<List<Long>> getJournalIds(long from, long to);
 
-            return getQueryRunner().query(connection, query, getDefaultResultSetHandler(), username)
-                                   .stream()
-                                   .collect(Collectors.toList());
-        });
-    }
+    /**
+     * @return the largest journal sequence number of the written messages, or 0
+     */
+    CompletableFuture<Long> getMaxJournalId();
 
-    public CompletableFuture<Void> addMsg(ChatMsgDto chatMsg) {
-        return supplyAsync(connection -> {
-            String insert = "INSERT INTO messages(sender, destination, message, sending_time, delivered) " +
-                    "\n" +
-                    "VALUES (?, ?, ?, to_timestamp(?), FALSE);";
-            getQueryRunner().insert(connection, insert, getDefaultResultSetHandler(), chatMsg.getSender(),
-                                    chatMsg.getDestination(), chatMsg.getMessage(),
-                                    chatMsg.getSendingTime().getTime() / 1000.0);
+    /**
+     * @return id of the message written from the journal record, or null if there is none
+     */
+    CompletableFuture<Long> getIdByJournalId(long journalId);
 
-            return null;
-        });
-    }
+    /**
+     * Drops the cached history between two users, e.g. when a message has been committed although its insert has
+     * been reported as failed, so the cache may miss it
+     */
+    void invalidateHistory(String username1, String username2);
 
-    public CompletableFuture<Void> setOldestMessageDelivered(String username) {
-        return supplyAsync(connection -> {
-            log.info("setting delivered flag");
+    /**
+     * Marks the messages with the given ids as delivered
+     */
+    CompletableFuture<Void> setDelivered(Collection<Long> ids);
 
-            String sql = "UPDATE messages SET delivered = TRUE \n" +
-                    "WHERE id = (SELECT id FROM messages \n" +
-                    "            WHERE destination = ? AND NOT delivered\n" +
-                    "            ORDER BY sending_time \n" +
-                    "            LIMIT 1);";
-            int rowsAffected = getQueryRunner().update(connection, sql, username);
+    /**
+     * Marks all messages to {@code username} up to the message with {@code lastId} as delivered. A message stored
+     * after {@link #getUndeliveredMsgsForUser(String, long, int)} has returned must not be marked
+     */
+    CompletableFuture<Void> setDeliveredUpTo(String username, long lastId);
 
-            log.info("delivered flag set {}", rowsAffected);
-
-            return null;
-        });
-    }
-
-    public CompletableFuture<MsgHistoryOutMessage> getHistoryForUsers(String username1, String username2,
-                                                                      long timestampTo, int limit) {
-        return supplyAsync(connection -> {
-            String sql = "SELECT sender, destination, message, delivered, sending_time AS sendingTime FROM messages " +
-                    "\n" +
-                    "WHERE ((sender = ? AND destination = ?) OR \n" +
-                    "    (sender = ? AND destination = ?))\n" +
-                    "    AND sending_time <= to_timestamp(?)\n" +
-                    "ORDER BY sendingTime \n" +
-                    "LIMIT ?;";
-            List<ChatMsg> messages =
-                    getQueryRunner().query(connection, sql, getDefaultResultSetHandler(), username1, username2,
-                                           username2, username1, timestampTo / 1000.0, limit)
-                                    .stream()
-                                    .map(ChatMsgDto::toChatMsg)
-                                    .collect(Collectors.toList());
-
-            return new MsgHistoryOutMessage(messages);
-        });
-    }
+    /**
+     * Gets up to {@code limit} latest messages between two users sent before the {@code cursor}
+     *
+     * @return {@link CompletableFuture} that completes with the messages in chronological order and the cursor of the
+     * next page, if there may be more messages
+     */
+    CompletableFuture<MsgHistoryOutMessage> getHistoryForUsers(String username1, String username2,
+                                                               HistoryCursor cursor, int limit);
 }
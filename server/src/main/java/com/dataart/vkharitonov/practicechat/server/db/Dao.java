@@ -2,7 +2,7 @@ package com.dataart.vkharitonov.practicechat.server.db;
 
 import org.apache.commons.dbutils.QueryRunner;
 import org.apache.commons.dbutils.ResultSetHandler;
-import org.apache.commons.dbutils.handlers.BeanListHandler;
+import org.apache.commons.dbutils.handlers.ColumnListHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -10,49 +10,136 @@ import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 class Dao<T> {
 
     private final static Logger log = LoggerFactory.getLogger(Dao.class.getName());
 
+    /**
+     * Reads the `id` column of all rows, e.g. returned by `INSERT ... RETURNING id`
+     */
+    static final ResultSetHandler<List<Number>> ID_LIST_HANDLER = new ColumnListHandler<>("id");
+
+    /**
+     * Reads the `journal_id` column of all rows
+     */
+    static final ResultSetHandler<List<Number>> JOURNAL_ID_LIST_HANDLER = new ColumnListHandler<>("journal_id");
+
+    /**
+     * SQL state of a missing row referenced by a foreign key, also used when a name has no id
+     */
+    static final String FOREIGN_KEY_VIOLATION = "23503";
+
+    /**
+     * SQL state of a duplicate key
+     */
+    static final String UNIQUE_VIOLATION = "23505";
+
     private DataSource dataSource;
+    private final Map<Workload, Bulkhead> bulkheads;
     private QueryRunner queryRunner;
 
     private ResultSetHandler<List<T>> resultSetHandler;
+    private final Workload workload;
 
-    Dao(DataSource dataSource, Class<T> cls) {
+    private final ConcurrentMap<String, UnitOfWork> units = new ConcurrentHashMap<>();
+
+    /**
+     * @param bulkheads threads and connections of the workloads, shared by the DAOs of a storage
+     * @param rowMapper reads the rows of the default result set handler
+     * @param workload  class of the queries of this DAO, unless a query specifies another one
+     */
+    Dao(DataSource dataSource, Map<Workload, Bulkhead> bulkheads, RowMapper<T> rowMapper, Workload workload) {
+        this(dataSource, bulkheads, workload);
+        resultSetHandler = RowMapper.listHandler(rowMapper);
+    }
+
+    /**
+     * For a DAO whose queries map their rows themselves, so there is no default result set handler
+     */
+    Dao(DataSource dataSource, Map<Workload, Bulkhead> bulkheads, Workload workload) {
         queryRunner = new QueryRunner();
-        resultSetHandler = new BeanListHandler<>(cls);
         this.dataSource = dataSource;
+        this.bulkheads = bulkheads;
+        this.workload = workload;
     }
 
+    /**
+     * Releases the resources of the DAO. The bulkheads and the data source are closed by {@link DbHelper}
+     */
     void close() {
-        DbHelper.getDbExecutor().shutdown();
+        units.values().forEach(UnitOfWork::close);
+        units.clear();
     }
 
     QueryRunner getQueryRunner() {
         return queryRunner;
     }
 
+    /**
+     * @return handler of the rows of the DAO, or null if it has none
+     */
     ResultSetHandler<List<T>> getDefaultResultSetHandler() {
         return resultSetHandler;
     }
 
     <U> CompletableFuture<U> supplyAsync(Supplier<U> supplier) {
-        return CompletableFuture.supplyAsync(() -> {
-            try (Connection conn = getDataSource().getConnection()) {
-                return supplier.get(conn);
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
-            }
-        }, DbHelper.getDbExecutor()).whenComplete((r, e) -> {
+        return supplyAsync(workload, supplier);
+    }
+
+    /**
+     * Runs the query on the threads and connections of the {@code workload}
+     */
+    <U> CompletableFuture<U> supplyAsync(Workload workload, Supplier<U> supplier) {
+        return bulkheads.get(workload).supplyAsync(getDataSource(), supplier).whenComplete((r, e) -> {
             if (e != null) {
                 log.warn("Error during DB query: {}", e.getLocalizedMessage());
             }
         });
     }
 
+    /**
+     * Runs a unit of work: all statements of the {@code work} on a single connection in one transaction. Timings are
+     * exported per unit
+     *
+     * @param unit name of the operation, unique across the DAOs
+     */
+    <U> CompletableFuture<U> supplyInTransaction(String unit, Supplier<U> work) {
+        UnitOfWork unitOfWork = units.computeIfAbsent(unit, UnitOfWork::new);
+        long submitted = System.nanoTime();
+        return supplyAsync(connection -> unitOfWork.run(connection, work, submitted));
+    }
+
+    /**
+     * Commits the statements of the {@code work} if it succeeds, and rolls them back otherwise. A failed rollback is
+     * added to the suppressed exceptions of the failure which caused it. The connection is left in the auto-commit
+     * mode, since it goes back to the pool
+     */
+    static <U> U inTransaction(Connection connection, Supplier<U> work) throws SQLException {
+        connection.setAutoCommit(false);
+        try {
+            try {
+                U result = work.get(connection);
+                connection.commit();
+                return result;
+            } catch (Throwable e) {
+                try {
+                    connection.rollback();
+                } catch (SQLException rollbackError) {
+                    e.addSuppressed(rollbackError);
+                }
+
+                throw e;
+            }
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
     private DataSource getDataSource() {
         return dataSource;
     }
@@ -1,114 +1,178 @@
 package com.dataart.vkharitonov.practicechat.server.db;
 
+import com.dataart.vkharitonov.practicechat.server.utils.ThreadModel;
 import org.flywaydb.core.Flyway;
 import org.postgresql.ds.PGPoolingDataSource;
 
-import java.util.concurrent.ExecutorService;
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * PostgreSQL storage. Each instance has its own connection pool, bulkheads and caches, which are shared by its DAOs
+ */
+public class DbHelper implements Storage {
+
+    private static final int MAX_CACHED_ROOMS = 10000;
+    private static final int MAX_CACHED_IDS = 100000;
+    // Covers the largest history page
+    private static final int RECENT_HISTORY_WINDOW = 100;
+    private final PGPoolingDataSource dataSource;
+    private final Map<Workload, Bulkhead> bulkheads = new EnumMap<>(Workload.class);
+    private final ScheduledExecutorService batchTimer;
+    private final BatchPolicy batchPolicy;
+    private final long recentHistoryMessages;
+
+    private PgChatMsgDao chatMsgDao;
+    private PgUserDao userDao;
+    private PgRoomDao roomDao;
+    private PgRoomMsgDao roomMsgDao;
+    private RecentHistory recentHistory;
+    private IdCache userIds;
+    private IdCache roomIds;
+
+    /**
+     * Initializes DB connection and migrates the schema
+     *
+     * @param threadModel           determines which threads run the queries
+     * @param bulkheadPolicy        connections and queue of each workload, the pool holds the connections of all
+     * @param batchPolicy           determines how the chat messages are batched
+     * @param recentHistoryMessages maximum number of recent messages kept in memory to serve history requests
+     */
+    public DbHelper(String dbName, String serverName, String username, String password, ThreadModel threadModel,
+                    BulkheadPolicy bulkheadPolicy, BatchPolicy batchPolicy, long recentHistoryMessages) {
+        this.batchPolicy = batchPolicy;
+        this.recentHistoryMessages = recentHistoryMessages;
 
-import static com.google.common.base.Preconditions.checkNotNull;
-
-public class DbHelper {
-
-    private static final int MAX_THREADS = 10;
-    private static ExecutorService dbExecutor;
-    private static DbHelper instance;
-    private PGPoolingDataSource dataSource;
-
-    private ChatMsgDao chatMsgDao;
-    private UserDao userDao;
-    private RoomDao roomDao;
-    private RoomMsgDao roomMsgDao;
-
-    private DbHelper(String dbName, String serverName, String username, String password) {
         dataSource = new PGPoolingDataSource();
         dataSource.setDatabaseName(dbName);
         dataSource.setServerName(serverName);
         dataSource.setUser(username);
         dataSource.setPassword(password);
+        dataSource.setMaxConnections(bulkheadPolicy.getMaxConnections());
 
         Flyway flyway = new Flyway();
         flyway.setDataSource(dataSource);
         flyway.migrate();
-    }
 
-    public static synchronized void init(String dbName, String serverName, String username, String password) {
-        if (instance == null) {
-            instance = new DbHelper(dbName, serverName, username, password);
-            dbExecutor = Executors.newFixedThreadPool(MAX_THREADS);
+        for (Workload workload : Workload.values()) {
+            bulkheads.put(workload, new Bulkhead(workload, bulkheadPolicy.getQuota(workload), threadModel));
         }
+        batchTimer = Executors.newSingleThreadScheduledExecutor();
     }
 
-    public static void close() {
-        if (instance != null) {
-            instance.dataSource.close();
+    @Override
+    public void close() {
+        synchronized (this) {
+            // Message DAOs write their pending batches, so they are closed before the connections
+            if (chatMsgDao != null) {
+                chatMsgDao.close();
+                chatMsgDao = null;
+            }
 
-            if (instance.chatMsgDao != null) {
-                instance.chatMsgDao.close();
-                instance.chatMsgDao = null;
+            if (userDao != null) {
+                userDao.close();
+                userDao = null;
             }
 
-            if (instance.userDao != null) {
-                instance.userDao.close();
-                instance.userDao = null;
+            if (roomDao != null) {
+                roomDao.close();
+                roomDao = null;
             }
 
-            if (instance.roomDao != null) {
-                instance.roomDao.close();
-                instance.roomDao = null;
+            if (roomMsgDao != null) {
+                roomMsgDao.close();
+                roomMsgDao = null;
             }
 
-            if (instance.roomMsgDao != null) {
-                instance.roomMsgDao.close();
-                instance.roomMsgDao = null;
+            if (recentHistory != null) {
+                recentHistory.close();
+                recentHistory = null;
             }
 
-            if (dbExecutor != null) {
-                dbExecutor.shutdown();
+            if (userIds != null) {
+                userIds.close();
+                userIds = null;
             }
-        }
-    }
 
-    public static DbHelper getInstance() {
-        synchronized (DbHelper.class) {
-            checkNotNull(instance, "You must call init() first");
-            return instance;
+            if (roomIds != null) {
+                roomIds.close();
+                roomIds = null;
+            }
         }
-    }
 
-    static ExecutorService getDbExecutor() {
-        return dbExecutor;
+        // The batches have been written, so the remaining queries complete before their connections are closed
+        batchTimer.shutdown();
+        bulkheads.values().forEach(Bulkhead::close);
+        dataSource.close();
     }
 
+    @Override
     public synchronized ChatMsgDao getMsgDao() {
         if (chatMsgDao == null) {
-            chatMsgDao = new ChatMsgDao(dataSource);
+            chatMsgDao = new PgChatMsgDao(dataSource, bulkheads, batchTimer, batchPolicy, getRecentHistory(), getUserIds());
         }
 
         return chatMsgDao;
     }
 
+    @Override
     public synchronized UserDao getUserDao() {
         if (userDao == null) {
-            userDao = new UserDao(dataSource);
+            userDao = new PgUserDao(dataSource, bulkheads, getUserIds());
         }
 
         return userDao;
     }
 
+    @Override
     public synchronized RoomDao getRoomDao() {
         if (roomDao == null) {
-            roomDao = new RoomDao(dataSource);
+            roomDao = new PgRoomDao(dataSource, bulkheads, MAX_CACHED_ROOMS, getRecentHistory(), getUserIds(),
+                                    getRoomIds());
         }
 
         return roomDao;
     }
 
+    @Override
     public synchronized RoomMsgDao getRoomMsgDao() {
         if (roomMsgDao == null) {
-            roomMsgDao = new RoomMsgDao(dataSource);
+            roomMsgDao = new PgRoomMsgDao(dataSource, bulkheads, batchTimer, batchPolicy, getRecentHistory(),
+                                          getUserIds(), getRoomIds());
         }
 
         return roomMsgDao;
     }
+
+    /**
+     * Shared by the message DAOs, so that all conversations fit into a single budget
+     */
+    private synchronized RecentHistory getRecentHistory() {
+        if (recentHistory == null) {
+            recentHistory = new RecentHistory(RECENT_HISTORY_WINDOW, recentHistoryMessages);
+        }
+
+        return recentHistory;
+    }
+
+    /**
+     * Shared by the DAOs, which refer to the users by their ids
+     */
+    private synchronized IdCache getUserIds() {
+        if (userIds == null) {
+            userIds = new IdCache("users", MAX_CACHED_IDS);
+        }
+
+        return userIds;
+    }
+
+    private synchronized IdCache getRoomIds() {
+        if (roomIds == null) {
+            roomIds = new IdCache("rooms", MAX_CACHED_IDS);
+        }
+
+        return roomIds;
+    }
 }
@@ -0,0 +1,71 @@
+package com.dataart.vkharitonov.practicechat.server.db;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+/**
+ * Position in the message history: the sending time and the id of the last message returned to the client. The next
+ * page starts right before it, so paging doesn't depend on how deep into the history the client has scrolled.
+ * <p>
+ * Clients get the cursor as an opaque string.
+ */
+public final class HistoryCursor {
+
+    private static final int ENCODED_BYTES = 2 * Long.BYTES;
+
+    private final long timestamp;
+    private final long id;
+
+    private HistoryCursor(long timestamp, long id) {
+        this.timestamp = timestamp;
+        this.id = id;
+    }
+
+    /**
+     * @return cursor which points right after all messages sent at or before {@code timestamp}
+     */
+    public static HistoryCursor before(long timestamp) {
+        return new HistoryCursor(timestamp, Long.MAX_VALUE);
+    }
+
+    static HistoryCursor at(long timestamp, long id) {
+        return new HistoryCursor(timestamp, id);
+    }
+
+    /**
+     * @throws IllegalArgumentException thrown if the cursor has not been created by {@link #encode()}
+     */
+    public static HistoryCursor decode(String cursor) {
+        byte[] bytes = Base64.getUrlDecoder().decode(cursor);
+        if (bytes.length != ENCODED_BYTES) {
+            throw new IllegalArgumentException("Invalid history cursor: " + cursor);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new HistoryCursor(buffer.getLong(), buffer.getLong());
+    }
+
+    public String encode() {
+        byte[] bytes = ByteBuffer.allocate(ENCODED_BYTES).putLong(timestamp).putLong(id).array();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     * @return sending time in milliseconds
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return "HistoryCursor{" +
+                "timestamp=" + timestamp +
+                ", id=" + id +
+                '}';
+    }
+}
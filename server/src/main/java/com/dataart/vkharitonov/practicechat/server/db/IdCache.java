@@ -0,0 +1,154 @@
+package com.dataart.vkharitonov.practicechat.server.db;
+
+import com.dataart.vkharitonov.practicechat.server.metrics.MetricGroup;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.commons.dbutils.QueryRunner;
+import org.apache.commons.dbutils.handlers.ArrayListHandler;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Integer ids of the users or the rooms by their names and back. The protocol refers to users and rooms by names,
+ * while the tables reference them by ids.
+ * <p>
+ * Ids come from a sequence and are never reused, so an id always maps to the same name. A name may get a new id when
+ * a room is dropped and created again, so {@link PgRoomDao} invalidates the names of the dropped rooms. Unknown names
+ * aren't cached.
+ */
+final class IdCache {
+
+    private final String table;
+    private final QueryRunner queryRunner = new QueryRunner();
+    private final Cache<String, Integer> ids;
+    private final Cache<Integer, String> names;
+
+    private final MetricGroup metrics;
+
+    /**
+     * @param table   table with the `id` and `name` columns
+     * @param maxSize maximum number of cached names
+     */
+    IdCache(String table, long maxSize) {
+        this.table = table;
+        ids = CacheBuilder.newBuilder()
+                          .maximumSize(maxSize)
+                          .recordStats()
+                          .build();
+        names = CacheBuilder.newBuilder()
+                            .maximumSize(maxSize)
+                            .recordStats()
+                            .build();
+
+        metrics = new MetricGroup("IdCache", table);
+        metrics.gauge("size", ids::size);
+        metrics.gauge("idHits", () -> ids.stats().hitCount());
+        metrics.gauge("idMisses", () -> ids.stats().missCount());
+        metrics.gauge("nameHits", () -> names.stats().hitCount());
+        metrics.gauge("nameMisses", () -> names.stats().missCount());
+        metrics.register();
+    }
+
+    /**
+     * @return id of the name, or null if there is no such row
+     */
+    Integer getId(Connection connection, String name) throws SQLException {
+        return getIds(connection, Collections.singleton(name)).get(name);
+    }
+
+    /**
+     * @throws SQLException with the foreign key violation state if there is no such row
+     */
+    int requireId(Connection connection, String name) throws SQLException {
+        Integer id = getId(connection, name);
+        if (id == null) {
+            throw new SQLException("No such row in " + table + ": " + name, Dao.FOREIGN_KEY_VIOLATION);
+        }
+
+        return id;
+    }
+
+    /**
+     * Reads the missing ids in a single query
+     *
+     * @return ids of the names which exist
+     */
+    Map<String, Integer> getIds(Connection connection, Collection<String> names) throws SQLException {
+        Map<String, Integer> found = new HashMap<>(ids.getAllPresent(names));
+        Set<String> missing = new HashSet<>(names);
+        missing.removeAll(found.keySet());
+        if (!missing.isEmpty()) {
+            String sql = "SELECT id, name FROM " + table + " WHERE name = ANY(?);";
+            for (Object[] row : query(connection, sql, "text", missing)) {
+                int id = ((Number) row[0]).intValue();
+                String name = (String) row[1];
+                put(name, id);
+                found.put(name, id);
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Reads the missing names in a single query
+     *
+     * @return names of the ids which exist
+     */
+    Map<Integer, String> getNames(Connection connection, Collection<Integer> ids) throws SQLException {
+        Map<Integer, String> found = new HashMap<>(names.getAllPresent(ids));
+        Set<Integer> missing = new HashSet<>(ids);
+        missing.removeAll(found.keySet());
+        if (!missing.isEmpty()) {
+            String sql = "SELECT id, name FROM " + table + " WHERE id = ANY(?);";
+            for (Object[] row : query(connection, sql, "int4", missing)) {
+                int id = ((Number) row[0]).intValue();
+                String name = (String) row[1];
+                put(name, id);
+                found.put(id, name);
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Records a row which has just been inserted or read
+     */
+    void put(String name, int id) {
+        ids.put(name, id);
+        names.put(id, name);
+    }
+
+    /**
+     * Forgets the id of a deleted row. Its name may be taken by a new row with a different id
+     */
+    void invalidate(String name) {
+        ids.invalidate(name);
+    }
+
+    void close() {
+        ids.invalidateAll();
+        names.invalidateAll();
+        metrics.unregister();
+    }
+
+    private List<Object[]> query(Connection connection, String sql, String type, Collection<?> values)
+            throws SQLException {
+        Array array = connection.createArrayOf(type, values.toArray());
+        try {
+            return queryRunner.query(connection, sql, new ArrayListHandler(), array);
+        } finally {
+            array.free();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.dataart.vkharitonov.practicechat.server.db;
+
+import com.dataart.vkharitonov.practicechat.common.json.out.MsgHistoryOutMessage;
+import com.dataart.vkharitonov.practicechat.server.db.dto.ChatMsgDto;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Messages between two users. Undelivered messages are also indexed by destination and id
+ */
+final class MemoryChatMsgDao implements ChatMsgDao {
+
+    private final MemoryUserDao users;
+    private final MemoryHistory history = new MemoryHistory();
+    private final AtomicLong lastId = new AtomicLong();
+    // Journal id -> message id
+    private final NavigableMap<Long, Long> journalIds = new ConcurrentSkipListMap<>();
+    private final LongAdder messages = new LongAdder();
+
+    // Destination -> id -> message
+    private final ConcurrentMap<String, NavigableMap<Long, ChatMsgDto>> undelivered = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, ChatMsgDto> undeliveredById = new ConcurrentHashMap<>();
+
+    MemoryChatMsgDao(MemoryUserDao users) {
+        this.users = users;
+    }
+
+    @Override
+    public CompletableFuture<List<ChatMsgDto>> getUndeliveredMsgsForUser(String username, long afterId, int limit) {
+        NavigableMap<Long, ChatMsgDto> inbox = undelivered.get(username);
+        List<ChatMsgDto> msgs = new ArrayList<>();
+        if (inbox != null) {
+            for (ChatMsgDto msg : inbox.tailMap(afterId, false).values()) {
+                if (msgs.size() >= limit) {
+                    break;
+                }
+                msgs.add(msg);
+            }
+        }
+
+        return CompletableFuture.completedFuture(msgs);
+    }
+
+    @Override
+    public CompletableFuture<Long> addMsg(ChatMsgDto chatMsg) {
+        if (!users.exists(chatMsg.getSender()) || !users.exists(chatMsg.getDestination())) {
+            return MemoryStorage.foreignKeyViolation("User " + chatMsg.getSender() + " or " +
+                                                             chatMsg.getDestination() + " doesn't exist");
+        }
+
+        Long journalId = chatMsg.getJournalId();
+        long timestamp = chatMsg.getSendingTime();
+        ChatMsgDto stored = new ChatMsgDto(chatMsg.getSender(), chatMsg.getDestination(), chatMsg.getMessage(),
+                                           timestamp, false);
+        stored.setJournalId(journalId);
+
+        NavigableMap<Long, ChatMsgDto> inbox = undelivered.computeIfAbsent(chatMsg.getDestination(),
+                                                                         d -> new ConcurrentSkipListMap<>());
+        long id;
+        // Messages become visible to the destination in the order of their ids, see setDeliveredUpTo
+        synchronized (inbox) {
+            id = lastId.incrementAndGet();
+            if (journalId != null && journalIds.putIfAbsent(journalId, id) != null) {
+                return MemoryStorage.uniqueViolation("Message with journal id " + journalId + " already exists");
+            }
+
+            stored.setId(id);
+            undeliveredById.put(id, stored);
+            inbox.put(id, stored);
+        }
+
+        history.add(RecentHistory.conversation(stored.getSender(), stored.getDestination()), id, timestamp,
+                    stored.toChatMsg());
+        messages.increment();
+
+        return CompletableFuture.completedFuture(id);
+    }
+
+    @Override
+    public CompletableFuture<List<Long>> getJournalIds(long from, long to) {
+        return CompletableFuture.completedFuture(new ArrayList<>(journalIds.subMap(from, true, to, true).keySet()));
+    }
+
+    @Override
+    public CompletableFuture<Long> getMaxJournalId() {
+        return CompletableFuture.completedFuture(journalIds.isEmpty() ? 0 : journalIds.lastKey());
+    }
+
+    @Override
+    public CompletableFuture<Long> getIdByJournalId(long journalId) {
+        return CompletableFuture.completedFuture(journalIds.get(journalId));
+    }
+
+    /**
+     * The history isn't cached
+     */
+    @Override
+    public void invalidateHistory(String username1, String username2) {
+    }
+
+    @Override
+    public CompletableFuture<Void> setDelivered(Collection<Long> ids) {
+        for (Long id : ids) {
+            ChatMsgDto msg = undeliveredById.remove(id);
+            if (msg != null) {
+                msg.setDelivered(true);
+                undelivered.get(msg.getDestination()).remove(id);
+            }
+        }
+
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> setDeliveredUpTo(String username, long lastId) {
+        NavigableMap<Long, ChatMsgDto> inbox = undelivered.get(username);
+        if (inbox != null) {
+            Iterator<ChatMsgDto> iterator = inbox.headMap(lastId, true).values().iterator();
+            while (iterator.hasNext()) {
+                ChatMsgDto msg = iterator.next();
+                iterator.remove();
+                undeliveredById.remove(msg.getId());
+                msg.setDelivered(true);
+            }
+        }
+
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<MsgHistoryOutMessage> getHistoryForUsers(String username1, String username2,
+                                                                      HistoryCursor cursor, int limit) {
+        return CompletableFuture.completedFuture(
+                history.getPage(RecentHistory.conversation(username1, username2), cursor, limit));
+    }
+
+    long getMessageCount() {
+        return messages.sum();
+    }
+
+    int getUndeliveredCount() {
+        return undeliveredById.size();
+    }
+}
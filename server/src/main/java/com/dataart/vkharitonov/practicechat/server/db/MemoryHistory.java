@@ -0,0 +1,64 @@
+package com.dataart.vkharitonov.practicechat.server.db;
+
+import com.dataart.vkharitonov.practicechat.common.json.ChatMsg;
+import com.dataart.vkharitonov.practicechat.common.json.out.MsgHistoryOutMessage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Messages of conversations (rooms or pairs of users), each sorted by sending time and id like the history indexes of
+ * the database
+ */
+final class MemoryHistory {
+
+    private static final Comparator<HistoryCursor> ORDER = Comparator.comparingLong(HistoryCursor::getTimestamp)
+                                                                     .thenComparingLong(HistoryCursor::getId);
+
+    private final ConcurrentMap<String, NavigableMap<HistoryCursor, ChatMsg>> conversations =
+            new ConcurrentHashMap<>();
+
+    /**
+     * @param timestamp sending time in milliseconds
+     */
+    void add(String conversation, long id, long timestamp, ChatMsg message) {
+        conversations.computeIfAbsent(conversation, c -> new ConcurrentSkipListMap<>(ORDER))
+                     .put(HistoryCursor.at(timestamp, id), message);
+    }
+
+    /**
+     * @return up to {@code limit} latest messages sent before the {@code cursor} in chronological order, and the
+     * cursor of the next page, if there may be more messages
+     */
+    MsgHistoryOutMessage getPage(String conversation, HistoryCursor cursor, int limit) {
+        NavigableMap<HistoryCursor, ChatMsg> messages = conversations.get(conversation);
+        if (messages == null || limit <= 0) {
+            return new MsgHistoryOutMessage(new ArrayList<>());
+        }
+
+        List<ChatMsg> page = new ArrayList<>(limit);
+        HistoryCursor oldest = null;
+        for (Map.Entry<HistoryCursor, ChatMsg> entry : messages.headMap(cursor, false).descendingMap().entrySet()) {
+            page.add(entry.getValue());
+            oldest = entry.getKey();
+            if (page.size() == limit) {
+                break;
+            }
+        }
+
+        Collections.reverse(page);
+        String nextCursor = page.size() == limit ? oldest.encode() : null;
+        return new MsgHistoryOutMessage(page, nextCursor);
+    }
+
+    void remove(String conversation) {
+        conversations.remove(conversation);
+    }
+}
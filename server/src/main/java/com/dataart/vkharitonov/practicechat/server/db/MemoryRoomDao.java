@@ -0,0 +1,204 @@
+package com.dataart.vkharitonov.practicechat.server.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Rooms and their members. Changes of a room are made under its write lock, so that the members of the room and the
+ * rooms of every user stay consistent. Messages are added to the room under its read lock, so that they don't
+ * outlive the room
+ */
+final class MemoryRoomDao implements RoomDao {
+
+    private final MemoryUserDao users;
+    private final MemoryHistory roomHistory;
+
+    private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<String>> userRooms = new ConcurrentHashMap<>();
+
+    MemoryRoomDao(MemoryUserDao users, MemoryHistory roomHistory) {
+        this.users = users;
+        this.roomHistory = roomHistory;
+    }
+
+    @Override
+    public CompletableFuture<Optional<String>> getRoomAdmin(String room) {
+        return CompletableFuture.completedFuture(Optional.ofNullable(rooms.get(room)).map(r -> r.admin));
+    }
+
+    @Override
+    public CompletableFuture<Void> createRoom(String roomName, String admin) {
+        if (!users.exists(admin)) {
+            return MemoryStorage.foreignKeyViolation("User " + admin + " doesn't exist");
+        }
+
+        if (rooms.putIfAbsent(roomName, new Room(admin)) != null) {
+            return MemoryStorage.uniqueViolation("Room " + roomName + " already exists");
+        }
+
+        return addUserToRoom(roomName, admin);
+    }
+
+    @Override
+    public CompletableFuture<JoinResult> joinOrCreateRoom(String roomName, String username) {
+        if (!users.exists(username)) {
+            return MemoryStorage.foreignKeyViolation("User " + username + " doesn't exist");
+        }
+
+        boolean isCreated = rooms.putIfAbsent(roomName, new Room(username)) == null;
+        return addMember(roomName, username).thenApply(isAdded -> {
+            if (isCreated) {
+                return JoinResult.CREATED;
+            }
+
+            return isAdded ? JoinResult.JOINED : JoinResult.ALREADY_MEMBER;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> addUserToRoom(String roomName, String username) {
+        return addMember(roomName, username).thenCompose(isAdded -> {
+            if (!isAdded) {
+                return MemoryStorage.uniqueViolation("User " + username + " is already in room " + roomName);
+            }
+
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * @return {@link CompletableFuture} that completes with false if the user is already a member
+     */
+    private CompletableFuture<Boolean> addMember(String roomName, String username) {
+        if (!users.exists(username)) {
+            return MemoryStorage.foreignKeyViolation("User " + username + " doesn't exist");
+        }
+
+        Room room = rooms.get(roomName);
+        if (room == null) {
+            return MemoryStorage.foreignKeyViolation("Room " + roomName + " doesn't exist");
+        }
+
+        room.lock.writeLock().lock();
+        try {
+            if (room.isDropped) {
+                return MemoryStorage.foreignKeyViolation("Room " + roomName + " doesn't exist");
+            } else if (!room.members.add(username)) {
+                return CompletableFuture.completedFuture(false);
+            }
+
+            userRooms.computeIfAbsent(username, u -> ConcurrentHashMap.newKeySet()).add(roomName);
+        } finally {
+            room.lock.writeLock().unlock();
+        }
+
+        return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> removeUserFromRoom(String roomName, String username) {
+        Room room = rooms.get(roomName);
+        if (room == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        room.lock.writeLock().lock();
+        try {
+            boolean isRemoved = !room.isDropped && room.members.remove(username);
+            if (isRemoved) {
+                userRooms.get(username).remove(roomName);
+            }
+
+            return CompletableFuture.completedFuture(isRemoved);
+        } finally {
+            room.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> dropRoom(String roomName, String username) {
+        Room room = rooms.get(roomName);
+        if (room == null || !room.admin.equals(username)) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        room.lock.writeLock().lock();
+        try {
+            if (room.isDropped) {
+                return CompletableFuture.completedFuture(false);
+            }
+
+            room.isDropped = true;
+            room.members.forEach(member -> userRooms.get(member).remove(roomName));
+            roomHistory.remove(roomName);
+            rooms.remove(roomName, room);
+        } finally {
+            room.lock.writeLock().unlock();
+        }
+
+        return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public CompletableFuture<List<String>> getUsersForRoom(String roomName) {
+        Room room = rooms.get(roomName);
+        List<String> members = room != null ? new ArrayList<>(room.members) : new ArrayList<>();
+        return CompletableFuture.completedFuture(members);
+    }
+
+    @Override
+    public CompletableFuture<List<String>> getRoomsForUser(String username) {
+        Set<String> joined = userRooms.getOrDefault(username, Collections.emptySet());
+        return CompletableFuture.completedFuture(new ArrayList<>(joined));
+    }
+
+    @Override
+    public CompletableFuture<List<String>> getRooms() {
+        return CompletableFuture.completedFuture(new ArrayList<>(rooms.keySet()));
+    }
+
+    /**
+     * Runs the {@code action} if the room exists. The room isn't dropped while the action is running
+     *
+     * @return result of the action, or null if the room doesn't exist
+     */
+    <T> T whileExists(String roomName, Supplier<T> action) {
+        Room room = rooms.get(roomName);
+        if (room == null) {
+            return null;
+        }
+
+        room.lock.readLock().lock();
+        try {
+            return !room.isDropped ? action.get() : null;
+        } finally {
+            room.lock.readLock().unlock();
+        }
+    }
+
+    int getRoomCount() {
+        return rooms.size();
+    }
+
+    private static class Room {
+
+        private final String admin;
+        private final Set<String> members = ConcurrentHashMap.newKeySet();
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        // Guarded by lock
+        private boolean isDropped;
+
+        private Room(String admin) {
+            this.admin = admin;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.dataart.vkharitonov.practicechat.server.db;
+
+import com.dataart.vkharitonov.practicechat.common.json.out.MsgHistoryOutMessage;
+import com.dataart.vkharitonov.practicechat.server.db.dto.RoomMsgDto;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+final class MemoryRoomMsgDao implements RoomMsgDao {
+
+    private final MemoryUserDao users;
+    private final MemoryRoomDao rooms;
+    private final MemoryHistory history;
+    private final AtomicLong lastId = new AtomicLong();
+    // Journal id -> message id
+    private final NavigableMap<Long, Long> journalIds = new ConcurrentSkipListMap<>();
+    private final LongAdder messages = new LongAdder();
+
+    /**
+     * @param history history of the rooms, which is deleted by {@link MemoryRoomDao} together with the room
+     */
+    MemoryRoomMsgDao(MemoryUserDao users, MemoryRoomDao rooms, MemoryHistory history) {
+        this.users = users;
+        this.rooms = rooms;
+        this.history = history;
+    }
+
+    @Override
+    public CompletableFuture<Long> addMsg(RoomMsgDto roomMsg) {
+        if (!users.exists(roomMsg.getSender())) {
+            return MemoryStorage.foreignKeyViolation("User " + roomMsg.getSender() + " doesn't exist");
+        }
+
+        CompletableFuture<Long> added = rooms.whileExists(roomMsg.getRoom(), () -> {
+            long id = lastId.incrementAndGet();
+            Long journalId = roomMsg.getJournalId();
+            if (journalId != null && journalIds.putIfAbsent(journalId, id) != null) {
+                return MemoryStorage.uniqueViolation("Message with journal id " + journalId + " already exists");
+            }
+
+            history.add(roomMsg.getRoom(), id, roomMsg.getSendingTime(), roomMsg.toChatMsg());
+            messages.increment();
+
+            return CompletableFuture.completedFuture(id);
+        });
+
+        return added != null ? added : MemoryStorage.foreignKeyViolation("Room " + roomMsg.getRoom() +
+                                                                                 " doesn't exist");
+    }
+
+    @Override
+    public CompletableFuture<List<Long>> getJournalIds(long from, long to) {
+        return CompletableFuture.completedFuture(new ArrayList<>(journalIds.subMap(from, true, to, true).keySet()));
+    }
+
+    @Override
+    public CompletableFuture<Long> getMaxJournalId() {
+        return CompletableFuture.completedFuture(journalIds.isEmpty() ? 0 : journalIds.lastKey());
+    }
+
+    @Override
+    public CompletableFuture<Long> getIdByJournalId(long journalId) {
+        return CompletableFuture.completedFuture(journalIds.get(journalId));
+    }
+
+    /**
+     * The history isn't cached
+     */
+    @Override
+    public void invalidateHistory(String room) {
+    }
+
+    @Override
+    public CompletableFuture<MsgHistoryOutMessage> getHistoryForRoom(String room, HistoryCursor cursor, int limit) {
+        return CompletableFuture.completedFuture(history.getPage(room, cursor, limit));
+    }
+
+    long getMessageCount() {
+        return messages.sum();
+    }
+}
@@ -0,0 +1,82 @@
+package com.dataart.vkharitonov.practicechat.server.db;
+
+import com.dataart.vkharitonov.practicechat.server.metrics.MetricGroup;
+import com.dataart.vkharitonov.practicechat.server.utils.FutureUtils;
+
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Concurrent in-memory storage. Queries complete on the calling thread, and the history of every conversation is
+ * indexed by sending time and id, so a page is read by a single range scan.
+ * <p>
+ * Constraints are the same as in the database: a violation fails with an {@link SQLException} with the same SQL
+ * state as PostgreSQL's.
+ */
+public final class MemoryStorage implements Storage {
+
+    private static final String UNIQUE_VIOLATION = "23505";
+    private static final String FOREIGN_KEY_VIOLATION = "23503";
+
+    private final MemoryUserDao userDao;
+    private final MemoryRoomDao roomDao;
+    private final MemoryChatMsgDao chatMsgDao;
+    private final MemoryRoomMsgDao roomMsgDao;
+
+    private final MetricGroup metrics;
+
+    public MemoryStorage() {
+        MemoryHistory roomHistory = new MemoryHistory();
+        userDao = new MemoryUserDao();
+        roomDao = new MemoryRoomDao(userDao, roomHistory);
+        chatMsgDao = new MemoryChatMsgDao(userDao);
+        roomMsgDao = new MemoryRoomMsgDao(userDao, roomDao, roomHistory);
+
+        metrics = new MetricGroup("MemoryStorage");
+        metrics.gauge("users", userDao::getUserCount);
+        metrics.gauge("rooms", roomDao::getRoomCount);
+        metrics.gauge("messages", chatMsgDao::getMessageCount);
+        metrics.gauge("undeliveredMessages", chatMsgDao::getUndeliveredCount);
+        metrics.gauge("roomMessages", roomMsgDao::getMessageCount);
+        metrics.register();
+    }
+
+    @Override
+    public UserDao getUserDao() {
+        return userDao;
+    }
+
+    @Override
+    public RoomDao getRoomDao() {
+        return roomDao;
+    }
+
+    @Override
+    public ChatMsgDao getMsgDao() {
+        return chatMsgDao;
+    }
+
+    @Override
+    public RoomMsgDao getRoomMsgDao() {
+        return roomMsgDao;
+    }
+
+    @Override
+    public void close() {
+        metrics.unregister();
+    }
+
+    /**
+     * @return failure of a query which violates a unique constraint
+     */
+    static <T> CompletableFuture<T> uniqueViolation(String message) {
+        return FutureUtils.failure(new SQLException(message, UNIQUE_VIOLATION));
+    }
+
+    /**
+     * @return failure of a query which refers to a row that doesn't exist
+     */
+    static <T> CompletableFuture<T> foreignKeyViolation(String message) {
+        return FutureUtils.failure(new SQLException(message, FOREIGN_KEY_VIOLATION));
+    }
+}
@@ -0,0 +1,35 @@
+package com.dataart.vkharitonov.practicechat.server.db;
+
+import com.dataart.vkharitonov.practicechat.server.db.dto.UserDto;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+final class MemoryUserDao implements UserDao {
+
+    private final ConcurrentMap<String, UserDto> users = new ConcurrentHashMap<>();
+
+    @Override
+    public CompletableFuture<Void> createUser(String name, String hash, String salt) {
+        if (users.putIfAbsent(name, new UserDto(name, hash, salt)) != null) {
+            return MemoryStorage.uniqueViolation("User " + name + " already exists");
+        }
+
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Optional<UserDto>> getUserByName(String name) {
+        return CompletableFuture.completedFuture(Optional.ofNullable(users.get(name)));
+    }
+
+    boolean exists(String name) {
+        return users.containsKey(name);
+    }
+
+    int getUserCount() {
+        return users.size();
+    }
+}
@@ -0,0 +1,272 @@
+package com.dataart.vkharitonov.practicechat.server.db;
+
+import com.dataart.vkharitonov.practicechat.common.json.ChatMsg;
+import com.dataart.vkharitonov.practicechat.common.json.out.MsgHistoryOutMessage;
+import com.dataart.vkharitonov.practicechat.server.db.dto.ChatMsgDto;
+import org.apache.commons.dbutils.handlers.ScalarHandler;
+
+import javax.sql.DataSource;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Collectors;
+
+public class PgChatMsgDao extends Dao<ChatMsgDto> implements ChatMsgDao {
+
+    private final BatchWriter<ChatMsgDto> writer;
+    private final RecentHistory recentHistory;
+    private final IdCache userIds;
+
+    PgChatMsgDao(DataSource dataSource, Map<Workload, Bulkhead> bulkheads, ScheduledExecutorService batchTimer,
+                 BatchPolicy batchPolicy, RecentHistory recentHistory, IdCache userIds) {
+        super(dataSource, bulkheads, PgChatMsgDao::mapMsg, Workload.MESSAGE_WRITES);
+        writer = new BatchWriter<>("messages", this, batchTimer, batchPolicy, this::insertMsgs);
+        this.recentHistory = recentHistory;
+        this.userIds = userIds;
+    }
+
+    @Override
+    void close() {
+        writer.close();
+        super.close();
+    }
+
+    /**
+     * Reads a range of the partial index on the undelivered messages
+     */
+    @Override
+    public CompletableFuture<List<ChatMsgDto>> getUndeliveredMsgsForUser(String username, long afterId, int limit) {
+        return supplyAsync(connection -> {
+            Integer userId = userIds.getId(connection, username);
+            if (userId == null) {
+                return new ArrayList<ChatMsgDto>();
+            }
+
+            String query = "SELECT m.id, s.name AS sender, ?::text AS destination, m.message, m.delivered, " +
+                    "m.sending_time\n" +
+                    "FROM messages m JOIN users s ON s.id = m.sender_id\n" +
+                    "WHERE m.destination_id = ? AND NOT m.delivered AND m.id > ?\n" +
+                    "ORDER BY m.id\n" +
+                    "LIMIT ?;";
+
+            return getQueryRunner().query(connection, query, getDefaultResultSetHandler(), username, userId, afterId,
+                                          limit);
+        });
+    }
+
+    /**
+     * Messages from all senders are inserted in batches
+     */
+    @Override
+    public CompletableFuture<Long> addMsg(ChatMsgDto chatMsg) {
+        return writer.add(chatMsg).thenApply(id -> {
+            recentHistory.add(RecentHistory.conversation(chatMsg.getSender(), chatMsg.getDestination()),
+                              new RecentHistory.Entry(id, chatMsg.getSendingTime(), chatMsg.toChatMsg()));
+            return id;
+        });
+    }
+
+    /**
+     * Ids of the users are resolved for the whole batch at once. A message to or from an unknown user fails the batch
+     * with a foreign key violation, so that only that message is rejected when the rows are inserted one by one
+     */
+    private List<Long> insertMsgs(Connection connection, List<ChatMsgDto> msgs) throws SQLException {
+        Set<String> usernames = new HashSet<>();
+        for (ChatMsgDto chatMsg : msgs) {
+            usernames.add(chatMsg.getSender());
+            usernames.add(chatMsg.getDestination());
+        }
+        Map<String, Integer> ids = userIds.getIds(connection, usernames);
+        if (ids.size() < usernames.size()) {
+            usernames.removeAll(ids.keySet());
+            throw new SQLException("Unknown users: " + usernames, FOREIGN_KEY_VIOLATION);
+        }
+
+        String insert = "INSERT INTO messages(sender_id, destination_id, message, sending_time, delivered, " +
+                "journal_id) \n" +
+                "VALUES " + BatchWriter.values("(?, ?, ?, ?, FALSE, ?::int8)", msgs.size()) + "\n" +
+                "RETURNING id;";
+        Object[] params = new Object[msgs.size() * 5];
+        int i = 0;
+        for (ChatMsgDto chatMsg : msgs) {
+            params[i++] = ids.get(chatMsg.getSender());
+            params[i++] = ids.get(chatMsg.getDestination());
+            params[i++] = chatMsg.getMessage();
+            params[i++] = chatMsg.getSendingTime();
+            params[i++] = chatMsg.getJournalId();
+        }
+
+        return getQueryRunner().query(connection, insert, ID_LIST_HANDLER, params)
+                               .stream()
+                               .map(Number::longValue)
+                               .collect(Collectors.toList());
+    }
+
+    @Override
+    public CompletableFuture<List<Long>> getJournalIds(long from, long to) {
+        return supplyAsync(connection -> {
+            String sql = "SELECT journal_id FROM messages WHERE journal_id BETWEEN ? AND ?;";
+            return getQueryRunner().query(connection, sql, JOURNAL_ID_LIST_HANDLER, from, to)
+                                   .stream()
+                                   .map(Number::longValue)
+                                   .collect(Collectors.toList());
+        });
+    }
+
+    @Override
+    public CompletableFuture<Long> getMaxJournalId() {
+        return supplyAsync(connection -> {
+            String sql = "SELECT COALESCE(MAX(journal_id), 0) FROM messages;";
+            return getQueryRunner().query(connection, sql, new ScalarHandler<Number>()).longValue();
+        });
+    }
+
+    @Override
+    public CompletableFuture<Long> getIdByJournalId(long journalId) {
+        return supplyAsync(connection -> {
+            String sql = "SELECT id FROM messages WHERE journal_id = ?;";
+            Number id = getQueryRunner().query(connection, sql, new ScalarHandler<Number>(), journalId);
+            return id == null ? null : id.longValue();
+        });
+    }
+
+    /**
+     * The conversation is read from the database again on the next request
+     */
+    @Override
+    public void invalidateHistory(String username1, String username2) {
+        recentHistory.invalidate(RecentHistory.conversation(username1, username2));
+    }
+
+    @Override
+    public CompletableFuture<Void> setDelivered(Collection<Long> ids) {
+        return supplyAsync(connection -> {
+            String sql = "UPDATE messages SET delivered = TRUE \n" +
+                    "WHERE id = ANY(?) AND NOT delivered;";
+            Array idArray = connection.createArrayOf("int8", ids.toArray());
+            try {
+                getQueryRunner().update(connection, sql, idArray);
+            } finally {
+                idArray.free();
+            }
+
+            return null;
+        });
+    }
+
+    /**
+     * Messages are inserted by a single writer, so a message committed later always has a greater id
+     */
+    @Override
+    public CompletableFuture<Void> setDeliveredUpTo(String username, long lastId) {
+        return supplyAsync(connection -> {
+            Integer userId = userIds.getId(connection, username);
+            if (userId == null) {
+                return null;
+            }
+
+            String sql = "UPDATE messages SET delivered = TRUE \n" +
+                    "WHERE destination_id = ? AND NOT delivered AND id <= ?;";
+            getQueryRunner().update(connection, sql, userId, lastId);
+
+            return null;
+        });
+    }
+
+    /**
+     * Recent pages are served from memory
+     */
+    @Override
+    public CompletableFuture<MsgHistoryOutMessage> getHistoryForUsers(String username1, String username2,
+                                                                      HistoryCursor cursor, int limit) {
+        return recentHistory.getPage(RecentHistory.conversation(username1, username2), cursor, limit,
+                                     () -> getLatest(username1, username2),
+                                     () -> queryHistory(username1, username2, cursor, limit));
+    }
+
+    private CompletableFuture<List<RecentHistory.Entry>> getLatest(String username1, String username2) {
+        return supplyAsync(Workload.HISTORY_READS, connection -> {
+            return queryPage(connection, username1, username2, null, recentHistory.getWindowSize());
+        });
+    }
+
+    private CompletableFuture<MsgHistoryOutMessage> queryHistory(String username1, String username2,
+                                                                 HistoryCursor cursor, int limit) {
+        return supplyAsync(Workload.HISTORY_READS, connection -> {
+            List<RecentHistory.Entry> page = queryPage(connection, username1, username2, cursor, limit);
+
+            String nextCursor = null;
+            if (limit > 0 && page.size() == limit) {
+                RecentHistory.Entry oldest = page.get(page.size() - 1);
+                nextCursor = HistoryCursor.at(oldest.getTimestamp(), oldest.getId()).encode();
+            }
+
+            Collections.reverse(page);
+            List<ChatMsg> messages = page.stream()
+                                         .map(RecentHistory.Entry::getMessage)
+                                         .collect(Collectors.toList());
+
+            return new MsgHistoryOutMessage(messages, nextCursor);
+        });
+    }
+
+    /**
+     * @param cursor null to get the latest messages
+     *
+     * @return messages, newest first
+     */
+    private List<RecentHistory.Entry> queryPage(Connection connection, String username1, String username2,
+                                                HistoryCursor cursor, int limit) throws SQLException {
+        Map<String, Integer> ids = userIds.getIds(connection, Arrays.asList(username1, username2));
+        Integer id1 = ids.get(username1);
+        Integer id2 = ids.get(username2);
+        if (id1 == null || id2 == null) {
+            return new ArrayList<>();
+        }
+
+        // Same expressions as in the conversation index, so that both directions are read by a single range scan
+        String sql = "SELECT id, sender_id, message, sending_time\n" +
+                "FROM messages \n" +
+                "WHERE LEAST(sender_id, destination_id) = ? \n" +
+                "    AND GREATEST(sender_id, destination_id) = ?\n" +
+                (cursor != null ? "    AND (sending_time, id) < (?, ?)\n" : "") +
+                "ORDER BY sending_time DESC, id DESC \n" +
+                "LIMIT ?;";
+        List<Object> params = new ArrayList<>(Arrays.asList(Math.min(id1, id2), Math.max(id1, id2)));
+        if (cursor != null) {
+            params.add(cursor.getTimestamp());
+            params.add(cursor.getId());
+        }
+        params.add(limit);
+
+        // Both names are known, so the rows are mapped straight into the messages
+        RowMapper<RecentHistory.Entry> mapper = resultSet -> {
+            boolean isFromFirst = resultSet.getInt("sender_id") == id1;
+            long sendingTime = resultSet.getLong("sending_time");
+            ChatMsg msg = new ChatMsg(isFromFirst ? username1 : username2, isFromFirst ? username2 : username1,
+                                      resultSet.getString("message"), sendingTime);
+            return new RecentHistory.Entry(resultSet.getLong("id"), sendingTime, msg);
+        };
+
+        return getQueryRunner().query(connection, sql, RowMapper.listHandler(mapper), params.toArray());
+    }
+
+    private static ChatMsgDto mapMsg(ResultSet resultSet) throws SQLException {
+        ChatMsgDto msg = new ChatMsgDto(resultSet.getString("sender"), resultSet.getString("destination"),
+                                        resultSet.getString("message"), resultSet.getLong("sending_time"),
+                                        resultSet.getBoolean("delivered"));
+        msg.setId(resultSet.getLong("id"));
+        return msg;
+    }
+}
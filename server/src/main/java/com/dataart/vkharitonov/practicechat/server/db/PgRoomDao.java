@@ -0,0 +1,251 @@
+package com.dataart.vkharitonov.practicechat.server.db;
+
+import com.dataart.vkharitonov.practicechat.server.db.dto.RoomDto;
+import org.apache.commons.dbutils.handlers.ArrayListHandler;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+public class PgRoomDao extends Dao<RoomDto> implements RoomDao {
+
+    private final RoomMemberCache members;
+    private final RecentHistory recentHistory;
+    private final IdCache userIds;
+    private final IdCache roomIds;
+
+    PgRoomDao(DataSource dataSource, Map<Workload, Bulkhead> bulkheads, long maxCachedRooms,
+              RecentHistory recentHistory, IdCache userIds, IdCache roomIds) {
+        super(dataSource, bulkheads, PgRoomDao::mapRoom, Workload.ROOM_ADMIN);
+        members = new RoomMemberCache(maxCachedRooms, this::queryUsersForRoom);
+        this.recentHistory = recentHistory;
+        this.userIds = userIds;
+        this.roomIds = roomIds;
+    }
+
+    @Override
+    void close() {
+        super.close();
+        members.close();
+    }
+
+    @Override
+    public CompletableFuture<Optional<String>> getRoomAdmin(String room) {
+        return supplyAsync(connection -> {
+            String queryExists = "SELECT rooms.name, users.name AS admin \n" +
+                    "FROM rooms JOIN users ON users.id = rooms.admin_id \n" +
+                    "WHERE rooms.name = ?;";
+            List<RoomDto> rooms = getQueryRunner().query(connection, queryExists, getDefaultResultSetHandler(), room);
+
+            return rooms.stream().findFirst().map(RoomDto::getAdmin);
+        });
+    }
+
+    /**
+     * The room and its first member are inserted in one transaction
+     */
+    @Override
+    public CompletableFuture<Void> createRoom(String roomName, String admin) {
+        return supplyInTransaction("createRoom", connection -> {
+            int adminId = userIds.requireId(connection, admin);
+            String createRoom = "INSERT INTO rooms(name, admin_id) VALUES (?, ?) RETURNING id;";
+            int roomId = getQueryRunner().query(connection, createRoom, ID_LIST_HANDLER, roomName, adminId)
+                                         .get(0)
+                                         .intValue();
+            insertMember(connection, roomId, adminId);
+
+            return roomId;
+        }).thenAccept(roomId -> onRoomCreated(roomName, roomId, admin));
+    }
+
+    /**
+     * Runs in one transaction on a single connection. The room and the member are inserted with `ON CONFLICT DO
+     * NOTHING`, so if another user creates the room first, this user joins it instead of failing, and a repeated join
+     * changes nothing
+     */
+    @Override
+    public CompletableFuture<JoinResult> joinOrCreateRoom(String roomName, String username) {
+        return supplyInTransaction("joinOrCreateRoom", connection -> {
+            int userId = userIds.requireId(connection, username);
+            Integer roomId = roomIds.getId(connection, roomName);
+            boolean isCreated = false;
+            if (roomId == null) {
+                String createRoom = "INSERT INTO rooms(name, admin_id) VALUES (?, ?) \n" +
+                        "ON CONFLICT (name) DO NOTHING \n" +
+                        "RETURNING id;";
+                List<Number> ids = getQueryRunner().query(connection, createRoom, ID_LIST_HANDLER, roomName, userId);
+                isCreated = !ids.isEmpty();
+                // Created concurrently otherwise, and committed by now
+                roomId = isCreated ? ids.get(0).intValue() : roomIds.requireId(connection, roomName);
+            }
+            boolean isAdded = insertMember(connection, roomId, userId);
+
+            if (isCreated) {
+                return new JoinedRoom(JoinResult.CREATED, roomId);
+            }
+
+            return new JoinedRoom(isAdded ? JoinResult.JOINED : JoinResult.ALREADY_MEMBER, roomId);
+        }).thenApply(joined -> {
+            if (joined.result == JoinResult.CREATED) {
+                onRoomCreated(roomName, joined.roomId, username);
+            } else if (joined.result == JoinResult.JOINED) {
+                members.onMemberAdded(roomName, username);
+            }
+
+            return joined.result;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> addUserToRoom(String roomName, String username) {
+        return supplyAsync(connection -> {
+            if (!insertMember(connection, roomIds.requireId(connection, roomName),
+                              userIds.requireId(connection, username))) {
+                throw new SQLException("User " + username + " is already in room " + roomName, UNIQUE_VIOLATION);
+            }
+            members.onMemberAdded(roomName, username);
+
+            return null;
+        });
+    }
+
+    /**
+     * @return false if the user is already a member
+     */
+    private boolean insertMember(Connection connection, int roomId, int userId) throws SQLException {
+        String joinRoom = "INSERT INTO room_members(room_id, user_id) VALUES (?, ?) \n" +
+                "ON CONFLICT (room_id, user_id) DO NOTHING;";
+        return getQueryRunner().update(connection, joinRoom, roomId, userId) > 0;
+    }
+
+    /**
+     * Caches the new room once it is committed
+     */
+    private void onRoomCreated(String roomName, int roomId, String admin) {
+        roomIds.put(roomName, roomId);
+        members.onRoomCreated(roomName, admin);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> removeUserFromRoom(String roomName, String username) {
+        return supplyAsync(connection -> {
+            Integer roomId = roomIds.getId(connection, roomName);
+            Integer userId = userIds.getId(connection, username);
+            if (roomId == null || userId == null) {
+                return false;
+            }
+
+            String leaveRoom = "DELETE FROM room_members WHERE room_id = ? AND user_id = ?;";
+            int rowsUpdated = getQueryRunner().update(connection, leaveRoom, roomId, userId);
+            if (rowsUpdated > 0) {
+                members.onMemberRemoved(roomName, username);
+            }
+
+            return rowsUpdated > 0;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> dropRoom(String roomName, String username) {
+        // Members and messages are deleted by the cascade, so the unit may hold the locks for a while
+        return supplyInTransaction("dropRoom", connection -> {
+            Integer roomId = roomIds.getId(connection, roomName);
+            Integer userId = userIds.getId(connection, username);
+            if (roomId == null || userId == null) {
+                return false;
+            }
+
+            String dropRoom = "DELETE FROM rooms WHERE id = ? AND admin_id = ?;";
+            return getQueryRunner().update(connection, dropRoom, roomId, userId) > 0;
+        }).thenApply(isDropped -> {
+            if (isDropped) {
+                roomIds.invalidate(roomName);
+                members.onRoomDropped(roomName);
+                // A room with the same name starts with an empty history
+                recentHistory.invalidate(roomName);
+            }
+
+            return isDropped;
+        });
+    }
+
+    /**
+     * Members are queried once and then cached
+     */
+    @Override
+    public CompletableFuture<List<String>> getUsersForRoom(String roomName) {
+        return members.get(roomName);
+    }
+
+    private CompletableFuture<List<String>> queryUsersForRoom(String roomName) {
+        return supplyAsync(connection -> {
+            Integer roomId = roomIds.getId(connection, roomName);
+            if (roomId == null) {
+                return new ArrayList<>();
+            }
+
+            String query = "SELECT user_id FROM room_members WHERE room_id = ?;";
+            List<Integer> ids = getQueryRunner().query(connection, query, new ArrayListHandler(), roomId)
+                                                .stream()
+                                                .map(arr -> ((Number) arr[0]).intValue())
+                                                .collect(Collectors.toList());
+            return new ArrayList<>(userIds.getNames(connection, ids).values());
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<String>> getRoomsForUser(String username) {
+        return supplyAsync(connection -> {
+            Integer userId = userIds.getId(connection, username);
+            if (userId == null) {
+                return new ArrayList<>();
+            }
+
+            String query = "SELECT room_id FROM room_members WHERE user_id = ?;";
+            List<Integer> ids = getQueryRunner().query(connection, query, new ArrayListHandler(), userId)
+                                                .stream()
+                                                .map(arr -> ((Number) arr[0]).intValue())
+                                                .collect(Collectors.toList());
+            return new ArrayList<>(roomIds.getNames(connection, ids).values());
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<String>> getRooms() {
+        return supplyAsync(connection -> {
+            String query = "SELECT name FROM rooms;";
+            return getQueryRunner().query(connection, query, new ArrayListHandler())
+                                   .stream()
+                                   .map(arr -> ((String) arr[0]))
+                                   .collect(Collectors.toList());
+        });
+    }
+
+    /**
+     * Result of the joinOrCreateRoom transaction. The id of a created room is cached after the commit
+     */
+    private static final class JoinedRoom {
+
+        private final JoinResult result;
+        private final int roomId;
+
+        private JoinedRoom(JoinResult result, int roomId) {
+            this.result = result;
+            this.roomId = roomId;
+        }
+    }
+
+    private static RoomDto mapRoom(ResultSet resultSet) throws SQLException {
+        RoomDto room = new RoomDto();
+        room.setName(resultSet.getString("name"));
+        room.setAdmin(resultSet.getString("admin"));
+        return room;
+    }
+}
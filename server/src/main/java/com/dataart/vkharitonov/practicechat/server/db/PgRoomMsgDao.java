@@ -0,0 +1,193 @@
+package com.dataart.vkharitonov.practicechat.server.db;
+
+import com.dataart.vkharitonov.practicechat.common.json.ChatMsg;
+import com.dataart.vkharitonov.practicechat.common.json.out.MsgHistoryOutMessage;
+import com.dataart.vkharitonov.practicechat.server.db.dto.RoomMsgDto;
+import org.apache.commons.dbutils.ResultSetHandler;
+import org.apache.commons.dbutils.handlers.ScalarHandler;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Collectors;
+
+public class PgRoomMsgDao extends Dao<RoomMsgDto> implements RoomMsgDao {
+
+    private final BatchWriter<RoomMsgDto> writer;
+    private final RecentHistory recentHistory;
+    private final IdCache userIds;
+    private final IdCache roomIds;
+
+    PgRoomMsgDao(DataSource dataSource, Map<Workload, Bulkhead> bulkheads, ScheduledExecutorService batchTimer,
+                 BatchPolicy batchPolicy, RecentHistory recentHistory, IdCache userIds, IdCache roomIds) {
+        super(dataSource, bulkheads, Workload.MESSAGE_WRITES);
+        writer = new BatchWriter<>("room_messages", this, batchTimer, batchPolicy, this::insertMsgs);
+        this.recentHistory = recentHistory;
+        this.userIds = userIds;
+        this.roomIds = roomIds;
+    }
+
+    @Override
+    void close() {
+        writer.close();
+        super.close();
+    }
+
+    /**
+     * Messages from all senders are inserted in batches
+     */
+    @Override
+    public CompletableFuture<Long> addMsg(RoomMsgDto roomMsg) {
+        return writer.add(roomMsg).thenApply(id -> {
+            recentHistory.add(roomMsg.getRoom(),
+                              new RecentHistory.Entry(id, roomMsg.getSendingTime(), roomMsg.toChatMsg()));
+            return id;
+        });
+    }
+
+    /**
+     * Ids of the senders and the rooms are resolved for the whole batch at once, see {@link PgChatMsgDao}
+     */
+    private List<Long> insertMsgs(Connection connection, List<RoomMsgDto> msgs) throws SQLException {
+        Set<String> senders = new HashSet<>();
+        Set<String> rooms = new HashSet<>();
+        for (RoomMsgDto roomMsg : msgs) {
+            senders.add(roomMsg.getSender());
+            rooms.add(roomMsg.getRoom());
+        }
+        Map<String, Integer> senderIds = userIds.getIds(connection, senders);
+        Map<String, Integer> ids = roomIds.getIds(connection, rooms);
+        if (senderIds.size() < senders.size() || ids.size() < rooms.size()) {
+            senders.removeAll(senderIds.keySet());
+            rooms.removeAll(ids.keySet());
+            throw new SQLException("Unknown users " + senders + " or rooms " + rooms, FOREIGN_KEY_VIOLATION);
+        }
+
+        String insert = "INSERT INTO room_messages(sender_id, room_id, message, sending_time, journal_id) \n" +
+                "VALUES " + BatchWriter.values("(?, ?, ?, ?, ?::int8)", msgs.size()) + "\n" +
+                "RETURNING id;";
+        Object[] params = new Object[msgs.size() * 5];
+        int i = 0;
+        for (RoomMsgDto roomMsg : msgs) {
+            params[i++] = senderIds.get(roomMsg.getSender());
+            params[i++] = ids.get(roomMsg.getRoom());
+            params[i++] = roomMsg.getMessage();
+            params[i++] = roomMsg.getSendingTime();
+            params[i++] = roomMsg.getJournalId();
+        }
+
+        return getQueryRunner().query(connection, insert, ID_LIST_HANDLER, params)
+                               .stream()
+                               .map(Number::longValue)
+                               .collect(Collectors.toList());
+    }
+
+    @Override
+    public CompletableFuture<List<Long>> getJournalIds(long from, long to) {
+        return supplyAsync(connection -> {
+            String sql = "SELECT journal_id FROM room_messages WHERE journal_id BETWEEN ? AND ?;";
+            return getQueryRunner().query(connection, sql, JOURNAL_ID_LIST_HANDLER, from, to)
+                                   .stream()
+                                   .map(Number::longValue)
+                                   .collect(Collectors.toList());
+        });
+    }
+
+    @Override
+    public CompletableFuture<Long> getMaxJournalId() {
+        return supplyAsync(connection -> {
+            String sql = "SELECT COALESCE(MAX(journal_id), 0) FROM room_messages;";
+            return getQueryRunner().query(connection, sql, new ScalarHandler<Number>()).longValue();
+        });
+    }
+
+    @Override
+    public CompletableFuture<Long> getIdByJournalId(long journalId) {
+        return supplyAsync(connection -> {
+            String sql = "SELECT id FROM room_messages WHERE journal_id = ?;";
+            Number id = getQueryRunner().query(connection, sql, new ScalarHandler<Number>(), journalId);
+            return id == null ? null : id.longValue();
+        });
+    }
+
+    /**
+     * The room is read from the database again on the next history request
+     */
+    @Override
+    public void invalidateHistory(String room) {
+        recentHistory.invalidate(room);
+    }
+
+    /**
+     * Recent pages are served from memory
+     */
+    @Override
+    public CompletableFuture<MsgHistoryOutMessage> getHistoryForRoom(String room, HistoryCursor cursor, int limit) {
+        return recentHistory.getPage(room, cursor, limit, () -> getLatest(room),
+                                     () -> queryHistory(room, cursor, limit));
+    }
+
+    private CompletableFuture<List<RecentHistory.Entry>> getLatest(String room) {
+        return supplyAsync(Workload.HISTORY_READS, connection -> {
+            return queryPage(connection, room, null, recentHistory.getWindowSize());
+        });
+    }
+
+    private CompletableFuture<MsgHistoryOutMessage> queryHistory(String room, HistoryCursor cursor, int limit) {
+        return supplyAsync(Workload.HISTORY_READS, connection -> {
+            List<RecentHistory.Entry> page = queryPage(connection, room, cursor, limit);
+
+            String nextCursor = null;
+            if (limit > 0 && page.size() == limit) {
+                RecentHistory.Entry oldest = page.get(page.size() - 1);
+                nextCursor = HistoryCursor.at(oldest.getTimestamp(), oldest.getId()).encode();
+            }
+
+            Collections.reverse(page);
+            List<ChatMsg> list = page.stream()
+                                     .map(RecentHistory.Entry::getMessage)
+                                     .collect(Collectors.toList());
+            return new MsgHistoryOutMessage(list, nextCursor);
+        });
+    }
+
+    /**
+     * @param cursor null to get the latest messages
+     *
+     * @return messages, newest first
+     */
+    private List<RecentHistory.Entry> queryPage(Connection connection, String room, HistoryCursor cursor, int limit)
+            throws SQLException {
+        Integer roomId = roomIds.getId(connection, room);
+        if (roomId == null) {
+            return new ArrayList<>();
+        }
+
+        String query = "SELECT m.id, s.name AS sender, m.message, m.sending_time\n" +
+                "FROM room_messages m JOIN users s ON s.id = m.sender_id \n" +
+                "WHERE m.room_id = ?\n" +
+                (cursor != null ? "    AND (m.sending_time, m.id) < (?, ?)\n" : "") +
+                "ORDER BY m.sending_time DESC, m.id DESC\n" +
+                "LIMIT ?;";
+        // The rows are mapped straight into the messages of the room
+        ResultSetHandler<List<RecentHistory.Entry>> handler = RowMapper.listHandler(resultSet -> {
+            long sendingTime = resultSet.getLong("sending_time");
+            ChatMsg msg = new ChatMsg(resultSet.getString("sender"), room, resultSet.getString("message"), sendingTime);
+            return new RecentHistory.Entry(resultSet.getLong("id"), sendingTime, msg);
+        });
+        if (cursor != null) {
+            return getQueryRunner().query(connection, query, handler, roomId, cursor.getTimestamp(), cursor.getId(),
+                                          limit);
+        } else {
+            return getQueryRunner().query(connection, query, handler, roomId, limit);
+        }
+    }
+}
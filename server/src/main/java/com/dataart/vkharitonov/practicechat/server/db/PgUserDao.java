@@ -0,0 +1,51 @@
+package com.dataart.vkharitonov.practicechat.server.db;
+
+import com.dataart.vkharitonov.practicechat.server.db.dto.UserDto;
+
+import javax.sql.DataSource;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+public class PgUserDao extends Dao<UserDto> implements UserDao {
+
+    private final IdCache userIds;
+
+    protected PgUserDao(DataSource dataSource, Map<Workload, Bulkhead> bulkheads, IdCache userIds) {
+        super(dataSource, bulkheads, PgUserDao::mapUser, Workload.AUTH);
+        this.userIds = userIds;
+    }
+
+    @Override
+    public CompletableFuture<Void> createUser(String name, String hash, String salt) {
+        return supplyAsync(connection -> {
+            String insert = "INSERT INTO users(name, hash, salt) VALUES (?, ?, ?) RETURNING id;";
+            List<Number> ids = getQueryRunner().query(connection, insert, ID_LIST_HANDLER, name, hash, salt);
+            userIds.put(name, ids.get(0).intValue());
+
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Optional<UserDto>> getUserByName(String name) {
+        return supplyAsync(connection -> {
+            String query = "SELECT id, name, hash, salt FROM users WHERE name = ?;";
+
+            List<UserDto> user = getQueryRunner().query(connection, query, getDefaultResultSetHandler(), name);
+            user.forEach(u -> userIds.put(u.getName(), u.getId()));
+
+            return user.stream().findFirst();
+        });
+    }
+
+    private static UserDto mapUser(ResultSet resultSet) throws SQLException {
+        UserDto user = new UserDto(resultSet.getString("name"), resultSet.getString("hash"),
+                                   resultSet.getString("salt"));
+        user.setId(resultSet.getInt("id"));
+        return user;
+    }
+}
@@ -0,0 +1,357 @@
+package com.dataart.vkharitonov.practicechat.server.db;
+
+import com.dataart.vkharitonov.practicechat.common.json.ChatMsg;
+import com.dataart.vkharitonov.practicechat.common.json.out.MsgHistoryOutMessage;
+import com.dataart.vkharitonov.practicechat.server.metrics.MetricGroup;
+import com.dataart.vkharitonov.practicechat.server.utils.FutureUtils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * The latest messages of recently read conversations, so that most history requests don't go to the database.
+ * <p>
+ * Every conversation (a room or a pair of users) has a window of up to {@code windowSize} latest messages, which is
+ * loaded on the first history request and then filled by the committed messages. A window contains every message
+ * newer than its oldest one, so a page which fits into it is the same as the one read from the database. Older pages
+ * are read from the database.
+ * <p>
+ * The total number of messages in all windows is limited. When it is exceeded, the least recently used conversations
+ * are evicted as a whole.
+ */
+final class RecentHistory {
+
+    private final int windowSize;
+    private final long maxMessages;
+
+    // Guarded by this. In access order, the least recently used conversation first
+    private final Map<String, Window> windows = new LinkedHashMap<>(16, 0.75f, true);
+    private long messages;
+
+    private final MetricGroup metrics;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder loads;
+    private final LongAdder evictions;
+
+    /**
+     * @param windowSize  maximum number of messages kept per conversation
+     * @param maxMessages maximum number of messages kept in all conversations, 0 disables the cache
+     */
+    RecentHistory(int windowSize, long maxMessages) {
+        this.windowSize = windowSize;
+        this.maxMessages = maxMessages;
+
+        metrics = new MetricGroup("RecentHistory");
+        metrics.gauge("conversations", this::getConversationCount);
+        metrics.gauge("messages", this::getMessageCount);
+        hits = metrics.counter("hits");
+        misses = metrics.counter("misses");
+        loads = metrics.counter("loads");
+        evictions = metrics.counter("evictions");
+        metrics.register();
+    }
+
+    /**
+     * Gets a page of the conversation history from memory if the window covers it. Otherwise loads the window, if it
+     * hasn't been loaded yet, or reads the page from the database
+     *
+     * @param conversation room name, or {@link #conversation(String, String)} for a pair of users
+     * @param latest       reads up to {@code windowSize} latest messages of the conversation, newest first
+     * @param query        reads the page from the database
+     */
+    CompletableFuture<MsgHistoryOutMessage> getPage(String conversation, HistoryCursor cursor, int limit,
+                                                    Supplier<CompletableFuture<List<Entry>>> latest,
+                                                    Supplier<CompletableFuture<MsgHistoryOutMessage>> query) {
+        if (maxMessages == 0) {
+            return query.get();
+        }
+
+        Window window;
+        synchronized (this) {
+            MsgHistoryOutMessage page = findPage(conversation, cursor, limit);
+            if (page != null) {
+                hits.increment();
+                return CompletableFuture.completedFuture(page);
+            }
+
+            misses.increment();
+            if (windows.containsKey(conversation)) {
+                // The page is older than the window, or the window is being loaded
+                return query.get();
+            }
+
+            // Messages committed from now on are added to the window, even if the query doesn't see them
+            window = new Window();
+            windows.put(conversation, window);
+        }
+
+        loads.increment();
+        CompletableFuture<List<Entry>> loaded;
+        try {
+            loaded = latest.get();
+        } catch (RuntimeException e) {
+            // The executor has been shut down
+            loaded = FutureUtils.failure(e);
+        }
+
+        return loaded.handle((entries, e) -> {
+            synchronized (this) {
+                if (e != null) {
+                    windows.remove(conversation, window);
+                    return null;
+                }
+
+                if (windows.get(conversation) == window) {
+                    // The window may have been invalidated meanwhile
+                    load(window, entries);
+                }
+
+                return findPage(conversation, cursor, limit);
+            }
+        }).thenCompose(page -> page != null ? CompletableFuture.completedFuture(page) : query.get());
+    }
+
+    /**
+     * Adds a committed message to the conversation, if its window is in memory
+     */
+    synchronized void add(String conversation, Entry entry) {
+        Window window = windows.get(conversation);
+        if (window == null) {
+            return;
+        }
+
+        if (!window.isLoaded) {
+            window.pending.add(entry);
+            return;
+        }
+
+        messages += window.add(entry, windowSize);
+        evictOverBudget(window);
+    }
+
+    /**
+     * Forgets the conversation, e.g. when the room has been dropped
+     */
+    synchronized void invalidate(String conversation) {
+        Window window = windows.remove(conversation);
+        if (window != null) {
+            messages -= window.size;
+        }
+    }
+
+    void close() {
+        synchronized (this) {
+            windows.clear();
+            messages = 0;
+        }
+
+        metrics.unregister();
+    }
+
+    /**
+     * @return key of the conversation between two users, which doesn't depend on the order of the users
+     */
+    static String conversation(String username1, String username2) {
+        // Usernames don't contain spaces
+        return username1.compareTo(username2) < 0 ? username1 + " " + username2 : username2 + " " + username1;
+    }
+
+    int getWindowSize() {
+        return windowSize;
+    }
+
+    private synchronized int getConversationCount() {
+        return windows.size();
+    }
+
+    private synchronized long getMessageCount() {
+        return messages;
+    }
+
+    /**
+     * @return page, or null if the window doesn't cover it
+     */
+    private MsgHistoryOutMessage findPage(String conversation, HistoryCursor cursor, int limit) {
+        Window window = windows.get(conversation);
+        if (window == null || !window.isLoaded) {
+            return null;
+        }
+
+        // Index of the newest message before the cursor
+        int last = window.size - 1;
+        while (last >= 0 && !window.get(last).isBefore(cursor.getTimestamp(), cursor.getId())) {
+            last--;
+        }
+
+        int available = last + 1;
+        if (limit <= 0) {
+            return new MsgHistoryOutMessage(new ArrayList<>());
+        } else if (available < limit && !window.isComplete) {
+            return null;
+        }
+
+        int first = Math.max(0, available - limit);
+        List<ChatMsg> page = new ArrayList<>(available - first);
+        for (int i = first; i <= last; i++) {
+            page.add(window.get(i).message);
+        }
+
+        // Same as the database: a full page may be followed by more messages
+        String nextCursor = null;
+        if (available >= limit) {
+            Entry oldest = window.get(first);
+            nextCursor = HistoryCursor.at(oldest.timestamp, oldest.id).encode();
+        }
+
+        return new MsgHistoryOutMessage(page, nextCursor);
+    }
+
+    /**
+     * @param latest latest messages, newest first
+     */
+    private void load(Window window, List<Entry> latest) {
+        window.isLoaded = true;
+        // Nothing older than the loaded messages
+        window.isComplete = latest.size() < windowSize;
+        for (Entry entry : latest) {
+            messages += window.add(entry, windowSize);
+        }
+        for (Entry entry : window.pending) {
+            messages += window.add(entry, windowSize);
+        }
+        window.pending = null;
+
+        evictOverBudget(window);
+    }
+
+    private void evictOverBudget(Window current) {
+        Iterator<Window> iterator = windows.values().iterator();
+        while (messages > maxMessages && iterator.hasNext()) {
+            Window window = iterator.next();
+            if (window != current) {
+                iterator.remove();
+                messages -= window.size;
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Message of a conversation
+     */
+    static final class Entry {
+
+        private final long id;
+        private final long timestamp;
+        private final ChatMsg message;
+
+        /**
+         * @param timestamp sending time in milliseconds
+         */
+        Entry(long id, long timestamp, ChatMsg message) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.message = message;
+        }
+
+        long getId() {
+            return id;
+        }
+
+        /**
+         * @return sending time in milliseconds
+         */
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        ChatMsg getMessage() {
+            return message;
+        }
+
+        private boolean isBefore(long timestamp, long id) {
+            return this.timestamp < timestamp || (this.timestamp == timestamp && this.id < id);
+        }
+    }
+
+    /**
+     * Latest messages of a conversation in a ring buffer, sorted by sending time and id
+     */
+    private static class Window {
+
+        private Entry[] entries = new Entry[0];
+        private int start;
+        private int size;
+
+        private boolean isLoaded;
+        // True if there are no messages older than the window
+        private boolean isComplete;
+        // Messages committed while the window is being loaded
+        private List<Entry> pending = new ArrayList<>();
+
+        private Entry get(int index) {
+            return entries[(start + index) % entries.length];
+        }
+
+        private void set(int index, Entry entry) {
+            entries[(start + index) % entries.length] = entry;
+        }
+
+        /**
+         * Inserts the message in order. Messages are committed almost in order, so it is usually appended
+         *
+         * @return change of the number of messages in the window
+         */
+        private int add(Entry entry, int capacity) {
+            int oldSize = size;
+            int position = size;
+            while (position > 0 && !get(position - 1).isBefore(entry.timestamp, entry.id)) {
+                if (get(position - 1).id == entry.id) {
+                    // Both loaded and committed while loading
+                    return 0;
+                }
+                position--;
+            }
+
+            if (size == capacity) {
+                isComplete = false;
+                if (position == 0) {
+                    // Older than the whole window
+                    return 0;
+                }
+
+                // Drop the oldest message
+                set(0, null);
+                start = (start + 1) % entries.length;
+                size--;
+                position--;
+            } else if (size == entries.length) {
+                grow(capacity);
+            }
+
+            for (int i = size; i > position; i--) {
+                set(i, get(i - 1));
+            }
+            set(position, entry);
+            size++;
+
+            return size - oldSize;
+        }
+
+        private void grow(int capacity) {
+            Entry[] grown = new Entry[Math.min(capacity, Math.max(8, entries.length * 2))];
+            for (int i = 0; i < size; i++) {
+                grown[i] = get(i);
+            }
+            entries = grown;
+            start = 0;
+        }
+    }
+}
@@ -1,85 +1,74 @@
 package com.dataart.vkharitonov.practicechat.server.db;
 
-import com.dataart.vkharitonov.practicechat.server.db.dto.RoomDto;
-import org.apache.commons.dbutils.handlers.ArrayListHandler;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import javax.sql.DataSource;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
-import java.util.stream.Collectors;
 
-public class RoomDao extends Dao<RoomDto> {
+/**
+ * Rooms and their members
+ */
+public interface RoomDao {
 
-    private final static Logger log = LoggerFactory.getLogger(RoomDao.class.getName());
+    /**
+     * @return administrator of the room, or empty if the room doesn't exist
+     */
+    CompletableFuture<Optional<String>> getRoomAdmin(String room);
 
-    public RoomDao(DataSource dataSource) {
-        super(dataSource, RoomDto.class);
-    }
+    /**
+     * Creates a room and makes the {@code admin} its first member. Fails if the room already exists
+     */
+    CompletableFuture<Void> createRoom(String roomName, String admin);
 
-    public CompletableFuture<Optional<String>> getRoomAdmin(String room) {
-        return supplyAsync(connection -> {
-            String queryExists = "SELECT * FROM rooms WHERE name = ?;";
-            List<RoomDto> rooms = getQueryRunner().query(connection, queryExists, getDefaultResultSetHandler(), room);
+    /**
+     * Joins the user to the room, or creates the room with the user as its administrator if it doesn't exist, as a
+     * single atomic operation. Concurrent calls for the same new room create it once, and concurrent calls of the same
+     * user join it once
+     */
+    CompletableFuture<JoinResult> joinOrCreateRoom(String roomName, String username);
 
-            return rooms.stream().findFirst().map(RoomDto::getAdmin);
-        });
-    }
+    /**
+     * Fails if the room doesn't exist or the user is already a member
+     */
+    CompletableFuture<Void> addUserToRoom(String roomName, String username);
 
-    public CompletableFuture<Void> createRoom(String roomName, String admin) {
-        return supplyAsync(connection -> {
-            String createRoom = "INSERT INTO rooms(name, admin) VALUES (?, ?);";
-            getQueryRunner().insert(connection, createRoom, getDefaultResultSetHandler(), roomName, admin);
+    /**
+     * @return {@link CompletableFuture} that completes with false if the user wasn't a member of the room
+     */
+    CompletableFuture<Boolean> removeUserFromRoom(String roomName, String username);
 
-            return null;
-        }).thenCompose(o -> addUserToRoom(roomName, admin));
-    }
+    /**
+     * Deletes the room with all its members and messages, if {@code username} is its administrator
+     *
+     * @return {@link CompletableFuture} that completes with false if the room hasn't been deleted
+     */
+    CompletableFuture<Boolean> dropRoom(String roomName, String username);
 
-    public CompletableFuture<Void> addUserToRoom(String roomName, String username) {
-        return supplyAsync(connection -> {
-            String joinRoom = "INSERT INTO room_members(room, username) VALUES (?, ?);";
-            getQueryRunner().insert(connection, joinRoom, rs -> null, roomName, username);
+    CompletableFuture<List<String>> getUsersForRoom(String roomName);
 
-            log.debug("user joined");
-            return null;
-        });
-    }
+    /**
+     * Returns the rooms {@code username} is a member of
+     */
+    CompletableFuture<List<String>> getRoomsForUser(String username);
 
-    public CompletableFuture<Boolean> removeUserFromRoom(String roomName, String username) {
-        return supplyAsync(connection -> {
-            String leaveRoom = "DELETE FROM room_members WHERE room = ? AND username = ?;";
-            int rowsUpdated = getQueryRunner().update(connection, leaveRoom, roomName, username);
-            return rowsUpdated > 0;
-        });
-    }
+    CompletableFuture<List<String>> getRooms();
 
-    public CompletableFuture<Boolean> dropRoom(String roomName, String username) {
-        return supplyAsync(connection -> {
-            String dropRoom = "DELETE FROM rooms WHERE name = ? AND admin = ?;";
-            int rowsUpdated = getQueryRunner().update(connection, dropRoom, roomName, username);
-            return rowsUpdated > 0;
-        });
-    }
+    /**
+     * Outcome of {@link #joinOrCreateRoom(String, String)}
+     */
+    enum JoinResult {
+        /**
+         * The room didn't exist and has been created with the user as its administrator
+         */
+        CREATED,
 
-    public CompletableFuture<List<String>> getUsersForRoom(String roomName) {
-        return supplyAsync(connection -> {
-            String query = "SELECT username FROM room_members WHERE room = ?;";
-            return getQueryRunner().query(connection, query, new ArrayListHandler(), roomName)
-                                   .stream()
-                                   .map(arr -> ((String) arr[0]))
-                                   .collect(Collectors.toList());
-        });
-    }
+        /**
+         * The user has joined an existing room
+         */
+        JOINED,
 
-    public CompletableFuture<List<String>> getRooms() {
-        return supplyAsync(connection -> {
-            String query = "SELECT name FROM rooms;";
-            return getQueryRunner().query(connection, query, new ArrayListHandler())
-                                   .stream()
-                                   .map(arr -> ((String) arr[0]))
-                                   .collect(Collectors.toList());
-        });
+        /**
+         * The user is already a member of the room, nothing has changed
+         */
+        ALREADY_MEMBER
     }
 }
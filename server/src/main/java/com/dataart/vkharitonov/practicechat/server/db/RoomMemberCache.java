@@ -0,0 +1,183 @@
+package com.dataart.vkharitonov.practicechat.server.db;
+
+import com.dataart.vkharitonov.practicechat.server.metrics.MetricGroup;
+import com.dataart.vkharitonov.practicechat.server.metrics.Timer;
+import com.dataart.vkharitonov.practicechat.server.utils.FutureUtils;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Read-through cache of room members. The members of a room are loaded on the first request and then kept up to date
+ * by {@link PgRoomDao}, which reports every change it commits. The least recently used rooms are evicted when there are
+ * too many of them.
+ * <p>
+ * Concurrent requests for a room that isn't cached share a single load. Changes made while the load is in progress
+ * are applied to its result; since adding and removing a member are idempotent, the result is the same whether the
+ * loading query has seen the change or not.
+ */
+final class RoomMemberCache {
+
+    private final Function<String, CompletableFuture<List<String>>> loader;
+    private final Cache<String, Members> rooms;
+
+    private final MetricGroup metrics;
+    private final Timer loadLatency;
+    private final LongAdder failedLoads;
+
+    /**
+     * @param maxRooms maximum number of cached rooms
+     * @param loader   reads the members of a room from the database
+     */
+    RoomMemberCache(long maxRooms, Function<String, CompletableFuture<List<String>>> loader) {
+        this.loader = loader;
+        rooms = CacheBuilder.newBuilder()
+                            .maximumSize(maxRooms)
+                            .recordStats()
+                            .build();
+
+        metrics = new MetricGroup("RoomMemberCache");
+        metrics.gauge("size", rooms::size);
+        metrics.gauge("hits", () -> rooms.stats().hitCount());
+        metrics.gauge("misses", () -> rooms.stats().missCount());
+        metrics.gauge("hitRatio", () -> rooms.stats().hitRate());
+        metrics.gauge("evictions", () -> rooms.stats().evictionCount());
+        loadLatency = metrics.timer("load");
+        failedLoads = metrics.counter("failedLoads");
+        metrics.register();
+    }
+
+    /**
+     * @return {@link CompletableFuture} that completes with a snapshot of the room members
+     */
+    CompletableFuture<List<String>> get(String room) {
+        Members members;
+        try {
+            members = rooms.get(room, () -> load(room));
+        } catch (ExecutionException e) {
+            // load() doesn't throw
+            return FutureUtils.failure(e.getCause());
+        }
+
+        if (members.loaded.isCompletedExceptionally()) {
+            // Failed before it was cached
+            rooms.asMap().remove(room, members);
+        }
+
+        return members.loaded.thenApply(ArrayList::new);
+    }
+
+    /**
+     * Records a new room, which has only its administrator as a member. Members who have joined it right after it was
+     * committed may have been loaded already, so they aren't overwritten
+     */
+    void onRoomCreated(String room, String admin) {
+        Members members = new Members();
+        members.complete(Collections.singletonList(admin));
+        Members loaded = rooms.asMap().putIfAbsent(room, members);
+        if (loaded != null) {
+            loaded.change(admin, true);
+        }
+    }
+
+    void onRoomDropped(String room) {
+        rooms.invalidate(room);
+    }
+
+    void onMemberAdded(String room, String username) {
+        // Map view doesn't affect the hit ratio
+        Members members = rooms.asMap().get(room);
+        if (members != null) {
+            members.change(username, true);
+        }
+    }
+
+    void onMemberRemoved(String room, String username) {
+        Members members = rooms.asMap().get(room);
+        if (members != null) {
+            members.change(username, false);
+        }
+    }
+
+    void close() {
+        rooms.invalidateAll();
+        metrics.unregister();
+    }
+
+    private Members load(String room) {
+        long start = System.nanoTime();
+        CompletableFuture<List<String>> loaded;
+        try {
+            loaded = loader.apply(room);
+        } catch (RuntimeException e) {
+            // The executor has been shut down
+            loaded = FutureUtils.failure(e);
+        }
+
+        Members members = new Members();
+        loaded.whenComplete((usernames, e) -> {
+            if (e != null) {
+                failedLoads.increment();
+                // The next request tries again
+                rooms.asMap().remove(room, members);
+                members.loaded.completeExceptionally(e);
+            } else {
+                loadLatency.recordSince(start);
+                members.complete(usernames);
+            }
+        });
+
+        return members;
+    }
+
+    /**
+     * Members of a single room. Changes which arrive while the members are being loaded are applied to the loaded
+     * list before anyone sees it
+     */
+    private static class Members {
+
+        private final CompletableFuture<Set<String>> loaded = new CompletableFuture<>();
+        private final Set<String> usernames = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+        // Guarded by this, null once loaded
+        private Map<String, Boolean> pendingChanges = new HashMap<>();
+
+        private void complete(Collection<String> loadedUsernames) {
+            synchronized (this) {
+                usernames.addAll(loadedUsernames);
+                pendingChanges.forEach(this::apply);
+                pendingChanges = null;
+            }
+
+            loaded.complete(usernames);
+        }
+
+        private synchronized void change(String username, boolean isMember) {
+            if (pendingChanges != null) {
+                pendingChanges.put(username, isMember);
+            } else {
+                apply(username, isMember);
+            }
+        }
+
+        private void apply(String username, boolean isMember) {
+            if (isMember) {
+                usernames.add(username);
+            } else {
+                usernames.remove(username);
+            }
+        }
+    }
+}
@@ -1,48 +1,49 @@
 package com.dataart.vkharitonov.practicechat.server.db;
 
-import com.dataart.vkharitonov.practicechat.common.json.ChatMsg;
 import com.dataart.vkharitonov.practicechat.common.json.out.MsgHistoryOutMessage;
 import com.dataart.vkharitonov.practicechat.server.db.dto.RoomMsgDto;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import javax.sql.DataSource;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
-import java.util.stream.Collectors;
-
-public class RoomMsgDao extends Dao<RoomMsgDto> {
-
-    private final static Logger log = LoggerFactory.getLogger(RoomMsgDao.class.getName());
-
-    public RoomMsgDao(DataSource dataSource) {
-        super(dataSource, RoomMsgDto.class);
-    }
-
-    public CompletableFuture<Void> addMsg(RoomMsgDto roomMsg) {
-        return supplyAsync(connection -> {
-            String insert = "INSERT INTO room_messages(sender, room, message, sending_time) \n" +
-                    "VALUES (?, ?, ?, to_timestamp(?));";
-            getQueryRunner().insert(connection, insert, getDefaultResultSetHandler(), roomMsg.getSender(),
-                                    roomMsg.getRoom(), roomMsg.getMessage(),
-                                    roomMsg.getSendingTime().getTime() / 1000.0);
-
-            return null;
-        });
-    }
-
-    public CompletableFuture<MsgHistoryOutMessage> getHistoryForRoom(String room, long timestampTo, int limit) {
-        return supplyAsync(connection -> {
-            String query = "SELECT sender, room, message, sending_time AS sendingTime\n" +
-                    "FROM room_messages \n" +
-                    "WHERE room = ? AND sending_time <= to_timestamp(?)\n" +
-                    "LIMIT ?;";
-            List<ChatMsg> list =
-                    getQueryRunner().query(connection, query, getDefaultResultSetHandler(), room, timestampTo, limit)
-                                    .stream()
-                                    .map(RoomMsgDto::toChatMsg)
-                                    .collect(Collectors.toList());
-            return new MsgHistoryOutMessage(list);
-        });
-    }
+
+/**
+ * Messages sent to rooms
+ */
+public interface RoomMsgDao {
+
+    /**
+     * Stores the message. Fails if the sender or the room doesn't exist, or a message with the same journal id has
+     * already been stored
+     *
+     * @return {@link CompletableFuture} that completes with the id of the message when it is committed
+     */
+    CompletableFuture<Long> addMsg(RoomMsgDto roomMsg);
+
+    /**
+     * @return journal sequence numbers from {@code from} to {@code to} inclusive, which messages have been written
+     */
+    CompletableFuture<List<Long>> getJournalIds(long from, long to);
+
+    /**
+     * @return the largest journal sequence number of the written messages, or 0
+     */
+    CompletableFuture<Long> getMaxJournalId();
+
+    /**
+     * @return id of the message written from the journal record, or null if there is none
+     */
+    CompletableFuture<Long> getIdByJournalId(long journalId);
+
+    /**
+     * Drops the cached history of the room, see {@link ChatMsgDao#invalidateHistory(String, String)}
+     */
+    void invalidateHistory(String room);
+
+    /**
+     * Gets up to {@code limit} latest messages sent to the room before the {@code cursor}
+     *
+     * @return {@link CompletableFuture} that completes with the messages in chronological order and the cursor of the
+     * next page, if there may be more messages
+     */
+    CompletableFuture<MsgHistoryOutMessage> getHistoryForRoom(String room, HistoryCursor cursor, int limit);
 }
@@ -0,0 +1,35 @@
+package com.dataart.vkharitonov.practicechat.server.db;
+
+import org.apache.commons.dbutils.ResultSetHandler;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a single row by the column labels, without the reflection of the bean handlers
+ *
+ * @param <T> type of the rows
+ */
+public interface RowMapper<T> {
+
+    /**
+     * @param resultSet positioned at the row
+     */
+    T map(ResultSet resultSet) throws SQLException;
+
+    /**
+     * @return handler which maps all rows of the result set
+     */
+    static <T> ResultSetHandler<List<T>> listHandler(RowMapper<T> mapper) {
+        return resultSet -> {
+            List<T> rows = new ArrayList<>();
+            while (resultSet.next()) {
+                rows.add(mapper.map(resultSet));
+            }
+
+            return rows;
+        };
+    }
+}
@@ -0,0 +1,36 @@
+package com.dataart.vkharitonov.practicechat.server.db;
+
+/**
+ * Stores users, rooms and messages
+ */
+public interface Storage {
+
+    UserDao getUserDao();
+
+    RoomDao getRoomDao();
+
+    ChatMsgDao getMsgDao();
+
+    RoomMsgDao getRoomMsgDao();
+
+    /**
+     * Writes the pending messages and releases the resources
+     */
+    void close();
+
+    /**
+     * Available storage implementations
+     */
+    enum Engine {
+        /**
+         * PostgreSQL database, see {@link DbHelper}
+         */
+        POSTGRES,
+
+        /**
+         * Everything is kept in memory and lost on shutdown, see {@link MemoryStorage}. Takes the database out of
+         * benchmarks of the server
+         */
+        MEMORY
+    }
+}
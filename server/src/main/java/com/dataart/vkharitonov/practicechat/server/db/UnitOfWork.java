@@ -0,0 +1,62 @@
+package com.dataart.vkharitonov.practicechat.server.db;
+
+import com.dataart.vkharitonov.practicechat.server.metrics.MetricGroup;
+import com.dataart.vkharitonov.practicechat.server.metrics.Timer;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timings of a named operation which runs several statements on a single connection in one transaction, see {@link
+ * Dao#supplyInTransaction(String, Dao.Supplier)}.
+ * <p>
+ * The time from submitting the unit to getting a connection shows how long it waited for the executor and the pool.
+ * The time from the first statement to the commit or the rollback is how long the unit held the connection and its
+ * row locks.
+ */
+final class UnitOfWork {
+
+    private final MetricGroup metrics;
+    private final Timer waitLatency;
+    private final Timer transactionLatency;
+    private final LongAdder committed;
+    private final LongAdder rolledBack;
+
+    UnitOfWork(String name) {
+        metrics = new MetricGroup("UnitOfWork", name);
+        waitLatency = metrics.timer("wait");
+        transactionLatency = metrics.timer("transaction");
+        committed = metrics.counter("committed");
+        rolledBack = metrics.counter("rolledBack");
+        metrics.register();
+    }
+
+    /**
+     * Runs the {@code work} in a transaction
+     *
+     * @param submittedNanos time when the unit was submitted to the executor
+     */
+    <U> U run(Connection connection, Dao.Supplier<U> work, long submittedNanos) throws SQLException {
+        long start = System.nanoTime();
+        waitLatency.record(start - submittedNanos);
+
+        boolean isCommitted = false;
+        try {
+            U result = Dao.inTransaction(connection, work);
+            isCommitted = true;
+            return result;
+        } finally {
+            transactionLatency.recordSince(start);
+            if (isCommitted) {
+                committed.increment();
+            } else {
+                rolledBack.increment();
+            }
+        }
+    }
+
+    void close() {
+        metrics.unregister();
+    }
+}
@@ -0,0 +1,60 @@
+package com.dataart.vkharitonov.practicechat.server.db;
+
+/**
+ * Classes of DB work, each of which has its own threads, connections and queue, see {@link Bulkhead}. A slow history
+ * scan can then only delay other history requests, not logins or sent messages. The default quotas can be changed by
+ * {@link BulkheadPolicy}
+ */
+public enum Workload {
+
+    /**
+     * Looking up and creating users when they connect
+     */
+    AUTH("auth", 2, 1000),
+
+    /**
+     * Storing messages, reading and marking undelivered ones
+     */
+    MESSAGE_WRITES("messageWrites", 3, 10000),
+
+    /**
+     * Reading history pages
+     */
+    HISTORY_READS("historyReads", 3, 1000),
+
+    /**
+     * Creating, joining, leaving and listing rooms, loading their members
+     */
+    ROOM_ADMIN("roomAdmin", 2, 1000);
+
+    private final String name;
+    private final int defaultMaxConnections;
+    private final int defaultMaxQueued;
+
+    Workload(String name, int defaultMaxConnections, int defaultMaxQueued) {
+        this.name = name;
+        this.defaultMaxConnections = defaultMaxConnections;
+        this.defaultMaxQueued = defaultMaxQueued;
+    }
+
+    /**
+     * @return name used for the threads, the metrics and the server properties
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @see BulkheadPolicy.Quota#getMaxConnections()
+     */
+    public int getDefaultMaxConnections() {
+        return defaultMaxConnections;
+    }
+
+    /**
+     * @see BulkheadPolicy.Quota#getMaxQueued()
+     */
+    public int getDefaultMaxQueued() {
+        return defaultMaxQueued;
+    }
+}
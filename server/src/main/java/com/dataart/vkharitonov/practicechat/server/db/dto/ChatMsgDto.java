@@ -2,15 +2,15 @@ package com.dataart.vkharitonov.practicechat.server.db.dto;
 
 import com.dataart.vkharitonov.practicechat.common.json.ChatMsg;
 
-import java.sql.Timestamp;
-
 public class ChatMsgDto {
 
+    private long id;
     private String sender;
     private String destination;
     private String message;
-    private Timestamp sendingTime;
+    private long sendingTime;
     private boolean delivered;
+    private Long journalId;
 
     public ChatMsgDto() {
     }
@@ -19,10 +19,18 @@ public class ChatMsgDto {
         this.sender = sender;
         this.destination = destination;
         this.message = message;
-        this.sendingTime = new Timestamp(timestamp);
+        this.sendingTime = timestamp;
         this.delivered = delivered;
     }
 
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
     public String getSender() {
         return sender;
     }
@@ -47,12 +55,15 @@ public class ChatMsgDto {
         this.message = message;
     }
 
-    public Timestamp getSendingTime() {
-        return new Timestamp(sendingTime.getTime());
+    /**
+     * @return sending time in milliseconds
+     */
+    public long getSendingTime() {
+        return sendingTime;
     }
 
-    public void setSendingTime(Timestamp sendingTime) {
-        this.sendingTime = new Timestamp(sendingTime.getTime());
+    public void setSendingTime(long sendingTime) {
+        this.sendingTime = sendingTime;
     }
 
     public boolean isDelivered() {
@@ -63,14 +74,26 @@ public class ChatMsgDto {
         this.delivered = delivered;
     }
 
+    /**
+     * @return sequence number of the journal record the message was written from, or null
+     */
+    public Long getJournalId() {
+        return journalId;
+    }
+
+    public void setJournalId(Long journalId) {
+        this.journalId = journalId;
+    }
+
     public ChatMsg toChatMsg() {
-        return new ChatMsg(sender, destination, message, sendingTime.getTime());
+        return new ChatMsg(sender, destination, message, sendingTime);
     }
 
     @Override
     public String toString() {
         return "ChatMsgDto{" +
-                "sender='" + sender + '\'' +
+                "id=" + id +
+                ", sender='" + sender + '\'' +
                 ", destination='" + destination + '\'' +
                 ", message='" + message + '\'' +
                 ", sendingTime=" + sendingTime +
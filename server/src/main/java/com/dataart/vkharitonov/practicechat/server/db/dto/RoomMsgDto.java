@@ -2,14 +2,14 @@ package com.dataart.vkharitonov.practicechat.server.db.dto;
 
 import com.dataart.vkharitonov.practicechat.common.json.ChatMsg;
 
-import java.sql.Timestamp;
-
 public class RoomMsgDto {
 
+    private long id;
     private String sender;
     private String room;
     private String message;
-    private Timestamp sendingTime;
+    private long sendingTime;
+    private Long journalId;
 
     public RoomMsgDto() {
     }
@@ -18,7 +18,15 @@ public class RoomMsgDto {
         this.sender = sender;
         this.room = room;
         this.message = message;
-        this.sendingTime = new Timestamp(timestamp);
+        this.sendingTime = timestamp;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
     }
 
     public String getSender() {
@@ -45,22 +53,37 @@ public class RoomMsgDto {
         this.message = message;
     }
 
-    public Timestamp getSendingTime() {
-        return new Timestamp(sendingTime.getTime());
+    /**
+     * @return sending time in milliseconds
+     */
+    public long getSendingTime() {
+        return sendingTime;
+    }
+
+    public void setSendingTime(long sendingTime) {
+        this.sendingTime = sendingTime;
+    }
+
+    /**
+     * @return sequence number of the journal record the message was written from, or null
+     */
+    public Long getJournalId() {
+        return journalId;
     }
 
-    public void setSendingTime(Timestamp sendingTime) {
-        this.sendingTime = new Timestamp(sendingTime.getTime());
+    public void setJournalId(Long journalId) {
+        this.journalId = journalId;
     }
 
     public ChatMsg toChatMsg() {
-        return new ChatMsg(sender, room, message, sendingTime.getTime());
+        return new ChatMsg(sender, room, message, sendingTime);
     }
 
     @Override
     public String toString() {
         return "RoomMsgDto{" +
-                "sender='" + sender + '\'' +
+                "id=" + id +
+                ", sender='" + sender + '\'' +
                 ", room='" + room + '\'' +
                 ", message='" + message + '\'' +
                 ", sendingTime=" + sendingTime +
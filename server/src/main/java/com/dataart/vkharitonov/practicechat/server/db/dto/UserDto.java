@@ -2,6 +2,7 @@ package com.dataart.vkharitonov.practicechat.server.db.dto;
 
 public class UserDto {
 
+    private int id;
     private String name;
     private String hash;
     private String salt;
@@ -15,6 +16,14 @@ public class UserDto {
         this.salt = salt;
     }
 
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
     public String getName() {
         return name;
     }
@@ -0,0 +1,41 @@
+package com.dataart.vkharitonov.practicechat.server.journal;
+
+import com.dataart.vkharitonov.practicechat.server.db.Storage;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Writes the messages straight to the database. A message is acknowledged only after it is committed
+ */
+public final class DirectMessageJournal implements MessageJournal {
+
+    private final MessageStore store;
+
+    public DirectMessageJournal(Storage storage) {
+        store = new MessageStore(storage);
+    }
+
+    @Override
+    public JournalEntry append(String sender, String destination, String message, long timestamp) {
+        JournalEntry entry = new JournalEntry(0, sender, destination, message, timestamp);
+        store.store(entry).whenComplete((id, e) -> {
+            if (e != null) {
+                entry.fail(e);
+            } else {
+                entry.committed().complete(id);
+                entry.written().complete(null);
+            }
+        });
+
+        return entry;
+    }
+
+    @Override
+    public CompletableFuture<Void> drained() {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void close() {
+    }
+}
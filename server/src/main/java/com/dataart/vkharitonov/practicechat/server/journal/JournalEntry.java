@@ -0,0 +1,196 @@
+package com.dataart.vkharitonov.practicechat.server.journal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+
+/**
+ * Message appended to a {@link MessageJournal}
+ * <p>
+ * A record consists of the length of its body and the body's CRC32, both 4-byte integers, and the body: the sequence
+ * number and the sending time, 8-byte integers, and the sender, the destination and the text of the message, each
+ * preceded by its length in bytes (-1 if null).
+ */
+public final class JournalEntry {
+
+    static final int HEADER_BYTES = 2 * Integer.BYTES;
+
+    private final long seq;
+    private final String sender;
+    private final String destination;
+    private final String message;
+    private final long timestamp;
+
+    private final CompletableFuture<Void> written = new CompletableFuture<>();
+    private final CompletableFuture<Long> committed = new CompletableFuture<>();
+
+    // Set when the record is written to a segment, or read from it
+    Segment segment;
+    long appendedNanos;
+
+    /**
+     * @param seq sequence number of the record, 0 if the message is not journaled
+     */
+    JournalEntry(long seq, String sender, String destination, String message, long timestamp) {
+        this.seq = seq;
+        this.sender = sender;
+        this.destination = destination;
+        this.message = message;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return {@link CompletableFuture} that completes when the message is durable and may be delivered
+     */
+    public CompletableFuture<Void> written() {
+        return written;
+    }
+
+    /**
+     * @return {@link CompletableFuture} that completes with the id of the message when it is written to the database
+     */
+    public CompletableFuture<Long> committed() {
+        return committed;
+    }
+
+    long getSeq() {
+        return seq;
+    }
+
+    String getSender() {
+        return sender;
+    }
+
+    String getDestination() {
+        return destination;
+    }
+
+    String getMessage() {
+        return message;
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return sequence number stored in the database, or null if the message is not journaled
+     */
+    Long getJournalId() {
+        return seq != 0 ? seq : null;
+    }
+
+    boolean isRoomMessage() {
+        return destination.startsWith("#");
+    }
+
+    void fail(Throwable e) {
+        written.completeExceptionally(e);
+        committed.completeExceptionally(e);
+    }
+
+    /**
+     * @return the whole record
+     */
+    byte[] encode() {
+        byte[] senderBytes = bytes(sender);
+        byte[] destinationBytes = bytes(destination);
+        byte[] messageBytes = bytes(message);
+        int bodyBytes = 2 * Long.BYTES + 3 * Integer.BYTES + length(senderBytes) + length(destinationBytes) +
+                length(messageBytes);
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + bodyBytes);
+        record.position(HEADER_BYTES);
+        record.putLong(seq);
+        record.putLong(timestamp);
+        putString(record, senderBytes);
+        putString(record, destinationBytes);
+        putString(record, messageBytes);
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER_BYTES, bodyBytes);
+        record.putInt(0, bodyBytes);
+        record.putInt(Integer.BYTES, (int) crc.getValue());
+
+        return record.array();
+    }
+
+    /**
+     * Reads the record at the current position of the buffer and moves past it
+     *
+     * @return entry, or null if there is no complete record at the position
+     */
+    static JournalEntry decode(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_BYTES) {
+            return null;
+        }
+
+        int start = buffer.position();
+        int bodyBytes = buffer.getInt(start);
+        int checksum = buffer.getInt(start + Integer.BYTES);
+        if (bodyBytes <= 0 || bodyBytes > buffer.remaining() - HEADER_BYTES) {
+            // End of the written records, or a torn header
+            return null;
+        }
+
+        byte[] body = new byte[bodyBytes];
+        buffer.position(start + HEADER_BYTES);
+        buffer.get(body);
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int) crc.getValue() != checksum) {
+            // The server stopped in the middle of the write
+            buffer.position(start);
+            return null;
+        }
+
+        ByteBuffer record = ByteBuffer.wrap(body);
+        long seq = record.getLong();
+        long timestamp = record.getLong();
+        String sender = getString(record);
+        String destination = getString(record);
+        String message = getString(record);
+
+        return new JournalEntry(seq, sender, destination, message, timestamp);
+    }
+
+    private static byte[] bytes(String str) {
+        return str != null ? str.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes != null ? bytes.length : 0;
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+
+        String str = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return str;
+    }
+
+    @Override
+    public String toString() {
+        return "JournalEntry{" +
+                "seq=" + seq +
+                ", sender='" + sender + '\'' +
+                ", destination='" + destination + '\'' +
+                ", timestamp=" + timestamp +
+                '}';
+    }
+}
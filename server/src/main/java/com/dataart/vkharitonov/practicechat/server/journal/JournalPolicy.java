@@ -0,0 +1,55 @@
+package com.dataart.vkharitonov.practicechat.server.journal;
+
+import java.nio.file.Path;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Determines where the message journal is kept and when its records become durable
+ */
+public final class JournalPolicy {
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final boolean isForceOnAppend;
+
+    /**
+     * @param directory       directory of the journal segments
+     * @param segmentBytes    size of a segment file. A message must fit into a single segment
+     * @param isForceOnAppend true if a message is acknowledged only after it is forced to the disk. Otherwise it is
+     *                        acknowledged once written to the mapped segment, which survives a crash of the server,
+     *                        but not of the OS
+     */
+    public JournalPolicy(Path directory, int segmentBytes, boolean isForceOnAppend) {
+        checkNotNull(directory, "Journal directory must not be null");
+
+        if (segmentBytes <= 0) {
+            throw new IllegalArgumentException("Segment size must be positive");
+        }
+
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.isForceOnAppend = isForceOnAppend;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public int getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    public boolean isForceOnAppend() {
+        return isForceOnAppend;
+    }
+
+    @Override
+    public String toString() {
+        return "JournalPolicy{" +
+                "directory=" + directory +
+                ", segmentBytes=" + segmentBytes +
+                ", isForceOnAppend=" + isForceOnAppend +
+                '}';
+    }
+}
@@ -0,0 +1,468 @@
+package com.dataart.vkharitonov.practicechat.server.journal;
+
+import com.dataart.vkharitonov.practicechat.server.db.Storage;
+import com.dataart.vkharitonov.practicechat.server.metrics.MetricGroup;
+import com.dataart.vkharitonov.practicechat.server.metrics.Timer;
+import com.dataart.vkharitonov.practicechat.server.utils.FutureUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Write-ahead journal of memory-mapped segment files. A message is acknowledged as soon as it is written to the
+ * journal, and a background drainer writes the journaled messages to the database in bulk. A segment is deleted once
+ * it is full and all its messages are in the database.
+ * <p>
+ * Every message stores the sequence number of its record, so when the journal is opened, the records left by the
+ * previous run are written to the database unless they are already there.
+ */
+public final class MappedMessageJournal implements MessageJournal {
+
+    private final static Logger log = LoggerFactory.getLogger(MappedMessageJournal.class.getName());
+
+    private static final int MAX_DRAIN_BATCH = 1024;
+    private static final long RETRY_DELAY_MILLIS = 1000;
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+    // Class of SQL states of constraint violations, e.g. a message to a user who doesn't exist
+    private static final String INTEGRITY_VIOLATION = "23";
+    // Only the journal id is unique
+    private static final String UNIQUE_VIOLATION = "23505";
+
+    private final JournalPolicy policy;
+    private final MessageStore store;
+
+    // Guarded by this. The last segment is the one being appended to
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private long nextSeq;
+    private boolean isClosed;
+
+    private final Set<JournalEntry> pendingEntries = ConcurrentHashMap.newKeySet();
+    private final BlockingQueue<JournalEntry> drainQueue = new LinkedBlockingQueue<>();
+    private final Thread drainer;
+
+    private final Queue<JournalEntry> unforcedEntries = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean isForcing = new AtomicBoolean();
+    private final ExecutorService forceExecutor;
+
+    private final MetricGroup metrics;
+    private final LongAdder appended;
+    private final LongAdder drained;
+    private final LongAdder rejected;
+    private final LongAdder retried;
+    private final Timer forceLatency;
+    private final Timer drainLatency;
+
+    private MappedMessageJournal(JournalPolicy policy, Storage storage) {
+        this.policy = policy;
+        store = new MessageStore(storage);
+
+        drainer = new Thread(this::drain, "journal-drainer");
+        drainer.setDaemon(true);
+        forceExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "journal-force");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        metrics = new MetricGroup("MessageJournal");
+        appended = metrics.counter("appended");
+        drained = metrics.counter("drained");
+        rejected = metrics.counter("rejected");
+        retried = metrics.counter("retried");
+        metrics.gauge("pendingMessages", pendingEntries::size);
+        metrics.gauge("segments", this::getSegmentCount);
+        forceLatency = metrics.timer("force");
+        drainLatency = metrics.timer("drainLatency");
+    }
+
+    /**
+     * Opens the journal and writes the messages left by the previous run to the database. Returns when they are
+     * written, so it must be called before the server accepts new messages
+     *
+     * @param storage where the messages are written
+     */
+    public static MappedMessageJournal open(JournalPolicy policy, Storage storage) throws IOException {
+        MappedMessageJournal journal = new MappedMessageJournal(policy, storage);
+        journal.metrics.register();
+        try {
+            journal.replay();
+        } catch (IOException | RuntimeException e) {
+            journal.drainer.interrupt();
+            journal.metrics.unregister();
+            throw e;
+        }
+
+        return journal;
+    }
+
+    private void replay() throws IOException {
+        Path directory = policy.getDirectory();
+        Files.createDirectories(directory);
+
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(path -> path.getFileName().toString().endsWith(Segment.SUFFIX))
+                        .sorted()
+                        .collect(Collectors.toList());
+        }
+
+        List<JournalEntry> entries = new ArrayList<>();
+        for (Path file : files) {
+            Segment segment = Segment.open(file);
+            List<JournalEntry> segmentEntries = segment.read();
+            segment.addPending(segmentEntries.size());
+            entries.addAll(segmentEntries);
+            segments.add(segment);
+        }
+
+        long maxSeq = awaitDb(store.getMaxStoredSeq());
+        if (!entries.isEmpty()) {
+            long from = entries.get(0).getSeq();
+            long to = entries.get(entries.size() - 1).getSeq();
+            Set<Long> storedSeqs = awaitDb(store.getStoredSeqs(from, to));
+            maxSeq = Math.max(maxSeq, to);
+
+            int replayed = 0;
+            for (JournalEntry entry : entries) {
+                entry.written().complete(null);
+                if (storedSeqs.contains(entry.getSeq())) {
+                    onDrained(entry);
+                } else {
+                    submit(entry);
+                    replayed++;
+                }
+            }
+
+            log.info("Replaying {} of {} journaled messages", replayed, entries.size());
+        }
+
+        // Segments without records
+        synchronized (this) {
+            segments.removeIf(segment -> {
+                if (segment.isDrained()) {
+                    segment.delete();
+                    return true;
+                }
+
+                return false;
+            });
+        }
+
+        // Sequence numbers of the new records are greater than all stored ones, even if the journal has been lost
+        nextSeq = maxSeq + 1;
+        segments.add(Segment.create(directory, nextSeq, policy.getSegmentBytes()));
+        drainer.start();
+
+        awaitDb(drained());
+    }
+
+    private static <T> T awaitDb(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while replaying the journal", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Couldn't replay the journal", e.getCause());
+        }
+    }
+
+    @Override
+    public JournalEntry append(String sender, String destination, String message, long timestamp) {
+        JournalEntry entry;
+        synchronized (this) {
+            entry = new JournalEntry(nextSeq, sender, destination, message, timestamp);
+            if (isClosed) {
+                entry.fail(new IllegalStateException("Journal is closed"));
+                return entry;
+            }
+
+            byte[] record = entry.encode();
+            if (record.length > policy.getSegmentBytes()) {
+                entry.fail(new IllegalArgumentException("Message doesn't fit into a journal segment"));
+                return entry;
+            }
+
+            Segment segment = segments.getLast();
+            if (!segment.append(record)) {
+                try {
+                    segment = roll();
+                } catch (IOException e) {
+                    log.error("Couldn't create journal segment: {}", e.getMessage());
+                    entry.fail(e);
+                    return entry;
+                }
+
+                segment.append(record);
+            }
+
+            nextSeq++;
+            segment.addPending(1);
+            entry.segment = segment;
+        }
+
+        appended.increment();
+        if (policy.isForceOnAppend()) {
+            unforcedEntries.add(entry);
+            if (isForcing.compareAndSet(false, true)) {
+                forceExecutor.execute(this::force);
+            }
+        } else {
+            entry.written().complete(null);
+        }
+
+        submit(entry);
+        return entry;
+    }
+
+    @Override
+    public CompletableFuture<Void> drained() {
+        CompletableFuture<?>[] committed = pendingEntries.stream()
+                                                         .map(entry -> entry.committed().handle((id, e) -> null))
+                                                         .toArray(CompletableFuture<?>[]::new);
+        return CompletableFuture.allOf(committed);
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+
+            isClosed = true;
+        }
+
+        try {
+            drained().get(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.warn("{} journaled messages haven't been written to the database, they will be written on restart",
+                     pendingEntries.size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Can't happen, failures are handled
+        }
+
+        drainer.interrupt();
+        forceExecutor.shutdown();
+
+        synchronized (this) {
+            Segment last = segments.getLast();
+            last.force();
+            last.seal();
+            if (last.isDrained()) {
+                last.delete();
+                segments.removeLast();
+            }
+        }
+
+        metrics.unregister();
+    }
+
+    /**
+     * Seals the current segment and starts a new one. Called with the lock held
+     */
+    private Segment roll() throws IOException {
+        Segment sealed = segments.getLast();
+        if (policy.isForceOnAppend()) {
+            // The forcing thread only forces the current segment
+            sealed.force();
+        }
+
+        Segment segment = Segment.create(policy.getDirectory(), nextSeq, policy.getSegmentBytes());
+        sealed.seal();
+        if (sealed.isDrained()) {
+            sealed.delete();
+            segments.removeLast();
+        }
+
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Forces the current segment to the disk and acknowledges the entries written before. Entries appended while the
+     * segment is being forced are acknowledged by the next force
+     */
+    private void force() {
+        while (true) {
+            List<JournalEntry> entries = new ArrayList<>();
+            JournalEntry entry;
+            while ((entry = unforcedEntries.poll()) != null) {
+                entries.add(entry);
+            }
+
+            if (entries.isEmpty()) {
+                isForcing.set(false);
+                if (unforcedEntries.isEmpty() || !isForcing.compareAndSet(false, true)) {
+                    return;
+                }
+
+                // Appended concurrently after the poll
+                continue;
+            }
+
+            Segment segment;
+            synchronized (this) {
+                segment = segments.getLast();
+            }
+
+            long start = System.nanoTime();
+            segment.force();
+            forceLatency.recordSince(start);
+
+            entries.forEach(written -> written.written().complete(null));
+        }
+    }
+
+    private void submit(JournalEntry entry) {
+        entry.appendedNanos = System.nanoTime();
+        pendingEntries.add(entry);
+        drainQueue.add(entry);
+    }
+
+    /**
+     * Writes the journaled messages to the database. Messages which fail because of the database being unavailable
+     * are retried, messages which violate a constraint are dropped.
+     * <p>
+     * A retried message may have been committed by the failed attempt, e.g. when the connection was lost before the
+     * commit was acknowledged. Its journal id is then taken, and the message is completed with the id of the stored
+     * row.
+     */
+    private void drain() {
+        List<JournalEntry> retries = new ArrayList<>();
+        List<JournalEntry> duplicates = new ArrayList<>();
+        try {
+            while (true) {
+                List<JournalEntry> batch = new ArrayList<>(retries);
+                retries.clear();
+                if (batch.isEmpty()) {
+                    batch.add(drainQueue.take());
+                }
+                drainQueue.drainTo(batch, MAX_DRAIN_BATCH - batch.size());
+
+                // The DAOs group the messages into transactions
+                List<CompletableFuture<Long>> ids = batch.stream()
+                                                         .map(this::store)
+                                                         .collect(Collectors.toList());
+                for (int i = 0; i < batch.size(); i++) {
+                    JournalEntry entry = batch.get(i);
+                    try {
+                        onStored(entry, ids.get(i).get());
+                    } catch (ExecutionException e) {
+                        if (hasState(e.getCause(), UNIQUE_VIOLATION)) {
+                            duplicates.add(entry);
+                        } else if (hasState(e.getCause(), INTEGRITY_VIOLATION)) {
+                            onRejected(entry, e.getCause());
+                        } else {
+                            retries.add(entry);
+                        }
+                    }
+                }
+
+                for (JournalEntry entry : duplicates) {
+                    try {
+                        Long id = store.getStoredId(entry).get();
+                        if (id != null) {
+                            store.invalidateHistory(entry);
+                            onStored(entry, id);
+                        } else {
+                            onRejected(entry, new SQLException("Unique violation without a stored message",
+                                                               UNIQUE_VIOLATION));
+                        }
+                    } catch (ExecutionException e) {
+                        retries.add(entry);
+                    }
+                }
+                duplicates.clear();
+
+                if (!retries.isEmpty()) {
+                    log.warn("Couldn't write {} journaled messages to the database, retrying in {} ms",
+                             retries.size(), RETRY_DELAY_MILLIS);
+                    retried.add(retries.size());
+                    Thread.sleep(RETRY_DELAY_MILLIS);
+                }
+            }
+        } catch (InterruptedException e) {
+            // The journal is closed, the rest is written on restart
+        }
+    }
+
+    private CompletableFuture<Long> store(JournalEntry entry) {
+        try {
+            return store.store(entry);
+        } catch (RuntimeException e) {
+            // The executor has been shut down
+            return FutureUtils.failure(e);
+        }
+    }
+
+    /**
+     * @param state SQL state or its class
+     */
+    private static boolean hasState(Throwable e, String state) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException) {
+                String sqlState = ((SQLException) cause).getSQLState();
+                return sqlState != null && sqlState.startsWith(state);
+            }
+        }
+
+        return false;
+    }
+
+    private void onStored(JournalEntry entry, long id) {
+        drainLatency.recordSince(entry.appendedNanos);
+        entry.committed().complete(id);
+        onDrained(entry);
+    }
+
+    private void onRejected(JournalEntry entry, Throwable e) {
+        log.warn("Dropped journaled message {}: {}", entry, e.getMessage());
+        rejected.increment();
+        entry.committed().completeExceptionally(e);
+        onDrained(entry);
+    }
+
+    private void onDrained(JournalEntry entry) {
+        synchronized (this) {
+            Segment segment = entry.segment;
+            if (segment.removePending()) {
+                segment.delete();
+                segments.remove(segment);
+            }
+        }
+
+        drained.increment();
+        pendingEntries.remove(entry);
+    }
+
+    private synchronized int getSegmentCount() {
+        return segments.size();
+    }
+}
@@ -0,0 +1,27 @@
+package com.dataart.vkharitonov.practicechat.server.journal;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Accepts chat messages and writes them to the database
+ */
+public interface MessageJournal {
+
+    /**
+     * Stores a message sent to a user, or to a room if {@code destination} starts with '#'
+     *
+     * @param timestamp sending time in milliseconds
+     */
+    JournalEntry append(String sender, String destination, String message, long timestamp);
+
+    /**
+     * @return {@link CompletableFuture} that completes when all messages appended so far have been written to the
+     * database or rejected by it
+     */
+    CompletableFuture<Void> drained();
+
+    /**
+     * Stops accepting messages and waits for the appended ones to be written to the database for a while
+     */
+    void close();
+}
@@ -0,0 +1,91 @@
+package com.dataart.vkharitonov.practicechat.server.journal;
+
+import com.dataart.vkharitonov.practicechat.server.db.ChatMsgDao;
+import com.dataart.vkharitonov.practicechat.server.db.RoomMsgDao;
+import com.dataart.vkharitonov.practicechat.server.db.Storage;
+import com.dataart.vkharitonov.practicechat.server.db.dto.ChatMsgDto;
+import com.dataart.vkharitonov.practicechat.server.db.dto.RoomMsgDto;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Writes journal entries to the message tables
+ */
+final class MessageStore {
+
+    private final Storage storage;
+
+    MessageStore(Storage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * @return {@link CompletableFuture} that completes with the id of the stored message
+     */
+    CompletableFuture<Long> store(JournalEntry entry) {
+        if (entry.isRoomMessage()) {
+            RoomMsgDto roomMsg = new RoomMsgDto(entry.getSender(), entry.getDestination(), entry.getMessage(),
+                                                entry.getTimestamp());
+            roomMsg.setJournalId(entry.getJournalId());
+            return getRoomMsgDao().addMsg(roomMsg);
+        } else {
+            ChatMsgDto chatMsg = new ChatMsgDto(entry.getSender(), entry.getDestination(), entry.getMessage(),
+                                                entry.getTimestamp(), false);
+            chatMsg.setJournalId(entry.getJournalId());
+            return getMsgDao().addMsg(chatMsg);
+        }
+    }
+
+    /**
+     * @return id of the message stored from the entry, or null if it hasn't been stored
+     */
+    CompletableFuture<Long> getStoredId(JournalEntry entry) {
+        if (entry.isRoomMessage()) {
+            return getRoomMsgDao().getIdByJournalId(entry.getSeq());
+        } else {
+            return getMsgDao().getIdByJournalId(entry.getSeq());
+        }
+    }
+
+    /**
+     * Drops the cached history of the entry's conversation. The message has been committed although its insert has
+     * been reported as failed, so the cache may miss it
+     */
+    void invalidateHistory(JournalEntry entry) {
+        if (entry.isRoomMessage()) {
+            getRoomMsgDao().invalidateHistory(entry.getDestination());
+        } else {
+            getMsgDao().invalidateHistory(entry.getSender(), entry.getDestination());
+        }
+    }
+
+    /**
+     * @return sequence numbers from {@code from} to {@code to} inclusive, which messages have been stored
+     */
+    CompletableFuture<Set<Long>> getStoredSeqs(long from, long to) {
+        CompletableFuture<List<Long>> roomMsgIds = getRoomMsgDao().getJournalIds(from, to);
+        return getMsgDao().getJournalIds(from, to).thenCombine(roomMsgIds, (msgIds, roomIds) -> {
+            Set<Long> ids = new HashSet<>(msgIds);
+            ids.addAll(roomIds);
+            return ids;
+        });
+    }
+
+    /**
+     * @return the largest sequence number of the stored messages, or 0
+     */
+    CompletableFuture<Long> getMaxStoredSeq() {
+        return getMsgDao().getMaxJournalId().thenCombine(getRoomMsgDao().getMaxJournalId(), Math::max);
+    }
+
+    private ChatMsgDao getMsgDao() {
+        return storage.getMsgDao();
+    }
+
+    private RoomMsgDao getRoomMsgDao() {
+        return storage.getRoomMsgDao();
+    }
+}
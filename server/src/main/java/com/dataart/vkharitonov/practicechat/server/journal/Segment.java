@@ -0,0 +1,147 @@
+package com.dataart.vkharitonov.practicechat.server.journal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Journal file of a fixed size, mapped into memory. Records are appended one after another, the rest of the file is
+ * zeroed. The file is named after the sequence number of its first record, so the segments sort in the order of
+ * their records.
+ * <p>
+ * Not thread-safe, guarded by {@link MappedMessageJournal}.
+ */
+final class Segment {
+
+    private final static Logger log = LoggerFactory.getLogger(Segment.class.getName());
+
+    static final String SUFFIX = ".journal";
+
+    private final Path path;
+    private final MappedByteBuffer buffer;
+
+    // Records which haven't been written to the database yet
+    private int pendingRecords;
+    // No more records are appended
+    private boolean isSealed;
+
+    private Segment(Path path, MappedByteBuffer buffer) {
+        this.path = path;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Creates an empty segment
+     */
+    static Segment create(Path directory, long firstSeq, int size) throws IOException {
+        Path path = directory.resolve(String.format("%020d%s", firstSeq, SUFFIX));
+        return new Segment(path, map(path, size, StandardOpenOption.CREATE_NEW));
+    }
+
+    /**
+     * Opens an existing segment to read its records. It is sealed
+     */
+    static Segment open(Path path) throws IOException {
+        Segment segment = new Segment(path, map(path, Files.size(path)));
+        segment.isSealed = true;
+        return segment;
+    }
+
+    private static MappedByteBuffer map(Path path, long size, StandardOpenOption... options) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, withReadWrite(options))) {
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static StandardOpenOption[] withReadWrite(StandardOpenOption[] options) {
+        StandardOpenOption[] all = new StandardOpenOption[options.length + 2];
+        all[0] = StandardOpenOption.READ;
+        all[1] = StandardOpenOption.WRITE;
+        System.arraycopy(options, 0, all, 2, options.length);
+        return all;
+    }
+
+    /**
+     * Reads the records from the beginning of the segment up to the first incomplete one
+     */
+    List<JournalEntry> read() {
+        List<JournalEntry> entries = new ArrayList<>();
+        buffer.position(0);
+        JournalEntry entry;
+        while ((entry = JournalEntry.decode(buffer)) != null) {
+            entry.segment = this;
+            entries.add(entry);
+        }
+
+        if (buffer.remaining() >= JournalEntry.HEADER_BYTES && buffer.getInt(buffer.position()) != 0) {
+            log.warn("Journal segment {} ends with an incomplete record at {}", path, buffer.position());
+        }
+
+        return entries;
+    }
+
+    /**
+     * @return false if there is no space left for the record
+     */
+    boolean append(byte[] record) {
+        if (buffer.remaining() < record.length) {
+            return false;
+        }
+
+        buffer.put(record);
+        return true;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    void seal() {
+        isSealed = true;
+    }
+
+    boolean isSealed() {
+        return isSealed;
+    }
+
+    void addPending(int records) {
+        pendingRecords += records;
+    }
+
+    /**
+     * @return true if all records of a sealed segment have been written to the database
+     */
+    boolean removePending() {
+        pendingRecords--;
+        return isSealed && pendingRecords == 0;
+    }
+
+    boolean isDrained() {
+        return isSealed && pendingRecords == 0;
+    }
+
+    /**
+     * Deletes the file. The memory is unmapped when the buffer is garbage collected
+     */
+    void delete() {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Couldn't delete journal segment {}: {}", path, e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return path.getFileName().toString();
+    }
+}
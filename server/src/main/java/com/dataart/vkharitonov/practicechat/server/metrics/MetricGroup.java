@@ -0,0 +1,174 @@
+package com.dataart.vkharitonov.practicechat.server.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A named set of numeric metrics. The group is exported through JMX as a single MBean {@code
+ * com.dataart.vkharitonov.practicechat:type=<type>[,name=<name>]} with one read-only attribute per metric.
+ */
+public final class MetricGroup implements DynamicMBean {
+
+    private final static Logger log = LoggerFactory.getLogger(MetricGroup.class.getName());
+    private static final String DOMAIN = "com.dataart.vkharitonov.practicechat";
+
+    private final ObjectName objectName;
+    private final Map<String, Supplier<? extends Number>> metrics = new ConcurrentSkipListMap<>();
+
+    /**
+     * @param type type of the component which owns the metrics
+     */
+    public MetricGroup(String type) {
+        this(type, null);
+    }
+
+    /**
+     * @param type type of the component which owns the metrics
+     * @param name name of the component instance, may be null
+     */
+    public MetricGroup(String type, String name) {
+        String objectName = DOMAIN + ":type=" + type;
+        if (name != null) {
+            objectName += ",name=" + ObjectName.quote(name);
+        }
+
+        try {
+            this.objectName = new ObjectName(objectName);
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Creates a monotonically increasing counter
+     */
+    public LongAdder counter(String name) {
+        LongAdder counter = new LongAdder();
+        metrics.put(name, counter::sum);
+        return counter;
+    }
+
+    /**
+     * Adds a metric which value is computed on demand
+     */
+    public void gauge(String name, Supplier<? extends Number> supplier) {
+        metrics.put(name, supplier);
+    }
+
+    /**
+     * Creates a latency recorder. Exported as {@code <name>.count}, {@code <name>.avgMillis} and {@code
+     * <name>.maxMillis}
+     */
+    public Timer timer(String name) {
+        Timer timer = new Timer();
+        metrics.put(name + ".count", timer::getCount);
+        metrics.put(name + ".avgMillis", timer::getAverageMillis);
+        metrics.put(name + ".maxMillis", timer::getMaxMillis);
+        return timer;
+    }
+
+    /**
+     * @return current values of all metrics
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> result = new LinkedHashMap<>();
+        metrics.forEach((name, supplier) -> result.put(name, supplier.get()));
+        return result;
+    }
+
+    /**
+     * Exports the group through the platform MBean server. A group previously registered with the same name is
+     * replaced.
+     *
+     * @return this group
+     */
+    public MetricGroup register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            log.warn("Couldn't register metrics {}: {}", objectName, e.getMessage());
+        }
+
+        return this;
+    }
+
+    /**
+     * Removes the group from the platform MBean server
+     */
+    public void unregister() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (InstanceNotFoundException e) {
+            // Already unregistered
+        } catch (JMException e) {
+            log.warn("Couldn't unregister metrics {}: {}", objectName, e.getMessage());
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Supplier<? extends Number> supplier = metrics.get(attribute);
+        if (supplier == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        return supplier.get();
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Supplier<? extends Number> supplier = metrics.get(attribute);
+            if (supplier != null) {
+                list.add(new Attribute(attribute, supplier.get()));
+            }
+        }
+
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        MBeanAttributeInfo[] attributes =
+                metrics.keySet()
+                       .stream()
+                       .map(name -> new MBeanAttributeInfo(name, Number.class.getName(), name, true, false, false))
+                       .toArray(MBeanAttributeInfo[]::new);
+
+        return new MBeanInfo(getClass().getName(), objectName.toString(), attributes, null, null, null);
+    }
+
+    @Override
+    public String toString() {
+        return objectName + " " + snapshot();
+    }
+}
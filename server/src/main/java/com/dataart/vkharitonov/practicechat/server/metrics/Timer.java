@@ -0,0 +1,44 @@
+package com.dataart.vkharitonov.practicechat.server.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records durations of some operation. Created by {@link MetricGroup#timer(String)}
+ */
+public final class Timer {
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    Timer() {
+    }
+
+    /**
+     * Records an operation which started at {@code startNanos}, as returned by {@link System#nanoTime()}
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public void record(long nanos) {
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getAverageMillis() {
+        long count = this.count.sum();
+        return count == 0 ? 0 : (double) totalNanos.sum() / count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public double getMaxMillis() {
+        return (double) maxNanos.get() / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,102 @@
+package com.dataart.vkharitonov.practicechat.server.net;
+
+import com.dataart.vkharitonov.practicechat.server.utils.ThreadModel;
+import org.apache.commons.net.io.Util;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accepts connection requests from clients and redirects them to the message listener. Every connected client is
+ * served by a dedicated reader thread, which also waits for the `connect` message, so a slow client never holds up
+ * other logins. The clients' sockets are written on threads of their own, so a client which doesn't read never blocks
+ * the writer stripe it shares with other clients.
+ */
+public final class BlockingConnectionManager implements ConnectionManager {
+
+    private final static Logger log = LoggerFactory.getLogger(BlockingConnectionManager.class.getName());
+    private final static int CONNECT_MESSAGE_TIMEOUT = 1000;
+    private final ThreadModel threadModel;
+    private final ThreadFactory readerThreadFactory;
+    private ServerSocket server;
+    private InteractorManager interactorManager;
+    private ScheduledExecutorService timer;
+    private ExecutorService senderExecutor;
+    private WorkerThread workerThread;
+
+    /**
+     * @param threadModel determines which threads read from and write to the clients
+     */
+    public BlockingConnectionManager(ThreadModel threadModel) {
+        this.threadModel = threadModel;
+        readerThreadFactory = threadModel.threadFactory("client-reader");
+    }
+
+    @Override
+    public void start(int port, InteractorManager connectionListener) throws IOException {
+        server = new ServerSocket(port);
+
+        this.interactorManager = connectionListener;
+
+        timer = Executors.newSingleThreadScheduledExecutor();
+        senderExecutor = threadModel.newUnboundedExecutor("client-sender");
+        workerThread = new WorkerThread();
+        workerThread.start();
+    }
+
+    @Override
+    public void stop() {
+        if (workerThread != null) {
+            workerThread.interrupt();
+            Util.closeQuietly(server);
+            timer.shutdown();
+            senderExecutor.shutdown();
+        }
+    }
+
+    private class WorkerThread extends Thread {
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                try {
+                    Socket client = server.accept();
+                    try {
+                        handleConnection(client);
+                    } catch (IOException e) {
+                        log.info("{}: {}", client.getInetAddress().toString(), e.getMessage());
+                        Util.closeQuietly(client);
+                    }
+                } catch (SocketException e) {
+                    log.info("Server socket was stopped");
+                } catch (IOException e) {
+                    log.error("IOException in BlockingConnectionManager", e);
+                }
+            }
+        }
+
+        private void handleConnection(Socket client) throws IOException {
+            HandshakeConsumer handshakeConsumer = new HandshakeConsumer(interactorManager);
+            SocketClientConnection connection =
+                    new SocketClientConnection(client, readerThreadFactory, senderExecutor, timer, handshakeConsumer);
+            handshakeConsumer.setConnection(connection);
+            connection.beginHandshake();
+
+            timer.schedule(() -> {
+                if (!connection.isHandshakeReceived()) {
+                    log.info("{}: connect message timeout", connection.getRemoteAddress());
+                    connection.close();
+                }
+            }, CONNECT_MESSAGE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+}
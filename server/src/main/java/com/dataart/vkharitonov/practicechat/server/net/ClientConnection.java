@@ -0,0 +1,70 @@
+package com.dataart.vkharitonov.practicechat.server.net;
+
+import com.dataart.vkharitonov.practicechat.common.json.Framing;
+import com.dataart.vkharitonov.practicechat.common.util.MessageProducer;
+
+import java.io.IOException;
+
+/**
+ * Transport-level connection to a single client
+ */
+public interface ClientConnection {
+
+    /**
+     * Starts notifying the {@code consumer} about messages received from the client. <em>The consumer is called on the
+     * transport's reading thread, so you shouldn't do any blocking operations there.</em>
+     *
+     * @param consumer a consumer
+     *
+     * @throws IOException thrown if couldn't read from the connection
+     */
+    void start(MessageProducer.Consumer consumer) throws IOException;
+
+    /**
+     * Appends the message to the output buffer. The message isn't guaranteed to be sent until {@link #flush()} is
+     * called. Must not be called concurrently with other writes or flushes.
+     *
+     * @param message serialized message without a delimiter or a length prefix
+     *
+     * @throws IOException thrown if the connection is broken
+     */
+    void write(byte[] message) throws IOException;
+
+    /**
+     * Sends the buffered messages to the client. Must not be called concurrently with writes.
+     *
+     * @throws IOException thrown if the connection is broken
+     */
+    void flush() throws IOException;
+
+    /**
+     * Changes the framing of the messages read after the current one. Must be called by the consumer of the handshake
+     * message, before the connection is started
+     */
+    void setInputFraming(Framing framing);
+
+    /**
+     * Changes the framing of the messages written after this call. Must not be called concurrently with writes
+     */
+    void setOutputFraming(Framing framing);
+
+    /**
+     * @return number of write system calls made for this connection so far
+     */
+    long getWriteSyscalls();
+
+    /**
+     * @return number of bytes which were written to the connection but haven't been sent to the socket yet
+     */
+    long getUnsentBytes();
+
+    /**
+     * Stops reading and closes the connection. The consumer will be notified by onCompleted method.
+     */
+    void close();
+
+    /**
+     * @return client's address used for logging
+     */
+    String getRemoteAddress();
+}
@@ -1,25 +1,24 @@
 package com.dataart.vkharitonov.practicechat.server.net;
 
+import com.dataart.vkharitonov.practicechat.common.json.Framing;
 import com.dataart.vkharitonov.practicechat.common.json.Message;
 import com.dataart.vkharitonov.practicechat.common.json.in.*;
 import com.dataart.vkharitonov.practicechat.common.json.out.ConnectionResultOutMessage;
+import com.dataart.vkharitonov.practicechat.common.json.out.MsgHistoryOutMessage;
 import com.dataart.vkharitonov.practicechat.common.json.out.MsgSentOutMessage;
 import com.dataart.vkharitonov.practicechat.common.json.out.NewMsgOutMessage;
-import com.dataart.vkharitonov.practicechat.common.util.JsonUtils;
 import com.dataart.vkharitonov.practicechat.common.util.MessageProducer;
-import org.apache.commons.net.io.Util;
+import com.dataart.vkharitonov.practicechat.server.db.HistoryCursor;
+import com.dataart.vkharitonov.practicechat.server.metrics.MetricGroup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Interacts with the clients.
@@ -27,55 +26,87 @@ import java.util.concurrent.Executors;
 public final class ClientInteractor {
 
     private final static Logger log = LoggerFactory.getLogger(ClientInteractor.class.getName());
+    private final static AtomicLong connectionCounter = new AtomicLong();
 
-    private final PrintWriter writer;
     private final String username;
-    private final Socket clientSocket;
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final ClientConnection connection;
+    private final WriterPool.Stripe stripe;
+    private final OutboundQueue outbound;
+    private final MetricGroup metrics;
     private final InteractorManager interactorManager;
 
-    private final MessageProducer messageProducer;
-
     private volatile boolean isShutdown;
+    private boolean isStarted;
 
     /**
      * @param username          username associated with the client
-     * @param clientSocket      client's socket
+     * @param connection        client's connection
+     * @param framing           framing negotiated with the client, used for all messages after `connection_result`
      * @param interactorManager manager
-     *
-     * @throws IOException thrown if couldn't get output stream from a socket
      */
-    public ClientInteractor(String username, Socket clientSocket, InteractorManager interactorManager)
-            throws IOException {
+    public ClientInteractor(String username, ClientConnection connection, Framing framing,
+                            InteractorManager interactorManager) {
         super();
         this.username = username;
-        this.clientSocket = clientSocket;
+        this.connection = connection;
         this.interactorManager = interactorManager;
 
         isShutdown = false;
 
-        writer = new PrintWriter(new OutputStreamWriter(clientSocket.getOutputStream(), StandardCharsets.UTF_8), true);
+        metrics = new MetricGroup("Connection", username + "#" + connectionCounter.incrementAndGet());
+        stripe = interactorManager.getWriterPool().assign();
+        outbound = new OutboundQueue(connection, stripe, interactorManager.getFlushPolicy(),
+                                     interactorManager.getOverflowPolicy(), framing, metrics, this::evict,
+                                     interactorManager::onDelivered);
+        metrics.register();
+    }
 
-        messageProducer = new MessageProducer();
-        messageProducer.start(clientSocket.getInputStream(), new MessageConsumer());
+    /**
+     * Starts reading the requests of the client. Must be called once the user is online with all of their rooms, so
+     * that the requests don't race with the registration. The interactor must be {@link #shutdown() shut down} if it's
+     * never started
+     *
+     * @throws IOException thrown if couldn't start reading from the connection or the interactor is shut down
+     */
+    public synchronized void start() throws IOException {
+        if (isShutdown) {
+            throw new IOException("Interactor is shut down");
+        }
+
+        connection.start(new MessageConsumer());
+        isStarted = true;
     }
 
     /**
      * Send new message to the client
      *
+     * @param deliveryId id of the message, which is reported to {@link InteractorManager#onDelivered(List)} once the
+     *                   message is sent. Completes when the message is stored. May be null
+     *
      * @return {@link CompletableFuture} that completes as soon as the message is sent
      */
-    public CompletableFuture<Void> sendNewMessage(NewMsgOutMessage message) {
-        return sendMessageToClient(Message.MessageType.NEW_MESSAGE, message);
+    public CompletableFuture<Void> sendNewMessage(NewMsgOutMessage message, CompletableFuture<Long> deliveryId) {
+        return outbound.add(EncodedMessage.encode(Message.MessageType.NEW_MESSAGE, message), deliveryId);
+    }
+
+    /**
+     * Sends already serialized message to the client. The same message may be sent to many clients
+     *
+     * @return {@link CompletableFuture} that completes as soon as the message is sent
+     */
+    public CompletableFuture<Void> sendEncodedMessage(EncodedMessage message) {
+        return outbound.add(message);
     }
 
     /**
      * Sends "message sent" acknowledgement to the current user
      *
+     * @param requestId id of the `send_message` request, may be null
+     *
      * @return {@link CompletableFuture} that completes as soon as the message is sent
      */
-    public CompletableFuture<Void> sendMsgSentMessage(MsgSentOutMessage message) {
-        return sendMessageToClient(Message.MessageType.MESSAGE_SENT, message);
+    public CompletableFuture<Void> sendMsgSentMessage(MsgSentOutMessage message, Long requestId) {
+        return outbound.add(EncodedMessage.encode(Message.MessageType.MESSAGE_SENT, message, requestId));
     }
 
     /**
@@ -88,80 +119,93 @@ public final class ClientInteractor {
     }
 
     /**
-     * Shuts down the interactor and disconnects the user
+     * Shuts down the interactor and disconnects the user. A connection which was never {@link #start() started} is
+     * left open, so that its owner can report the failure to the client before closing it
      */
-    public void shutdown() {
-        isShutdown = true;
-        executor.shutdown();
-        messageProducer.stop();
-        closeConnection();
+    public synchronized void shutdown() {
+        if (!isShutdown) {
+            isShutdown = true;
+            outbound.close();
+            stripe.release();
+            metrics.unregister();
+            if (isStarted) {
+                connection.close();
+            }
+        }
     }
 
     private <T> CompletableFuture<Void> sendMessageToClient(Message.MessageType type, T payload) {
-        Message message = new Message(type, payload);
-        String json = JsonUtils.GSON.toJson(message);
-        return CompletableFuture.runAsync(() -> writeToClient(json), executor);
-    }
-
-    private void closeConnection() {
-        if (!clientSocket.isClosed()) {
-            Util.closeQuietly(clientSocket);
-        }
+        return outbound.add(EncodedMessage.encode(type, payload));
     }
 
-    private void writeToClient(String message) {
-        writer.println(message);
-        if (writer.checkError()) {
-            throw new RuntimeException(new IOException("Couldn't write to socket for user " + username));
-        }
+    /**
+     * Sends the response to the {@code request}, echoing its request id
+     */
+    private <T> CompletableFuture<Void> sendResponse(Message request, Message.MessageType type, T payload) {
+        return outbound.add(EncodedMessage.encode(type, payload, request.getRequestId()));
     }
 
     private void handleJoinRoomRequest(Message message) {
         JoinRoomInMessage joinRoomMessage = message.getPayload(JoinRoomInMessage.class);
         interactorManager.joinRoom(username, joinRoomMessage.getRoomName())
-                         .thenAccept(msg -> sendMessageToClient(Message.MessageType.ROOM_JOINED, msg));
+                         .thenAccept(msg -> sendResponse(message, Message.MessageType.ROOM_JOINED, msg));
     }
 
     private void handleLeaveRoomRequest(Message message) {
         LeaveRoomInMessage msg = message.getPayload(LeaveRoomInMessage.class);
         interactorManager.leaveRoom(username, msg.getRoomName())
-                         .thenAcceptAsync(m -> sendMessageToClient(Message.MessageType.ROOM_LEFT, m));
+                         .thenAcceptAsync(m -> sendResponse(message, Message.MessageType.ROOM_LEFT, m));
     }
 
     private void handleDropRoomRequest(Message message) {
         DropRoomInMessage msg = message.getPayload(DropRoomInMessage.class);
         interactorManager.dropRoom(username, msg.getRoomName())
-                         .thenAcceptAsync(m -> sendMessageToClient(Message.MessageType.ROOM_DROPPED, m));
+                         .thenAcceptAsync(m -> sendResponse(message, Message.MessageType.ROOM_DROPPED, m));
     }
 
     private void handleGetHistoryRequest(Message message) {
         GetHistoryInMessage getHistoryMessage = message.getPayload(GetHistoryInMessage.class);
-        interactorManager.getHistory(username, getHistoryMessage.getUsername(), getHistoryMessage.getTimestampTo(),
-                                     getHistoryMessage.getLimit())
-                         .thenAccept(msg -> sendMessageToClient(Message.MessageType.MESSAGE_HISTORY, msg));
+        HistoryCursor cursor;
+        if (getHistoryMessage.getCursor() != null) {
+            try {
+                cursor = HistoryCursor.decode(getHistoryMessage.getCursor());
+            } catch (IllegalArgumentException e) {
+                log.warn("Invalid history cursor from {}: {}", username, getHistoryMessage.getCursor());
+                // The client waits for a response to the request id
+                sendResponse(message, Message.MessageType.MESSAGE_HISTORY, new MsgHistoryOutMessage(new ArrayList<>()));
+                return;
+            }
+        } else {
+            cursor = HistoryCursor.before(getHistoryMessage.getTimestampTo());
+        }
+
+        interactorManager.getHistory(username, getHistoryMessage.getUsername(), cursor, getHistoryMessage.getLimit())
+                         .thenAccept(msg -> sendResponse(message, Message.MessageType.MESSAGE_HISTORY, msg));
     }
 
     private void handleListUsersRequest(Message message) {
         Optional<String> roomName;
-        if (message.getRawPayload() == null || message.getRawPayload().isJsonNull()) {
+        ListUsersInMessage listUsersInMessage = message.getPayload(ListUsersInMessage.class);
+        if (listUsersInMessage == null) {
             roomName = Optional.empty();
         } else {
-            ListUsersInMessage listUsersInMessage = message.getPayload(ListUsersInMessage.class);
             roomName = Optional.of(listUsersInMessage.getRoomName());
         }
 
         interactorManager.listUsers(roomName)
-                         .thenAcceptAsync(userListOutMessage -> sendMessageToClient(Message.MessageType.USER_LIST,
-                                                                                    userListOutMessage));
+                         .thenAcceptAsync(userListOutMessage -> sendResponse(message, Message.MessageType.USER_LIST,
+                                                                             userListOutMessage));
     }
 
     private void handleSendMessageRequest(Message message) {
         SendMsgInMessage msg = message.getPayload(SendMsgInMessage.class);
-        interactorManager.sendMessage(username, msg.getUsername(), msg.getMessage(), System.currentTimeMillis());
+        interactorManager.sendMessage(username, msg.getUsername(), msg.getMessage(), System.currentTimeMillis(),
+                                      message.getRequestId());
     }
 
-    private void handleListRoomsRequest() {
-        interactorManager.listRooms().thenAcceptAsync(msg -> sendMessageToClient(Message.MessageType.ROOM_LIST, msg));
+    private void handleListRoomsRequest(Message message) {
+        interactorManager.listRooms()
+                         .thenAcceptAsync(msg -> sendResponse(message, Message.MessageType.ROOM_LIST, msg));
     }
 
     /**
@@ -174,11 +218,21 @@ public final class ClientInteractor {
         }
     }
 
+    /**
+     * Disconnects the user who doesn't read the messages fast enough
+     */
+    private void evict() {
+        log.warn("Disconnecting {}: outbound queue is full", username);
+        disconnect();
+    }
+
     private class MessageConsumer implements MessageProducer.Consumer {
 
         @Override
         public void onNext(Message message) {
-            log.info("Received message from {}: {}", username, message);
+            if (log.isDebugEnabled()) {
+                log.debug("Received message from {}: {}", username, message);
+            }
 
             if (message.getMessageType() != null) {
                 switch (message.getMessageType()) {
@@ -186,7 +240,7 @@ public final class ClientInteractor {
                         handleListUsersRequest(message);
                         break;
                     case DISCONNECT:
-                        messageProducer.stop();
+                        disconnect();
                         break;
                     case SEND_MESSAGE:
                         handleSendMessageRequest(message);
@@ -198,7 +252,7 @@ public final class ClientInteractor {
                         handleJoinRoomRequest(message);
                         break;
                     case LIST_ROOMS:
-                        handleListRoomsRequest();
+                        handleListRoomsRequest(message);
                         break;
                     case LEAVE_ROOM:
                         handleLeaveRoomRequest(message);
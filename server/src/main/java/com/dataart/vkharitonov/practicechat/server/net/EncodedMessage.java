@@ -0,0 +1,53 @@
+package com.dataart.vkharitonov.practicechat.server.net;
+
+import com.dataart.vkharitonov.practicechat.common.json.Message;
+import com.dataart.vkharitonov.practicechat.common.util.MessageEncoder;
+
+/**
+ * A message serialized once, which can be queued for any number of clients. The same bytes are shared by all
+ * recipients, so the instances are immutable.
+ */
+public final class EncodedMessage {
+
+    private final Message.MessageType type;
+    private final byte[] bytes;
+
+    private EncodedMessage(Message.MessageType type, byte[] bytes) {
+        this.type = type;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Serializes the message
+     */
+    public static <T> EncodedMessage encode(Message.MessageType type, T payload) {
+        return encode(type, payload, null);
+    }
+
+    /**
+     * Serializes the response to the request with {@code requestId}
+     *
+     * @param requestId id of the request, may be null
+     */
+    public static <T> EncodedMessage encode(Message.MessageType type, T payload, Long requestId) {
+        return new EncodedMessage(type, MessageEncoder.encode(type, payload, requestId));
+    }
+
+    public Message.MessageType getType() {
+        return type;
+    }
+
+    /**
+     * @return size of the serialized message in bytes
+     */
+    public int size() {
+        return bytes.length;
+    }
+
+    /**
+     * @return serialized message. Must not be modified
+     */
+    byte[] bytes() {
+        return bytes;
+    }
+}
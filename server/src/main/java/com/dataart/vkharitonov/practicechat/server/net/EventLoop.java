@@ -0,0 +1,125 @@
+package com.dataart.vkharitonov.practicechat.server.net;
+
+import org.apache.commons.net.io.Util;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A thread which owns a {@link Selector} and dispatches readiness events to the channels' {@link Handler}s. All
+ * registered channels must be touched on this thread only, other threads submit their work with {@link
+ * #execute(Runnable)}.
+ */
+final class EventLoop extends Thread {
+
+    private final static Logger log = LoggerFactory.getLogger(EventLoop.class.getName());
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    EventLoop(String name) throws IOException {
+        super(name);
+        selector = Selector.open();
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == this;
+    }
+
+    /**
+     * Runs the {@code task} on this event loop
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Stops the event loop and closes all registered channels
+     */
+    void shutdown() {
+        interrupt();
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!isInterrupted()) {
+                if (tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+
+                processSelectedKeys();
+                runTasks();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            log.error("Event loop {} has failed", getName(), e);
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+
+            Handler handler = (Handler) key.attachment();
+            if (key.isValid()) {
+                handler.onReady(key);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("Unexpected exception in event loop {}", getName(), e);
+            }
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            ((Handler) key.attachment()).onClose();
+        }
+
+        Util.closeQuietly(selector);
+    }
+
+    /**
+     * Handles readiness events of a single registered channel. Called on the event loop's thread only.
+     */
+    interface Handler {
+
+        /**
+         * Called when the channel is ready for some of its interest operations
+         */
+        void onReady(SelectionKey key);
+
+        /**
+         * Called when the event loop is shutting down
+         */
+        void onClose();
+    }
+}
@@ -0,0 +1,44 @@
+package com.dataart.vkharitonov.practicechat.server.net;
+
+/**
+ * Determines when the messages buffered for a client are sent to the socket
+ */
+public final class FlushPolicy {
+
+    private final int maxBytes;
+    private final long maxDelayMillis;
+
+    /**
+     * @param maxBytes       buffered messages are flushed as soon as their size reaches this number of bytes
+     * @param maxDelayMillis how long a message may wait for other messages to be sent together. 0 means that all
+     *                       pending messages are flushed right away
+     */
+    public FlushPolicy(int maxBytes, long maxDelayMillis) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Max bytes must be positive");
+        }
+
+        if (maxDelayMillis < 0) {
+            throw new IllegalArgumentException("Max delay must not be negative");
+        }
+
+        this.maxBytes = maxBytes;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "FlushPolicy{" +
+                "maxBytes=" + maxBytes +
+                ", maxDelayMillis=" + maxDelayMillis +
+                '}';
+    }
+}
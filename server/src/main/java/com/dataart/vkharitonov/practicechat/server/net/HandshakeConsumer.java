@@ -0,0 +1,58 @@
+package com.dataart.vkharitonov.practicechat.server.net;
+
+import com.dataart.vkharitonov.practicechat.common.json.Framing;
+import com.dataart.vkharitonov.practicechat.common.json.Message;
+import com.dataart.vkharitonov.practicechat.common.json.in.ConnectInMessage;
+import com.dataart.vkharitonov.practicechat.common.util.MessageProducer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Waits for the `connect` message and passes the connection to the {@link InteractorManager}. The user is
+ * authenticated asynchronously, so the consumer returns as soon as the message is received.
+ */
+final class HandshakeConsumer implements MessageProducer.Consumer {
+
+    private final static Logger log = LoggerFactory.getLogger(HandshakeConsumer.class.getName());
+
+    private final InteractorManager interactorManager;
+    private ClientConnection connection;
+
+    HandshakeConsumer(InteractorManager interactorManager) {
+        this.interactorManager = interactorManager;
+    }
+
+    /**
+     * Must be called before the connection starts reading
+     */
+    void setConnection(ClientConnection connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    public void onNext(Message message) {
+        if (message.getMessageType() == Message.MessageType.CONNECT) {
+            ConnectInMessage connectMessage = message.getPayload(ConnectInMessage.class);
+            Framing framing = connectMessage.getFraming();
+
+            // The client switches the framing right after `connect`
+            connection.setInputFraming(framing);
+            interactorManager.connectUser(connectMessage.getUsername(), connectMessage.getPassword(), framing,
+                                          connection);
+        } else {
+            log.info("{}: First message should be `connect`", connection.getRemoteAddress());
+            connection.close();
+        }
+    }
+
+    @Override
+    public void onError(Throwable e) {
+        log.info("{}: {}", connection.getRemoteAddress(), e.getMessage());
+        connection.close();
+    }
+
+    @Override
+    public void onCompleted() {
+        connection.close();
+    }
+}
@@ -1,28 +1,27 @@
 package com.dataart.vkharitonov.practicechat.server.net;
 
+import com.dataart.vkharitonov.practicechat.common.json.Framing;
 import com.dataart.vkharitonov.practicechat.common.json.Message;
 import com.dataart.vkharitonov.practicechat.common.json.out.*;
-import com.dataart.vkharitonov.practicechat.common.util.JsonUtils;
+import com.dataart.vkharitonov.practicechat.common.util.MessageEncoder;
 import com.dataart.vkharitonov.practicechat.server.db.*;
 import com.dataart.vkharitonov.practicechat.server.db.dto.ChatMsgDto;
-import com.dataart.vkharitonov.practicechat.server.db.dto.RoomMsgDto;
 import com.dataart.vkharitonov.practicechat.server.db.dto.UserDto;
 import com.dataart.vkharitonov.practicechat.server.exception.UserConnectException;
-import com.dataart.vkharitonov.practicechat.server.utils.FutureUtils;
+import com.dataart.vkharitonov.practicechat.server.journal.JournalEntry;
+import com.dataart.vkharitonov.practicechat.server.journal.MessageJournal;
 import com.dataart.vkharitonov.practicechat.server.utils.HashUtils;
+import com.dataart.vkharitonov.practicechat.server.utils.ThreadModel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
 import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Collectors;
 
 /**
@@ -31,12 +30,32 @@ import java.util.stream.Collectors;
 public final class InteractorManager {
 
     private final static Logger log = LoggerFactory.getLogger(InteractorManager.class.getName());
-    private static final int CONNECTION_FAILURE_TIMEOUT = 1000;
     public static final int MAX_MESSAGES_HISTORY = 100;
+    // Undelivered messages are read and sent in chunks, so that a long backlog isn't held in memory at once
+    private static final int UNDELIVERED_CHUNK_SIZE = 100;
 
     private final UserList clients = new UserList();
+    private final WriterPool writerPool;
+    private final FlushPolicy flushPolicy;
+    private final OverflowPolicy overflowPolicy;
+    private final Storage storage;
+    private final MessageJournal journal;
 
-    public InteractorManager() {
+    /**
+     * @param threadModel    determines which threads write to the clients
+     * @param writerThreads  number of threads which write to the clients
+     * @param flushPolicy    determines how the messages to the clients are batched
+     * @param overflowPolicy determines how many messages may wait for a slow client
+     * @param storage        stores the users, the rooms and the messages
+     * @param journal        stores the sent messages
+     */
+    public InteractorManager(ThreadModel threadModel, int writerThreads, FlushPolicy flushPolicy,
+                             OverflowPolicy overflowPolicy, Storage storage, MessageJournal journal) {
+        writerPool = new WriterPool(writerThreads, threadModel.threadFactory("client-writer"));
+        this.flushPolicy = flushPolicy;
+        this.overflowPolicy = overflowPolicy;
+        this.storage = storage;
+        this.journal = journal;
     }
 
     /**
@@ -48,24 +67,25 @@ public final class InteractorManager {
 
     /**
      * Sends message to {@code destination} from {@code sender} with text {@code message} and {@code timestamp}. Adds
-     * the message to message history.
+     * the message to message history. The message is sent as soon as it is written to the journal, which may be
+     * before it is written to the database.
      * <p>
      * If {@code destination} starts with '#' symbol, the message is sent to a room.
      *
+     * @param requestId id of the sender's request, echoed in `message_sent`. May be null
+     *
      * @return {@link CompletableFuture} that completes as soon as the message is sent
      */
-    public CompletableFuture<Void> sendMessage(String sender, String destination, String message, long timestamp) {
+    public CompletableFuture<Void> sendMessage(String sender, String destination, String message, long timestamp,
+                                               Long requestId) {
+        JournalEntry entry = journal.append(sender, destination, message, timestamp);
         if (destination.startsWith("#")) {
-            return getRoomMsgDao().addMsg(new RoomMsgDto(sender, destination, message, timestamp))
-                                  .thenComposeAsync(aVoid -> getRoomDao().getUsersForRoom(destination))
-                                  .thenAccept(users -> users.stream()
-                                                            .filter(u -> !Objects.equals(u, sender))
-                                                            .forEach(user -> sendMessageFromRoom(destination, sender,
-                                                                                                 user, message,
-                                                                                                 timestamp)));
+            return entry.written().thenAcceptAsync(o -> sendMessageFromRoom(destination, sender,
+                                                                            clients.getOnlineMembers(destination),
+                                                                            message, timestamp));
         } else {
-            return getMsgDao().addMsg(new ChatMsgDto(sender, destination, message, timestamp, false))
-                              .thenComposeAsync(aVoid -> sendMessageToClient(sender, destination, message, timestamp));
+            return entry.written().thenComposeAsync(o -> sendMessageToClient(sender, destination, message, timestamp,
+                                                                             requestId, entry.committed()));
         }
     }
 
@@ -92,20 +112,20 @@ public final class InteractorManager {
 
     /**
      * Returns message history between {@code sender} and {@code partner}. If {@code partner} starts with '#' symbol,
-     * returns history of the whole room.
+     * returns history of the whole room. Gets up to {@code limit} latest messages sent before the {@code cursor}.
      *
      * @return {@link CompletableFuture} that completes with the {@link MsgHistoryOutMessage}
      */
-    public CompletableFuture<MsgHistoryOutMessage> getHistory(String sender, String partner, long timestampTo,
+    public CompletableFuture<MsgHistoryOutMessage> getHistory(String sender, String partner, HistoryCursor cursor,
                                                               int limit) {
         if (limit > MAX_MESSAGES_HISTORY || limit < 0) {
             limit = MAX_MESSAGES_HISTORY;
         }
 
         if (partner.startsWith("#")) {
-            return getRoomMsgDao().getHistoryForRoom(partner, timestampTo, limit);
+            return getRoomMsgDao().getHistoryForRoom(partner, cursor, limit);
         } else {
-            return getMsgDao().getHistoryForUsers(sender, partner, timestampTo, limit);
+            return getMsgDao().getHistoryForUsers(sender, partner, cursor, limit);
         }
     }
 
@@ -113,17 +133,29 @@ public final class InteractorManager {
      * Joins user {@code user} to room {@code roomName} if it exists. Otherwise creates such room and makes the {@code
      * user} its administrator.
      *
-     * @return {@link CompletableFuture} that completes with the {@link RoomJoinedOutMessage}
+     * @return {@link CompletableFuture} that completes with the {@link RoomJoinedOutMessage} once the user receives
+     * the messages to the room
      */
     public CompletableFuture<RoomJoinedOutMessage> joinRoom(String user, String roomName) {
-        return joinUserToRoomOrCreate(roomName, user).thenApplyAsync(roomExists -> {
-            if (roomExists) {
-                log.info("User {} joined room {}", user, roomName);
-            } else {
-                log.info("User {} created room {}", user, roomName);
+        return getRoomDao().joinOrCreateRoom(roomName, user).thenComposeAsync(result -> {
+            CompletableFuture<Void> joined;
+            switch (result) {
+                case CREATED:
+                    joined = clients.joinedRoom(roomName, user);
+                    log.info("User {} created room {}", user, roomName);
+                    break;
+                case JOINED:
+                    joined = clients.joinedRoom(roomName, user);
+                    log.info("User {} joined room {}", user, roomName);
+                    break;
+                case ALREADY_MEMBER:
+                default:
+                    joined = CompletableFuture.completedFuture(null);
+                    log.debug("User {} is already in room {}", user, roomName);
+                    break;
             }
 
-            return new RoomJoinedOutMessage(roomName, roomExists);
+            return joined.thenApply(o -> new RoomJoinedOutMessage(roomName, result != RoomDao.JoinResult.CREATED));
         });
     }
 
@@ -131,34 +163,45 @@ public final class InteractorManager {
      * Removes the {@code user} from the room {@code roomName}
      */
     public CompletableFuture<RoomLeftOutMessage> leaveRoom(String user, String roomName) {
-        return getRoomDao().removeUserFromRoom(roomName, user)
-                           .thenApplyAsync(success -> new RoomLeftOutMessage(roomName, success));
+        return getRoomDao().removeUserFromRoom(roomName, user).thenComposeAsync(success -> {
+            CompletableFuture<Void> left = success ? clients.leftRoom(roomName, user)
+                                                   : CompletableFuture.completedFuture(null);
+
+            return left.thenApply(o -> new RoomLeftOutMessage(roomName, success));
+        });
     }
 
     public CompletableFuture<RoomDroppedOutMessage> dropRoom(String user, String roomName) {
-        return getRoomDao().dropRoom(roomName, user)
-                           .thenApplyAsync(success -> new RoomDroppedOutMessage(roomName, success));
+        return getRoomDao().dropRoom(roomName, user).thenComposeAsync(success -> {
+            CompletableFuture<Void> dropped = success ? clients.roomDropped(roomName)
+                                                      : CompletableFuture.completedFuture(null);
+
+            return dropped.thenApply(o -> new RoomDroppedOutMessage(roomName, success));
+        });
     }
 
     /**
      * Tries to connect new user to the server. If the user doesn't exist, new account is created.
+     *
+     * @param framing framing negotiated with the client, used for all messages after `connection_result`
      */
-    public void connectUser(String username, String password, Socket client) {
+    public void connectUser(String username, String password, Framing framing, ClientConnection client) {
         getUserDao().getUserByName(username).thenComposeAsync(userDtoOptional -> {
             if (userDtoOptional.isPresent()) {
                 if (authenticateUser(userDtoOptional.get(), password)) {
-                    return addInteractor(username, client, true);
+                    return addInteractor(username, client, framing, true);
                 } else {
                     throw new UserConnectException(true, "Invalid password");
                 }
             } else {
-                return createUser(username, password).thenComposeAsync(aVoid -> addInteractor(username, client, false));
+                return createUser(username, password)
+                        .thenComposeAsync(aVoid -> addInteractor(username, client, framing, false));
             }
         }).handleAsync((connectionResult, e) -> {
             if (e == null) {
                 ClientInteractor clientInteractor = connectionResult.getClientInteractor();
                 clientInteractor.sendConnectMessage(
-                        new ConnectionResultOutMessage(true, connectionResult.isUserExists()));
+                        new ConnectionResultOutMessage(true, connectionResult.isUserExists(), framing));
                 log.info("User {} has connected", username);
                 sendUndeliveredMsgs(username);
             } else if (e.getCause() instanceof UserConnectException) {
@@ -178,32 +221,49 @@ public final class InteractorManager {
      */
     public CompletableFuture<Void> shutdown() {
         return clients.removeAllAndShutdown()
-                      .thenAcceptAsync(clientInteractors -> clientInteractors.forEach(ClientInteractor::shutdown));
+                      .thenAcceptAsync(clientInteractors -> clientInteractors.forEach(ClientInteractor::shutdown))
+                      .thenRun(writerPool::shutdown);
     }
 
     /**
-     * Creates new user interactor
+     * Creates new user interactor. The user is registered as online with all of their rooms before the interactor
+     * starts reading the requests, so that a `join_room` request can't race with the registration
      *
      * @param userExists false, if the user was just created
      *
      * @return {@link CompletableFuture} with {@link ConnectionResult} that contains the {@link ClientInteractor} and
      * boolean {@code userExists}
      */
-    private CompletableFuture<ConnectionResult> addInteractor(String username, Socket client, boolean userExists) {
-        try {
-            ClientInteractor clientInteractor = new ClientInteractor(username, client, this);
-            return clients.addInteractor(username, clientInteractor).thenApplyAsync(prevInteractor -> {
-                // If user already connected, shutdown the old connection.
-                if (prevInteractor != null) {
-                    prevInteractor.shutdown();
-                }
-
-                return new ConnectionResult(clientInteractor, userExists);
-            });
-        } catch (IOException e) {
-            // Couldn't connect to the user
-            return FutureUtils.failure(e);
-        }
+    private CompletableFuture<ConnectionResult> addInteractor(String username, ClientConnection client,
+                                                              Framing framing, boolean userExists) {
+        ClientInteractor clientInteractor = new ClientInteractor(username, client, framing, this);
+
+        CompletableFuture<ConnectionResult> result =
+                getRoomDao().getRoomsForUser(username)
+                            .thenComposeAsync(rooms -> clients.addInteractor(username, clientInteractor, rooms))
+                            .thenApplyAsync(prevInteractor -> {
+                                // If user already connected, shutdown the old connection.
+                                if (prevInteractor != null) {
+                                    prevInteractor.shutdown();
+                                }
+
+                                try {
+                                    clientInteractor.start();
+                                } catch (IOException e) {
+                                    // Couldn't connect to the user
+                                    clients.removeInteractor(username, clientInteractor);
+                                    throw new CompletionException(e);
+                                }
+
+                                return new ConnectionResult(clientInteractor, userExists);
+                            });
+
+        // Releases the writer stripe and the metrics of a connection that never starts
+        return result.whenComplete((connectionResult, e) -> {
+            if (e != null) {
+                clientInteractor.shutdown();
+            }
+        });
     }
 
     /**
@@ -228,78 +288,150 @@ public final class InteractorManager {
         return getUserDao().createUser(username, hash, salt);
     }
 
+    /**
+     * Marks the direct messages as delivered. Called once per flush of a client connection with the ids of all
+     * direct messages flushed to that client. A journaled message may be flushed before it is written to the database,
+     * so it is marked once it is written
+     */
+    void onDelivered(List<CompletableFuture<Long>> ids) {
+        CompletableFuture.allOf(ids.toArray(new CompletableFuture<?>[ids.size()])).handle((o, e) -> {
+            // Messages rejected by the database are skipped
+            List<Long> storedIds = ids.stream()
+                                      .filter(id -> !id.isCompletedExceptionally())
+                                      .map(CompletableFuture::join)
+                                      .collect(Collectors.toList());
+            if (!storedIds.isEmpty()) {
+                getMsgDao().setDelivered(storedIds);
+            }
+
+            return null;
+        });
+    }
+
     /**
      * Sends new text message to the client
+     *
+     * @param deliveryId id of the message, marked as delivered as soon as the message is flushed and stored. May be
+     *                   null
      */
     private CompletableFuture<Void> sendMessageToClient(String sender, String destination, String message,
-                                                        long timestamp) {
+                                                        long timestamp, Long requestId,
+                                                        CompletableFuture<Long> deliveryId) {
         ClientInteractor interactor = clients.getInteractor(destination);
         if (interactor != null) {
-            return interactor.sendNewMessage(new NewMsgOutMessage(sender, message, true, timestamp))
-                             .thenComposeAsync(o1 -> {
-                                 ClientInteractor senderInteractor = clients.getInteractor(sender);
-
-                                 if (senderInteractor != null) {
-                                     return senderInteractor.sendMsgSentMessage(new MsgSentOutMessage(destination));
-                                 } else {
-                                     return CompletableFuture.completedFuture(null);
-                                 }
-                             })
-                             .thenComposeAsync(o1 -> getMsgDao().setOldestMessageDelivered(destination));
+            return interactor.sendNewMessage(new NewMsgOutMessage(sender, message, true, timestamp), deliveryId)
+                             .thenComposeAsync(o1 -> sendMsgSentMessage(sender, destination, requestId));
         } else {
             return CompletableFuture.completedFuture(null);
         }
     }
 
-    private CompletableFuture<Void> sendMessageFromRoom(String room, String sender, String destination, String message,
-                                                        long timestamp) {
-        ClientInteractor interactor = clients.getInteractor(destination);
-        if (interactor != null) {
-            return interactor.sendNewMessage(new NewMsgOutMessage(room, sender, message, timestamp));
+    /**
+     * Tells the {@code sender}, if online, that the message has been sent to the {@code destination}
+     */
+    private CompletableFuture<Void> sendMsgSentMessage(String sender, String destination, Long requestId) {
+        ClientInteractor senderInteractor = clients.getInteractor(sender);
+
+        if (senderInteractor != null) {
+            return senderInteractor.sendMsgSentMessage(new MsgSentOutMessage(destination), requestId);
         } else {
             return CompletableFuture.completedFuture(null);
         }
     }
 
     /**
-     * @return Future with boolean which tells if the room already exists
+     * Sends new room message to all online {@code members} except the {@code sender}. The message is serialized once
+     * and the same bytes are queued for every recipient
      */
-    private CompletableFuture<Boolean> joinUserToRoomOrCreate(String roomName, String user) {
-        return getRoomDao().getRoomAdmin(roomName).thenComposeAsync(adminOptional -> {
-            if (adminOptional.isPresent()) {
-                return getRoomDao().addUserToRoom(roomName, user).thenApply(o -> true);
-            } else {
-                return getRoomDao().createRoom(roomName, user).thenApply(o -> false);
-            }
-        });
+    private void sendMessageFromRoom(String room, String sender, Collection<String> members, String message,
+                                     long timestamp) {
+        List<ClientInteractor> recipients = members.stream()
+                                                   .filter(member -> !Objects.equals(member, sender))
+                                                   .map(clients::getInteractor)
+                                                   .filter(Objects::nonNull)
+                                                   .collect(Collectors.toList());
+
+        if (!recipients.isEmpty()) {
+            EncodedMessage encoded = EncodedMessage.encode(Message.MessageType.NEW_MESSAGE,
+                                                           new NewMsgOutMessage(room, sender, message, timestamp));
+            recipients.forEach(recipient -> recipient.sendEncodedMessage(encoded));
+        }
     }
 
     /**
-     * Sends all undelivered messages to {@code username}
+     * Sends all undelivered messages to {@code username} chunk by chunk. Once a chunk is sent, it is marked as
+     * delivered by a single update and the next one is read. Waits for the journaled messages to be written to the
+     * database first
      */
     private CompletableFuture<Void> sendUndeliveredMsgs(String username) {
-        return getMsgDao().getUndeliveredMsgsForUser(username)
-                          .thenAcceptAsync(undeliveredMsgs -> undeliveredMsgs.forEach(
-                                  msg -> sendMessageToClient(msg.getSender(), username, msg.getMessage(),
-                                                             msg.getSendingTime().getTime())));
+        return journal.drained().thenComposeAsync(o -> sendUndeliveredMsgs(username, 0));
     }
 
     /**
-     * Sends `connection failed` message and closes socket
+     * @param afterId id of the last message sent, or 0
+     */
+    private CompletableFuture<Void> sendUndeliveredMsgs(String username, long afterId) {
+        return getMsgDao().getUndeliveredMsgsForUser(username, afterId, UNDELIVERED_CHUNK_SIZE)
+                          .thenComposeAsync(chunk -> {
+                              ClientInteractor interactor = clients.getInteractor(username);
+                              if (interactor == null || chunk.isEmpty()) {
+                                  return CompletableFuture.completedFuture(null);
+                              }
+
+                              long lastId = chunk.get(chunk.size() - 1).getId();
+                              return sendUndeliveredChunk(username, interactor, chunk).thenComposeAsync(o -> {
+                                  if (chunk.size() < UNDELIVERED_CHUNK_SIZE) {
+                                      return CompletableFuture.completedFuture(null);
+                                  }
+
+                                  return sendUndeliveredMsgs(username, lastId);
+                              });
+                          });
+    }
+
+    /**
+     * @param undeliveredMsgs messages in the order of ids
+     */
+    private CompletableFuture<Void> sendUndeliveredChunk(String username, ClientInteractor interactor,
+                                                         List<ChatMsgDto> undeliveredMsgs) {
+        // Only the messages flushed to this connection count, the user may disconnect in the middle
+        CompletableFuture<?>[] sent = undeliveredMsgs.stream()
+                                                     .map(msg -> sendUndeliveredMsg(interactor, msg))
+                                                     .toArray(CompletableFuture<?>[]::new);
+        long lastId = undeliveredMsgs.get(undeliveredMsgs.size() - 1).getId();
+
+        return CompletableFuture.allOf(sent)
+                                .thenComposeAsync(aVoid -> getMsgDao().setDeliveredUpTo(username, lastId));
+    }
+
+    /**
+     * @return {@link CompletableFuture} that completes as soon as the message is flushed to the recipient
+     */
+    private CompletableFuture<Void> sendUndeliveredMsg(ClientInteractor interactor, ChatMsgDto msg) {
+        NewMsgOutMessage newMsg = new NewMsgOutMessage(msg.getSender(), msg.getMessage(), true,
+                                                       msg.getSendingTime());
+        CompletableFuture<Void> flushed = interactor.sendNewMessage(newMsg, null);
+        flushed.thenComposeAsync(o -> sendMsgSentMessage(msg.getSender(), msg.getDestination(), null));
+
+        return flushed;
+    }
+
+    /**
+     * Sends `connection failed` message and closes the connection
      *
-     * @param clientSocket client socket
+     * @param client client's connection
      */
-    private CompletableFuture<Void> sendConnectionFailure(Socket clientSocket, boolean userExists) {
+    private CompletableFuture<Void> sendConnectionFailure(ClientConnection client, boolean userExists) {
         return CompletableFuture.runAsync(() -> {
-            String message = JsonUtils.GSON.toJson(new Message(Message.MessageType.CONNECTION_RESULT,
-                                                               new ConnectionResultOutMessage(false, userExists)));
-            try (PrintWriter out = new PrintWriter(
-                    new OutputStreamWriter(clientSocket.getOutputStream(), StandardCharsets.UTF_8), true)
-            ) {
-                clientSocket.setSoTimeout(CONNECTION_FAILURE_TIMEOUT);
-                out.println(message);
+            byte[] message = MessageEncoder.encode(Message.MessageType.CONNECTION_RESULT,
+                                                   new ConnectionResultOutMessage(false, userExists), null);
+            try {
+                client.write(message);
+                client.flush();
             } catch (IOException e) {
                 log.info("Could not send connection failure to the user: {}", e.getMessage());
+            } finally {
+                client.close();
             }
         });
     }
@@ -317,20 +449,32 @@ public final class InteractorManager {
         }
     }
 
+    WriterPool getWriterPool() {
+        return writerPool;
+    }
+
+    FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
     private ChatMsgDao getMsgDao() {
-        return DbHelper.getInstance().getMsgDao();
+        return storage.getMsgDao();
     }
 
     private UserDao getUserDao() {
-        return DbHelper.getInstance().getUserDao();
+        return storage.getUserDao();
     }
 
     private RoomDao getRoomDao() {
-        return DbHelper.getInstance().getRoomDao();
+        return storage.getRoomDao();
     }
 
     private RoomMsgDao getRoomMsgDao() {
-        return DbHelper.getInstance().getRoomMsgDao();
+        return storage.getRoomMsgDao();
     }
 
 
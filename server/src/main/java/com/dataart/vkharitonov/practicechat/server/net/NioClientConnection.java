@@ -0,0 +1,310 @@
+package com.dataart.vkharitonov.practicechat.server.net;
+
+import com.dataart.vkharitonov.practicechat.common.json.Framing;
+import com.dataart.vkharitonov.practicechat.common.json.Message;
+import com.dataart.vkharitonov.practicechat.common.util.FrameDecoder;
+import com.dataart.vkharitonov.practicechat.common.util.FrameEncoder;
+import com.dataart.vkharitonov.practicechat.common.util.LengthPrefixedFrameDecoder;
+import com.dataart.vkharitonov.practicechat.common.util.LineFrameDecoder;
+import com.dataart.vkharitonov.practicechat.common.util.MessageProducer;
+import org.apache.commons.net.io.Util;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link ClientConnection} over a non-blocking socket channel served by an {@link EventLoop}. Messages are framed by
+ * newlines until a different {@link Framing} is negotiated.
+ * <p>
+ * The first message is delivered to the handshake consumer, after which reading is suspended until {@link
+ * #start(MessageProducer.Consumer)} is called. Written messages are queued and sent by the event loop with gathering
+ * writes after {@link #flush()}.
+ */
+public final class NioClientConnection implements ClientConnection, EventLoop.Handler {
+
+    private final static Logger log = LoggerFactory.getLogger(NioClientConnection.class.getName());
+    private final static int MAX_MESSAGE_LENGTH = 1024 * 1024;
+    private final static int MAX_GATHERED_BUFFERS = 128;
+    private final static ByteBuffer DELIMITER = ByteBuffer.wrap(new byte[]{'\n'}).asReadOnlyBuffer();
+
+    private final SocketChannel channel;
+    private final EventLoop eventLoop;
+    private final String remoteAddress;
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicLong writeSyscalls = new AtomicLong();
+    private final AtomicLong unsentBytes = new AtomicLong();
+
+    // Accessed on the event loop only
+    private SelectionKey key;
+    private FrameDecoder decoder = new LineFrameDecoder(MAX_MESSAGE_LENGTH);
+    private Framing inputFraming = Framing.NEWLINE;
+    private MessageProducer.Consumer handshakeConsumer;
+    private MessageProducer.Consumer consumer;
+
+    private volatile Framing outputFraming = Framing.NEWLINE;
+    private volatile boolean isHandshakeReceived;
+    private volatile boolean isClosed;
+
+    NioClientConnection(SocketChannel channel, EventLoop eventLoop, MessageProducer.Consumer handshakeConsumer) {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.handshakeConsumer = handshakeConsumer;
+        remoteAddress = String.valueOf(channel.socket().getInetAddress());
+    }
+
+    /**
+     * Registers the connection with its event loop and starts waiting for the handshake message
+     */
+    void register() {
+        eventLoop.execute(() -> {
+            try {
+                key = channel.register(eventLoop.getSelector(), SelectionKey.OP_READ, this);
+            } catch (ClosedChannelException e) {
+                doClose();
+            }
+        });
+    }
+
+    /**
+     * @return true, if the first message has already been received
+     */
+    boolean isHandshakeReceived() {
+        return isHandshakeReceived;
+    }
+
+    @Override
+    public void start(MessageProducer.Consumer consumer) {
+        if (consumer == null) {
+            throw new NullPointerException();
+        }
+
+        eventLoop.execute(() -> {
+            this.consumer = consumer;
+            if (!isClosed) {
+                deliverMessages();
+                if (!isClosed) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+            } else {
+                consumer.onCompleted();
+            }
+        });
+    }
+
+    @Override
+    public void write(byte[] message) throws IOException {
+        if (isClosed) {
+            throw new IOException("Connection is closed");
+        }
+
+        if (outputFraming == Framing.LENGTH_PREFIXED) {
+            outbound.add(ByteBuffer.wrap(FrameEncoder.lengthPrefix(message.length)));
+            outbound.add(ByteBuffer.wrap(message));
+            unsentBytes.addAndGet(LengthPrefixedFrameDecoder.PREFIX_LENGTH + message.length);
+        } else {
+            outbound.add(ByteBuffer.wrap(message));
+            outbound.add(DELIMITER.duplicate());
+            unsentBytes.addAndGet(message.length + DELIMITER.remaining());
+        }
+    }
+
+    /**
+     * Switches the decoder. Called on the event loop by the handshake consumer, so no bytes are decoded in between
+     */
+    @Override
+    public void setInputFraming(Framing framing) {
+        if (framing != inputFraming) {
+            inputFraming = framing;
+            decoder = FrameDecoder.create(framing, MAX_MESSAGE_LENGTH, decoder.takeRemaining());
+        }
+    }
+
+    @Override
+    public void setOutputFraming(Framing framing) {
+        outputFraming = framing;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (isClosed) {
+            throw new IOException("Connection is closed");
+        }
+
+        if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(this::flushPending);
+        }
+    }
+
+    @Override
+    public long getWriteSyscalls() {
+        return writeSyscalls.get();
+    }
+
+    @Override
+    public long getUnsentBytes() {
+        return unsentBytes.get();
+    }
+
+    @Override
+    public void close() {
+        eventLoop.execute(() -> {
+            if (!isClosed) {
+                try {
+                    // Best effort: try to send what's left without waiting for the client
+                    writePending();
+                } catch (IOException e) {
+                    log.debug("Couldn't flush {} before closing: {}", remoteAddress, e.getMessage());
+                }
+
+                doClose();
+            }
+        });
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public void onReady(SelectionKey key) {
+        try {
+            if (key.isReadable()) {
+                onReadable();
+            }
+
+            if (key.isValid() && key.isWritable()) {
+                flushPending();
+            }
+        } catch (IOException e) {
+            log.info("Error reading from {}: {}", remoteAddress, e.getMessage());
+            notifyError(e);
+        }
+    }
+
+    @Override
+    public void onClose() {
+        doClose();
+    }
+
+    private void onReadable() throws IOException {
+        int read = decoder.readFrom(channel);
+        if (read < 0) {
+            doClose();
+            return;
+        }
+
+        deliverMessages();
+    }
+
+    /**
+     * Delivers already received messages to the current consumer. If there's no consumer, suspends reading
+     */
+    private void deliverMessages() {
+        try {
+            Message message;
+            while (!isClosed && currentConsumer() != null && (message = decoder.next()) != null) {
+                if (handshakeConsumer != null) {
+                    MessageProducer.Consumer handshake = handshakeConsumer;
+                    handshakeConsumer = null;
+                    isHandshakeReceived = true;
+                    handshake.onNext(message);
+                } else {
+                    consumer.onNext(message);
+                }
+            }
+
+            if (!isClosed && currentConsumer() == null) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        } catch (IOException | RuntimeException e) {
+            notifyError(e);
+        }
+    }
+
+    private MessageProducer.Consumer currentConsumer() {
+        return handshakeConsumer != null ? handshakeConsumer : consumer;
+    }
+
+    private void flushPending() {
+        flushScheduled.set(false);
+        if (isClosed) {
+            return;
+        }
+
+        try {
+            if (writePending()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            log.info("Error writing to {}: {}", remoteAddress, e.getMessage());
+            notifyError(e);
+        }
+    }
+
+    /**
+     * Writes as much of the outbound queue as the socket accepts without blocking
+     *
+     * @return true, if the queue was drained completely
+     */
+    private boolean writePending() throws IOException {
+        while (!outbound.isEmpty()) {
+            ByteBuffer[] buffers = outbound.stream().limit(MAX_GATHERED_BUFFERS).toArray(ByteBuffer[]::new);
+            writeSyscalls.incrementAndGet();
+            unsentBytes.addAndGet(-channel.write(buffers));
+
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasRemaining()) {
+                    return false;
+                }
+
+                outbound.poll();
+            }
+        }
+
+        return true;
+    }
+
+    private void notifyError(Throwable e) {
+        if (!isClosed) {
+            MessageProducer.Consumer c = currentConsumer();
+            closeChannel();
+            if (c != null) {
+                c.onError(e);
+            }
+        }
+    }
+
+    private void doClose() {
+        if (!isClosed) {
+            MessageProducer.Consumer c = currentConsumer();
+            closeChannel();
+            if (c != null) {
+                c.onCompleted();
+            }
+        }
+    }
+
+    private void closeChannel() {
+        isClosed = true;
+        outbound.clear();
+        unsentBytes.set(0);
+        if (key != null) {
+            key.cancel();
+        }
+
+        Util.closeQuietly(channel);
+    }
+}
@@ -0,0 +1,132 @@
+package com.dataart.vkharitonov.practicechat.server.net;
+
+import org.apache.commons.net.io.Util;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accepts connection requests from clients and redirects them to the message listener. All connections are served by
+ * a fixed number of selector-based {@link EventLoop}s, so an idle client doesn't occupy a thread.
+ */
+public final class NioConnectionManager implements ConnectionManager {
+
+    private final static Logger log = LoggerFactory.getLogger(NioConnectionManager.class.getName());
+    private final static int CONNECT_MESSAGE_TIMEOUT = 1000;
+
+    private final int ioThreads;
+
+    private ServerSocketChannel server;
+    private InteractorManager interactorManager;
+    private EventLoop[] eventLoops;
+    private ScheduledExecutorService timer;
+    private int nextEventLoop;
+
+    /**
+     * @param ioThreads number of event loop threads
+     */
+    public NioConnectionManager(int ioThreads) {
+        if (ioThreads <= 0) {
+            throw new IllegalArgumentException("Number of IO threads must be positive");
+        }
+
+        this.ioThreads = ioThreads;
+    }
+
+    @Override
+    public void start(int port, InteractorManager interactorManager) throws IOException {
+        this.interactorManager = interactorManager;
+
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.bind(new InetSocketAddress(port));
+
+        timer = Executors.newSingleThreadScheduledExecutor();
+        eventLoops = new EventLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            eventLoops[i] = new EventLoop("nio-event-loop-" + i);
+            eventLoops[i].start();
+        }
+
+        EventLoop acceptLoop = eventLoops[0];
+        acceptLoop.execute(() -> {
+            try {
+                server.register(acceptLoop.getSelector(), SelectionKey.OP_ACCEPT, new Acceptor());
+            } catch (ClosedChannelException e) {
+                log.info("Server socket was stopped");
+            }
+        });
+    }
+
+    @Override
+    public void stop() {
+        if (eventLoops != null) {
+            Util.closeQuietly(server);
+            for (EventLoop eventLoop : eventLoops) {
+                eventLoop.shutdown();
+            }
+
+            timer.shutdown();
+        }
+    }
+
+    private EventLoop nextEventLoop() {
+        EventLoop eventLoop = eventLoops[nextEventLoop];
+        nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+        return eventLoop;
+    }
+
+    private void handleConnection(SocketChannel client) throws IOException {
+        client.configureBlocking(false);
+        client.socket().setTcpNoDelay(true);
+
+        HandshakeConsumer handshakeConsumer = new HandshakeConsumer(interactorManager);
+        NioClientConnection connection = new NioClientConnection(client, nextEventLoop(), handshakeConsumer);
+        handshakeConsumer.setConnection(connection);
+        connection.register();
+
+        timer.schedule(() -> {
+            if (!connection.isHandshakeReceived()) {
+                log.info("{}: connect message timeout", connection.getRemoteAddress());
+                connection.close();
+            }
+        }, CONNECT_MESSAGE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Accepts new connections and distributes them between the event loops. Runs on the first event loop.
+     */
+    private class Acceptor implements EventLoop.Handler {
+
+        @Override
+        public void onReady(SelectionKey key) {
+            try {
+                SocketChannel client;
+                while ((client = server.accept()) != null) {
+                    try {
+                        handleConnection(client);
+                    } catch (IOException e) {
+                        log.info("Couldn't set up connection: {}", e.getMessage());
+                        Util.closeQuietly(client);
+                    }
+                }
+            } catch (IOException e) {
+                log.error("IOException in NioConnectionManager", e);
+            }
+        }
+
+        @Override
+        public void onClose() {
+            Util.closeQuietly(server);
+        }
+    }
+}
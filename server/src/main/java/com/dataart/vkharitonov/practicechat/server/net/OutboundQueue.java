@@ -0,0 +1,306 @@
+package com.dataart.vkharitonov.practicechat.server.net;
+
+import com.dataart.vkharitonov.practicechat.common.json.Framing;
+import com.dataart.vkharitonov.practicechat.common.json.Message;
+import com.dataart.vkharitonov.practicechat.server.metrics.MetricGroup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Messages waiting to be sent to a single client. Messages are written in batches on the connection's writer stripe:
+ * a drain writes all pending messages to the connection's buffer and flushes it once, or every time the written size
+ * reaches {@link FlushPolicy#getMaxBytes()}.
+ * <p>
+ * The queue is bounded by {@link OverflowPolicy#getMaxQueuedBytes()}, including the bytes which the connection has
+ * accepted but not sent yet. When a slow client lets it fill up, the queue applies the {@link OverflowPolicy.Action}.
+ */
+final class OutboundQueue {
+
+    /**
+     * How long to wait before the next drain when the connection still has a lot of unsent data
+     */
+    private static final long BACKLOG_RETRY_MILLIS = 10;
+
+    private final ClientConnection connection;
+    private final WriterPool.Stripe stripe;
+    private final FlushPolicy flushPolicy;
+    private final OverflowPolicy overflowPolicy;
+    private final Framing framing;
+    private final Runnable evictionListener;
+    private final Consumer<List<CompletableFuture<Long>>> deliveryListener;
+
+    private final Queue<PendingMessage> messages = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final AtomicBoolean urgentDrainScheduled = new AtomicBoolean();
+
+    private final LongAdder messagesWritten;
+    private final LongAdder bytesWritten;
+    private final LongAdder flushes;
+    private final LongAdder queueFullEvents;
+    private final LongAdder droppedMessages;
+
+    private volatile boolean isClosed;
+
+    /**
+     * @param framing          framing negotiated with the client, the connection switches to it right after writing
+     *                         the `connection_result` message
+     * @param metrics          connection's metrics to add the queue statistics to
+     * @param evictionListener called when the queue is closed because the client can't keep up with the messages
+     * @param deliveryListener called once per flush with the delivery ids of the flushed messages, which complete
+     *                         when the messages are stored
+     */
+    OutboundQueue(ClientConnection connection, WriterPool.Stripe stripe, FlushPolicy flushPolicy,
+                  OverflowPolicy overflowPolicy, Framing framing, MetricGroup metrics, Runnable evictionListener,
+                  Consumer<List<CompletableFuture<Long>>> deliveryListener) {
+        this.connection = connection;
+        this.stripe = stripe;
+        this.flushPolicy = flushPolicy;
+        this.overflowPolicy = overflowPolicy;
+        this.framing = framing;
+        this.evictionListener = evictionListener;
+        this.deliveryListener = deliveryListener;
+
+        messagesWritten = metrics.counter("messagesWritten");
+        bytesWritten = metrics.counter("bytesWritten");
+        flushes = metrics.counter("flushes");
+        queueFullEvents = metrics.counter("queueFullEvents");
+        droppedMessages = metrics.counter("droppedMessages");
+        metrics.gauge("pendingBytes", pendingBytes::get);
+        metrics.gauge("unsentBytes", connection::getUnsentBytes);
+        metrics.gauge("writeSyscalls", connection::getWriteSyscalls);
+    }
+
+    /**
+     * Queues the message for sending
+     *
+     * @param message serialized message
+     *
+     * @return {@link CompletableFuture} that completes as soon as the message is flushed to the socket. Completes
+     * exceptionally if the message is dropped or the connection is closed
+     */
+    CompletableFuture<Void> add(EncodedMessage message) {
+        return add(message, null);
+    }
+
+    /**
+     * Queues the message for sending. As soon as it is flushed, {@code deliveryId} is passed to the delivery listener
+     * together with the ids of other messages flushed at the same time
+     *
+     * @param message    serialized message
+     * @param deliveryId id of the message, which may not be stored yet. May be null
+     *
+     * @return {@link CompletableFuture} that completes as soon as the message is flushed to the socket. Completes
+     * exceptionally if the message is dropped or the connection is closed
+     */
+    CompletableFuture<Void> add(EncodedMessage message, CompletableFuture<Long> deliveryId) {
+        PendingMessage pending = new PendingMessage(message, deliveryId);
+        if (isClosed) {
+            pending.future.completeExceptionally(new IOException("Connection is closed"));
+            return pending.future;
+        }
+
+        messages.add(pending);
+        long bytes = pendingBytes.addAndGet(message.size());
+        if (isClosed) {
+            // Closed concurrently, make sure the message doesn't hang in the queue
+            stripe.execute(this::failPending);
+            return pending.future;
+        }
+
+        if (isOverflown()) {
+            onOverflow();
+            if (isClosed) {
+                return pending.future;
+            }
+        }
+
+        boolean isFull = bytes >= flushPolicy.getMaxBytes();
+
+        if (drainScheduled.compareAndSet(false, true)) {
+            if (isFull || flushPolicy.getMaxDelayMillis() == 0) {
+                stripe.execute(this::drain);
+            } else {
+                stripe.schedule(this::drain, flushPolicy.getMaxDelayMillis());
+            }
+        } else if (isFull && urgentDrainScheduled.compareAndSet(false, true)) {
+            // Don't wait for the delayed drain
+            stripe.execute(this::drain);
+        }
+
+        return pending.future;
+    }
+
+    /**
+     * Fails all pending messages. No more messages are accepted
+     */
+    void close() {
+        isClosed = true;
+        stripe.execute(this::failPending);
+    }
+
+    private boolean isOverflown() {
+        return pendingBytes.get() + connection.getUnsentBytes() > overflowPolicy.getMaxQueuedBytes();
+    }
+
+    private synchronized void onOverflow() {
+        if (isClosed || !isOverflown()) {
+            // Another thread has already made room
+            return;
+        }
+
+        queueFullEvents.increment();
+        stripe.recordQueueFull();
+
+        switch (overflowPolicy.getAction()) {
+            case DROP_OLDEST:
+                dropWhileOverflown(message -> OverflowPolicy.isDroppable(message.getType()));
+                break;
+            case DROP_NON_CRITICAL:
+                dropWhileOverflown(message -> !OverflowPolicy.isCritical(message.getType()));
+                break;
+            case DISCONNECT:
+                evict();
+                break;
+        }
+    }
+
+    /**
+     * Drops the queued messages which match the {@code filter}, oldest first, until the queue fits. Evicts the client
+     * if it's still overflown
+     */
+    private void dropWhileOverflown(Predicate<EncodedMessage> filter) {
+        for (PendingMessage message : messages) {
+            if (!isOverflown()) {
+                break;
+            }
+
+            // The drain may have polled the message already
+            if (filter.test(message.message) && messages.remove(message)) {
+                drop(message);
+            }
+        }
+
+        if (isOverflown()) {
+            evict();
+        }
+    }
+
+    private void drop(PendingMessage message) {
+        pendingBytes.addAndGet(-message.message.size());
+        droppedMessages.increment();
+        stripe.recordDroppedMessage();
+        message.future.completeExceptionally(new IOException("Message dropped: outbound queue is full"));
+    }
+
+    private void evict() {
+        close();
+        stripe.recordEviction();
+        evictionListener.run();
+    }
+
+    private void drain() {
+        drainScheduled.set(false);
+        urgentDrainScheduled.set(false);
+
+        List<PendingMessage> unflushed = new ArrayList<>();
+        long unflushedBytes = 0;
+        try {
+            PendingMessage message;
+            while (!isClosed && !isBacklogged() && (message = messages.poll()) != null) {
+                pendingBytes.addAndGet(-message.message.size());
+                unflushed.add(message);
+                connection.write(message.message.bytes());
+                unflushedBytes += message.message.size();
+
+                if (message.message.getType() == Message.MessageType.CONNECTION_RESULT) {
+                    connection.setOutputFraming(framing);
+                }
+
+                if (unflushedBytes >= flushPolicy.getMaxBytes()) {
+                    flush(unflushed, unflushedBytes);
+                    unflushedBytes = 0;
+                }
+            }
+
+            flush(unflushed, unflushedBytes);
+        } catch (IOException e) {
+            unflushed.forEach(m -> m.future.completeExceptionally(e));
+        }
+
+        if (!isClosed && !messages.isEmpty() && drainScheduled.compareAndSet(false, true)) {
+            if (isBacklogged()) {
+                // Keep the messages here, where the overflow policy can reach them, until the client catches up
+                stripe.schedule(this::drain, BACKLOG_RETRY_MILLIS);
+            } else {
+                // The connection has caught up since the loop stopped, and nothing else would drain the rest
+                stripe.execute(this::drain);
+            }
+        }
+    }
+
+    /**
+     * @return true, if the connection still hasn't sent at least one full flush
+     */
+    private boolean isBacklogged() {
+        return connection.getUnsentBytes() >= flushPolicy.getMaxBytes();
+    }
+
+    private void flush(List<PendingMessage> unflushed, long unflushedBytes) throws IOException {
+        if (unflushed.isEmpty()) {
+            return;
+        }
+
+        connection.flush();
+
+        flushes.increment();
+        messagesWritten.add(unflushed.size());
+        bytesWritten.add(unflushedBytes);
+        stripe.recordFlush(unflushed.size());
+
+        List<CompletableFuture<Long>> deliveryIds = new ArrayList<>();
+        for (PendingMessage message : unflushed) {
+            if (message.deliveryId != null) {
+                deliveryIds.add(message.deliveryId);
+            }
+        }
+
+        if (!deliveryIds.isEmpty()) {
+            deliveryListener.accept(deliveryIds);
+        }
+
+        unflushed.forEach(m -> m.future.complete(null));
+        unflushed.clear();
+    }
+
+    private void failPending() {
+        IOException e = new IOException("Connection is closed");
+        PendingMessage message;
+        while ((message = messages.poll()) != null) {
+            pendingBytes.addAndGet(-message.message.size());
+            message.future.completeExceptionally(e);
+        }
+    }
+
+    private static class PendingMessage {
+
+        private final EncodedMessage message;
+        private final CompletableFuture<Long> deliveryId;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private PendingMessage(EncodedMessage message, CompletableFuture<Long> deliveryId) {
+            this.message = message;
+            this.deliveryId = deliveryId;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.dataart.vkharitonov.practicechat.server.net;
+
+import com.dataart.vkharitonov.practicechat.common.json.Message;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Limits the size of messages queued for a single client and determines what happens when a slow client doesn't keep
+ * up with them
+ */
+public final class OverflowPolicy {
+
+    /**
+     * Messages which may be dropped by {@link Action#DROP_NON_CRITICAL}. The client can always ask for them again
+     */
+    private static final Set<Message.MessageType> NON_CRITICAL_TYPES =
+            EnumSet.of(Message.MessageType.USER_LIST, Message.MessageType.ROOM_LIST);
+
+    /**
+     * Messages which may be dropped by {@link Action#DROP_OLDEST}. A dropped direct message isn't marked as
+     * delivered, so the client receives it again on the next connect, and room messages stay in the history. The
+     * handshake and the responses to requests are never dropped
+     */
+    private static final Set<Message.MessageType> DROPPABLE_TYPES =
+            EnumSet.of(Message.MessageType.NEW_MESSAGE, Message.MessageType.USER_LIST, Message.MessageType.ROOM_LIST);
+
+    private final long maxQueuedBytes;
+    private final Action action;
+
+    /**
+     * @param maxQueuedBytes maximum size of messages waiting to be sent to a client
+     * @param action         what to do when the limit is exceeded
+     */
+    public OverflowPolicy(long maxQueuedBytes, Action action) {
+        if (maxQueuedBytes <= 0) {
+            throw new IllegalArgumentException("Max queued bytes must be positive");
+        }
+
+        if (action == null) {
+            throw new NullPointerException();
+        }
+
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.action = action;
+    }
+
+    public long getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    /**
+     * @return true, if the message of this type may be dropped by {@link Action#DROP_NON_CRITICAL}
+     */
+    static boolean isCritical(Message.MessageType type) {
+        return !NON_CRITICAL_TYPES.contains(type);
+    }
+
+    /**
+     * @return true, if the message of this type may be dropped by {@link Action#DROP_OLDEST}
+     */
+    static boolean isDroppable(Message.MessageType type) {
+        return DROPPABLE_TYPES.contains(type);
+    }
+
+    @Override
+    public String toString() {
+        return "OverflowPolicy{" +
+                "maxQueuedBytes=" + maxQueuedBytes +
+                ", action=" + action +
+                '}';
+    }
+
+    public enum Action {
+        /**
+         * The oldest queued chat messages, user and room lists are dropped until the new message fits. If it's not
+         * enough, the client is disconnected
+         */
+        DROP_OLDEST,
+
+        /**
+         * Queued messages of non-critical types, such as user lists, are dropped. If it's not enough, the client is
+         * disconnected
+         */
+        DROP_NON_CRITICAL,
+
+        /**
+         * The client is disconnected
+         */
+        DISCONNECT
+    }
+}
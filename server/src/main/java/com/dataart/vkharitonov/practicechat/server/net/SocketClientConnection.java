@@ -0,0 +1,378 @@
+package com.dataart.vkharitonov.practicechat.server.net;
+
+import com.dataart.vkharitonov.practicechat.common.json.Framing;
+import com.dataart.vkharitonov.practicechat.common.json.Message;
+import com.dataart.vkharitonov.practicechat.common.util.FrameEncoder;
+import com.dataart.vkharitonov.practicechat.common.util.MessageProducer;
+import org.apache.commons.net.io.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link ClientConnection} over a blocking socket. Incoming messages are read by a dedicated {@link MessageProducer}
+ * thread. Outgoing messages are buffered in memory, and {@link #flush()} hands the buffer to a sender task, which
+ * writes it to the socket on a thread of the sender executor. The flushing thread never blocks on the socket: while
+ * the client isn't reading, the messages stay in the buffer and count as {@link #getUnsentBytes() unsent}. On {@link
+ * #close()}, the messages flushed so far are still sent, unless the client doesn't take them within {@link
+ * #CLOSE_TIMEOUT_MILLIS}.
+ * <p>
+ * If the connection is created with a handshake consumer, the reading starts with {@link #beginHandshake()}. The
+ * first message is delivered to the handshake consumer, after which the reading thread waits until {@link
+ * #start(MessageProducer.Consumer)} is called or the connection is closed.
+ */
+public final class SocketClientConnection implements ClientConnection {
+
+    private final static int INITIAL_BUFFER_SIZE = 4096;
+    private final static int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+    private final static long CLOSE_TIMEOUT_MILLIS = 1000;
+
+    private final Socket socket;
+    private final ThreadFactory readerThreadFactory;
+    private final Executor senderExecutor;
+    private final ScheduledExecutorService timer;
+    private final MessageProducer.Consumer handshakeConsumer;
+    private final CountDownLatch consumerSet = new CountDownLatch(1);
+    private final OutputStream out;
+    private final MessageProducer messageProducer = new MessageProducer();
+    private final AtomicLong writeSyscalls = new AtomicLong();
+    private final AtomicLong unsentBytes = new AtomicLong();
+
+    /**
+     * Guards the buffers, {@link #isSending} and the changes of {@link #isClosing}
+     */
+    private final Object sendLock = new Object();
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+    private ByteArrayOutputStream spareBuffer = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+    private boolean isSending;
+    private volatile boolean isClosing;
+
+    private volatile boolean isStarted;
+    private volatile boolean isHandshakeReceived;
+    private volatile MessageProducer.Consumer consumer;
+    private volatile IOException sendError;
+    private volatile Framing outputFraming = Framing.NEWLINE;
+
+    /**
+     * @param socket              client's socket
+     * @param readerThreadFactory factory of the thread which reads from the socket
+     * @param senderExecutor      executor of the tasks which write to the socket. It must start them without waiting
+     *                            for the tasks of other connections
+     * @param timer               closes the socket if the client doesn't take the last messages in time
+     *
+     * @throws IOException thrown if couldn't get output stream from a socket
+     */
+    public SocketClientConnection(Socket socket, ThreadFactory readerThreadFactory, Executor senderExecutor,
+                                  ScheduledExecutorService timer) throws IOException {
+        this(socket, readerThreadFactory, senderExecutor, timer, null);
+    }
+
+    /**
+     * @param socket              client's socket
+     * @param readerThreadFactory factory of the thread which reads from the socket
+     * @param senderExecutor      executor of the tasks which write to the socket. It must start them without waiting
+     *                            for the tasks of other connections
+     * @param timer               closes the socket if the client doesn't take the last messages in time
+     * @param handshakeConsumer   consumer of the first message
+     *
+     * @throws IOException thrown if couldn't get output stream from a socket
+     */
+    SocketClientConnection(Socket socket, ThreadFactory readerThreadFactory, Executor senderExecutor,
+                           ScheduledExecutorService timer, MessageProducer.Consumer handshakeConsumer)
+            throws IOException {
+        this.socket = socket;
+        this.readerThreadFactory = readerThreadFactory;
+        this.senderExecutor = senderExecutor;
+        this.timer = timer;
+        this.handshakeConsumer = handshakeConsumer;
+        out = socket.getOutputStream();
+    }
+
+    /**
+     * Starts waiting for the handshake message
+     *
+     * @throws IOException thrown if couldn't read from the connection
+     */
+    synchronized void beginHandshake() throws IOException {
+        messageProducer.start(input(), new HandshakeSwitch(), readerThreadFactory);
+        isStarted = true;
+    }
+
+    /**
+     * @return true, if the first message has already been received
+     */
+    boolean isHandshakeReceived() {
+        return isHandshakeReceived;
+    }
+
+    @Override
+    public synchronized void start(MessageProducer.Consumer consumer) throws IOException {
+        if (consumer == null) {
+            throw new NullPointerException();
+        }
+
+        if (handshakeConsumer != null) {
+            if (isClosing || socket.isClosed()) {
+                throw new IOException("Socket is closed");
+            }
+
+            this.consumer = consumer;
+            consumerSet.countDown();
+        } else {
+            messageProducer.start(input(), consumer, readerThreadFactory);
+            isStarted = true;
+        }
+    }
+
+    @Override
+    public void write(byte[] message) throws IOException {
+        checkSendError();
+
+        synchronized (sendLock) {
+            int size = buffer.size();
+            FrameEncoder.write(buffer, message, outputFraming);
+            unsentBytes.addAndGet(buffer.size() - size);
+        }
+    }
+
+    @Override
+    public void setInputFraming(Framing framing) {
+        messageProducer.setFraming(framing);
+    }
+
+    @Override
+    public void setOutputFraming(Framing framing) {
+        outputFraming = framing;
+    }
+
+    /**
+     * Starts sending the buffered messages unless they are being sent already, in which case the sender task picks
+     * them up as soon as the previous ones are written. Doesn't wait for the messages to be sent
+     *
+     * @throws IOException thrown if a previous send has failed
+     */
+    @Override
+    public void flush() throws IOException {
+        checkSendError();
+
+        synchronized (sendLock) {
+            if (isSending || buffer.size() == 0) {
+                return;
+            }
+
+            isSending = true;
+        }
+
+        try {
+            senderExecutor.execute(this::send);
+        } catch (RejectedExecutionException e) {
+            synchronized (sendLock) {
+                isSending = false;
+            }
+
+            throw new IOException("Connection is closed", e);
+        }
+    }
+
+    /**
+     * Writes the buffers to the socket until there is nothing left to send. Only one send runs at a time. Closes the
+     * socket if the connection is closing or the send fails
+     */
+    private void send() {
+        while (true) {
+            ByteArrayOutputStream sending;
+            synchronized (sendLock) {
+                if (buffer.size() == 0 || sendError != null) {
+                    isSending = false;
+                    if (isClosing || sendError != null) {
+                        closeSocket();
+                    }
+                    return;
+                }
+
+                sending = buffer;
+                buffer = spareBuffer;
+                spareBuffer = null;
+            }
+
+            try {
+                writeSyscalls.incrementAndGet();
+                sending.writeTo(out);
+            } catch (IOException e) {
+                sendError = e;
+            }
+
+            unsentBytes.addAndGet(-sending.size());
+            if (sending.size() > MAX_RETAINED_BUFFER_SIZE) {
+                sending = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+            } else {
+                sending.reset();
+            }
+
+            synchronized (sendLock) {
+                spareBuffer = sending;
+            }
+        }
+    }
+
+    private void checkSendError() throws IOException {
+        IOException e = sendError;
+        if (e != null) {
+            throw new IOException("Couldn't send to the client", e);
+        }
+
+        if (isClosing) {
+            throw new IOException("Connection is closed");
+        }
+    }
+
+    @Override
+    public long getWriteSyscalls() {
+        return writeSyscalls.get();
+    }
+
+    @Override
+    public long getUnsentBytes() {
+        return unsentBytes.get();
+    }
+
+    /**
+     * Stops reading right away. The socket is closed once the messages flushed so far are sent, or after {@link
+     * #CLOSE_TIMEOUT_MILLIS} if the client doesn't take them
+     */
+    @Override
+    public void close() {
+        stopReading();
+
+        boolean isDrained;
+        boolean isSendNeeded = false;
+        synchronized (sendLock) {
+            isClosing = true;
+            isDrained = !isSending && (buffer.size() == 0 || sendError != null);
+            if (!isDrained && !isSending) {
+                isSending = true;
+                isSendNeeded = true;
+            }
+        }
+
+        if (isDrained) {
+            closeSocket();
+            return;
+        }
+
+        try {
+            if (isSendNeeded) {
+                senderExecutor.execute(this::send);
+            }
+
+            timer.schedule(this::closeSocket, CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The server is stopping
+            closeSocket();
+        }
+    }
+
+    private synchronized void stopReading() {
+        if (isStarted) {
+            messageProducer.stop();
+        }
+
+        // Unblocks the reading thread
+        shutdownInput();
+    }
+
+    /**
+     * @return input stream of the socket, which the reading thread closes when it's done. Only the input is shut down
+     * then, so that the messages flushed before {@link #close()} are still sent
+     */
+    private InputStream input() throws IOException {
+        return new FilterInputStream(socket.getInputStream()) {
+            @Override
+            public void close() {
+                shutdownInput();
+            }
+        };
+    }
+
+    private void shutdownInput() {
+        if (!socket.isClosed() && !socket.isInputShutdown()) {
+            try {
+                socket.shutdownInput();
+            } catch (IOException e) {
+                closeSocket();
+            }
+        }
+    }
+
+    private void closeSocket() {
+        if (!socket.isClosed()) {
+            Util.closeQuietly(socket);
+        }
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return String.valueOf(socket.getInetAddress());
+    }
+
+    /**
+     * Delivers the first message to the handshake consumer and the rest to the consumer passed to {@link
+     * #start(MessageProducer.Consumer)}
+     */
+    private class HandshakeSwitch implements MessageProducer.Consumer {
+
+        @Override
+        public void onNext(Message message) {
+            if (!isHandshakeReceived) {
+                isHandshakeReceived = true;
+                handshakeConsumer.onNext(message);
+            } else if (awaitConsumer()) {
+                consumer.onNext(message);
+            }
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            if (!isHandshakeReceived) {
+                handshakeConsumer.onError(e);
+            } else if (awaitConsumer()) {
+                consumer.onError(e);
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            if (!isHandshakeReceived) {
+                handshakeConsumer.onCompleted();
+            } else if (awaitConsumer()) {
+                consumer.onCompleted();
+            }
+        }
+
+        /**
+         * Blocks the reading thread until the connection is started
+         *
+         * @return false, if the connection was closed before it was started
+         */
+        private boolean awaitConsumer() {
+            try {
+                consumerSet.await();
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+}
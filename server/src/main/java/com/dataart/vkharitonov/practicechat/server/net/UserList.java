@@ -5,8 +5,12 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
@@ -14,7 +18,7 @@ import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 /**
- * Maintains a list of connected users
+ * Maintains a list of connected users and the online members of every room
  */
 public class UserList {
 
@@ -23,7 +27,16 @@ public class UserList {
     private final Map<String, ClientInteractor> clients = new ConcurrentHashMap<>();
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
 
-    public CompletableFuture<ClientInteractor> addInteractor(String username, ClientInteractor interactor) {
+    // Rooms of every online user. Used only by the executor
+    private final Map<String, Set<String>> userRooms = new HashMap<>();
+    // Online members of every room that has any. Changed only by the executor
+    private final Map<String, Set<String>> onlineMembers = new ConcurrentHashMap<>();
+
+    /**
+     * @param rooms rooms the user is a member of
+     */
+    public CompletableFuture<ClientInteractor> addInteractor(String username, ClientInteractor interactor,
+                                                             Collection<String> rooms) {
         return CompletableFuture.supplyAsync(() -> {
             ClientInteractor prev = clients.put(username, interactor);
 
@@ -31,12 +44,93 @@ public class UserList {
                 log.info("User {} already connected, reconnecting", username);
             }
 
+            removeFromRooms(username);
+            userRooms.put(username, new HashSet<>(rooms));
+            rooms.forEach(room -> addOnlineMember(room, username));
+
             return prev;
         }, executor);
     }
 
     public CompletableFuture<ClientInteractor> removeInteractor(String username) {
-        return CompletableFuture.supplyAsync(() -> clients.remove(username), executor);
+        return CompletableFuture.supplyAsync(() -> {
+            removeFromRooms(username);
+            return clients.remove(username);
+        }, executor);
+    }
+
+    /**
+     * Removes the {@code interactor}, unless the user has already reconnected with another one
+     */
+    public CompletableFuture<Void> removeInteractor(String username, ClientInteractor interactor) {
+        return CompletableFuture.runAsync(() -> {
+            if (clients.remove(username, interactor)) {
+                removeFromRooms(username);
+            }
+        }, executor);
+    }
+
+    /**
+     * Records that {@code username} has joined the room. Has no effect if the user is offline
+     */
+    public CompletableFuture<Void> joinedRoom(String room, String username) {
+        return CompletableFuture.runAsync(() -> {
+            Set<String> rooms = userRooms.get(username);
+            if (rooms != null && rooms.add(room)) {
+                addOnlineMember(room, username);
+            }
+        }, executor);
+    }
+
+    /**
+     * Records that {@code username} has left the room. Has no effect if the user is offline
+     */
+    public CompletableFuture<Void> leftRoom(String room, String username) {
+        return CompletableFuture.runAsync(() -> {
+            Set<String> rooms = userRooms.get(username);
+            if (rooms != null && rooms.remove(room)) {
+                removeOnlineMember(room, username);
+            }
+        }, executor);
+    }
+
+    public CompletableFuture<Void> roomDropped(String room) {
+        return CompletableFuture.runAsync(() -> {
+            Set<String> members = onlineMembers.remove(room);
+            if (members != null) {
+                members.forEach(username -> userRooms.get(username).remove(room));
+            }
+        }, executor);
+    }
+
+    /**
+     * @return online members of the room. The collection may change while it is iterated
+     */
+    public Collection<String> getOnlineMembers(String room) {
+        Set<String> members = onlineMembers.get(room);
+        return members != null ? Collections.unmodifiableSet(members) : Collections.emptySet();
+    }
+
+    private void addOnlineMember(String room, String username) {
+        onlineMembers.computeIfAbsent(room, r -> Collections.newSetFromMap(new ConcurrentHashMap<>()))
+                     .add(username);
+    }
+
+    private void removeOnlineMember(String room, String username) {
+        onlineMembers.computeIfPresent(room, (r, members) -> {
+            members.remove(username);
+            return members.isEmpty() ? null : members;
+        });
+    }
+
+    /**
+     * Removes the user from the online members of all their rooms
+     */
+    private void removeFromRooms(String username) {
+        Set<String> rooms = userRooms.remove(username);
+        if (rooms != null) {
+            rooms.forEach(room -> removeOnlineMember(room, username));
+        }
     }
 
     public ClientInteractor getInteractor(String username) {
@@ -56,7 +150,11 @@ public class UserList {
     }
 
     public CompletableFuture<Void> removeAll() {
-        return CompletableFuture.runAsync(clients::clear, executor);
+        return CompletableFuture.runAsync(() -> {
+            clients.clear();
+            userRooms.clear();
+            onlineMembers.clear();
+        }, executor);
     }
 
     public CompletableFuture<Collection<ClientInteractor>> removeAllAndShutdown() {
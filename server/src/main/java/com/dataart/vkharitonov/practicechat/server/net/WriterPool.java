@@ -0,0 +1,171 @@
+package com.dataart.vkharitonov.practicechat.server.net;
+
+import com.dataart.vkharitonov.practicechat.server.metrics.MetricGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of threads which write to the clients, shared by all {@link ClientInteractor}s. The pool is split into stripes,
+ * each one is a single thread with its own queue. Every connection is bound to one stripe, so the writes to the same
+ * connection are executed in order. Delayed flushes are scheduled by a single timer thread.
+ */
+public final class WriterPool {
+
+    private final static Logger log = LoggerFactory.getLogger(WriterPool.class.getName());
+    private final static int QUEUE_DEPTH_WARNING = 10000;
+
+    private final Stripe[] stripes;
+    private final ScheduledExecutorService timer;
+    private final MetricGroup metrics = new MetricGroup("WriterPool");
+    private final LongAdder messagesWritten = metrics.counter("messagesWritten");
+    private final LongAdder flushes = metrics.counter("flushes");
+    private final LongAdder queueFullEvents = metrics.counter("queueFullEvents");
+    private final LongAdder droppedMessages = metrics.counter("droppedMessages");
+    private final LongAdder evictions = metrics.counter("evictions");
+
+    /**
+     * @param threads       number of stripes
+     * @param threadFactory factory of the writer threads
+     */
+    public WriterPool(int threads, ThreadFactory threadFactory) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Number of writer threads must be positive");
+        }
+
+        timer = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        stripes = new Stripe[threads];
+        for (int i = 0; i < threads; i++) {
+            Stripe stripe = new Stripe(i, threadFactory);
+            stripes[i] = stripe;
+
+            metrics.gauge("stripe-" + i + ".queueDepth", stripe::getQueueDepth);
+            metrics.gauge("stripe-" + i + ".connections", stripe.connections::get);
+            metrics.gauge("stripe-" + i + ".completedTasks", stripe.executor::getCompletedTaskCount);
+        }
+
+        metrics.gauge("maxQueueDepth", this::getMaxQueueDepth);
+        metrics.register();
+    }
+
+    /**
+     * Binds a new connection to the stripe with the fewest connections. The stripe must be {@link Stripe#release()
+     * released} when the connection is closed.
+     */
+    public synchronized Stripe assign() {
+        Stripe best = stripes[0];
+        for (Stripe stripe : stripes) {
+            if (stripe.connections.get() < best.connections.get()) {
+                best = stripe;
+            }
+        }
+
+        best.connections.incrementAndGet();
+        return best;
+    }
+
+    /**
+     * @return the longest queue of all stripes
+     */
+    public int getMaxQueueDepth() {
+        int max = 0;
+        for (Stripe stripe : stripes) {
+            max = Math.max(max, stripe.getQueueDepth());
+        }
+
+        return max;
+    }
+
+    /**
+     * Stops the writer threads after they complete already submitted writes
+     */
+    public void shutdown() {
+        timer.shutdown();
+        for (Stripe stripe : stripes) {
+            stripe.executor.shutdown();
+        }
+
+        metrics.unregister();
+    }
+
+    /**
+     * A single writer thread with its own queue
+     */
+    public final class Stripe implements Executor {
+
+        private final int index;
+        private final ThreadPoolExecutor executor;
+        private final AtomicInteger connections = new AtomicInteger();
+
+        private Stripe(int index, ThreadFactory threadFactory) {
+            this.index = index;
+            executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                                              threadFactory);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            executor.execute(command);
+
+            if (executor.getQueue().size() == QUEUE_DEPTH_WARNING) {
+                log.warn("Writer stripe {} has {} pending writes", index, QUEUE_DEPTH_WARNING);
+            }
+        }
+
+        /**
+         * Executes the {@code command} on this stripe after the {@code delayMillis}
+         */
+        public void schedule(Runnable command, long delayMillis) {
+            timer.schedule(() -> execute(command), delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Records that {@code messages} were sent with a single flush
+         */
+        public void recordFlush(int messages) {
+            flushes.increment();
+            messagesWritten.add(messages);
+        }
+
+        /**
+         * Records that a connection's outbound queue has reached its limit
+         */
+        public void recordQueueFull() {
+            queueFullEvents.increment();
+        }
+
+        /**
+         * Records that a message was dropped because of the overflow of a connection's outbound queue
+         */
+        public void recordDroppedMessage() {
+            droppedMessages.increment();
+        }
+
+        /**
+         * Records that a slow client was disconnected because of the overflow of its outbound queue
+         */
+        public void recordEviction() {
+            evictions.increment();
+        }
+
+        /**
+         * Unbinds a closed connection from this stripe
+         */
+        public void release() {
+            connections.decrementAndGet();
+        }
+
+        public int getQueueDepth() {
+            return executor.getQueue().size();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.dataart.vkharitonov.practicechat.server.utils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Determines which threads run blocking work: connection reads and writes and DB queries
+ */
+public enum ThreadModel {
+
+    /**
+     * Fixed pools of platform threads
+     */
+    PLATFORM,
+
+    /**
+     * A new virtual thread per task. Requires Java 21+
+     */
+    VIRTUAL;
+
+    /**
+     * @return true, if the current JVM can run this thread model
+     */
+    public boolean isSupported() {
+        return this == PLATFORM || VirtualThreads.isAvailable();
+    }
+
+    /**
+     * @param name prefix of the thread names
+     *
+     * @return factory for the threads of this model
+     */
+    public ThreadFactory threadFactory(String name) {
+        if (this == VIRTUAL) {
+            return VirtualThreads.factory(name);
+        }
+
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> new Thread(runnable, name + "-" + counter.getAndIncrement());
+    }
+
+    /**
+     * Creates an executor for blocking tasks
+     *
+     * @param name            prefix of the thread names
+     * @param platformThreads number of threads for {@link #PLATFORM} model. Virtual executor is unbounded, so the
+     *                        callers must limit access to scarce resources themselves
+     */
+    public ExecutorService newExecutor(String name, int platformThreads) {
+        if (this == VIRTUAL) {
+            return VirtualThreads.newThreadPerTaskExecutor(threadFactory(name));
+        }
+
+        return Executors.newFixedThreadPool(platformThreads, threadFactory(name));
+    }
+
+    /**
+     * Creates an executor which starts every task right away, for blocking tasks which mustn't wait for each other.
+     * {@link #PLATFORM} threads are reused once their tasks complete
+     *
+     * @param name prefix of the thread names
+     */
+    public ExecutorService newUnboundedExecutor(String name) {
+        if (this == VIRTUAL) {
+            return VirtualThreads.newThreadPerTaskExecutor(threadFactory(name));
+        }
+
+        return Executors.newCachedThreadPool(threadFactory(name));
+    }
+
+    /**
+     * Virtual threads API accessed through reflection, so that the server still runs on Java 8
+     */
+    private static final class VirtualThreads {
+
+        private static final boolean AVAILABLE = factory("probe") != null;
+
+        static boolean isAvailable() {
+            return AVAILABLE;
+        }
+
+        static ThreadFactory factory(String name) {
+            try {
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+                return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        static ExecutorService newThreadPerTaskExecutor(ThreadFactory threadFactory) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                                                        .invoke(null, threadFactory);
+            } catch (ReflectiveOperationException e) {
+                throw new UnsupportedOperationException("Virtual threads are not supported", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,8 @@
+CREATE INDEX room_messages_room_time_id
+  ON room_messages(room, sending_time, id);
+
+-- Covered by room_messages_room_time_id
+DROP INDEX fki_room_messages_room_foreign_key;
+
+CREATE INDEX messages_conversation_time_id
+  ON messages(LEAST(sender, destination), GREATEST(sender, destination), sending_time, id);
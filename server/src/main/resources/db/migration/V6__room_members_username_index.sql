@@ -0,0 +1,3 @@
+-- Rooms of a user are read when they connect, the primary key starts with the room
+CREATE INDEX room_members_username
+  ON room_members(username);
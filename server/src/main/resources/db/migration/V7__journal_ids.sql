@@ -0,0 +1,11 @@
+-- Sequence numbers of the journal records the messages were written from, used to skip the records which have
+-- already been written when the journal is replayed
+ALTER TABLE messages ADD COLUMN journal_id bigint;
+
+CREATE UNIQUE INDEX messages_journal_id
+  ON messages(journal_id);
+
+ALTER TABLE room_messages ADD COLUMN journal_id bigint;
+
+CREATE UNIQUE INDEX room_messages_journal_id
+  ON room_messages(journal_id);
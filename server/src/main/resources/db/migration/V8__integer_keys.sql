@@ -0,0 +1,87 @@
+-- Users and rooms are referenced by integer ids instead of names, and sending times are milliseconds since the epoch
+
+ALTER TABLE users ADD COLUMN id serial NOT NULL;
+ALTER TABLE rooms ADD COLUMN id serial NOT NULL;
+
+-- Timestamps were written by to_timestamp() in the session time zone
+CREATE FUNCTION pg_temp.epoch_millis(t timestamp) RETURNS bigint AS $$
+  SELECT round(EXTRACT(EPOCH FROM t AT TIME ZONE current_setting('TimeZone')) * 1000)::bigint;
+$$ LANGUAGE SQL;
+
+-- Dropping the name columns drops their foreign keys and indexes
+
+ALTER TABLE rooms ADD COLUMN admin_id integer;
+UPDATE rooms SET admin_id = users.id FROM users WHERE users.name = rooms.admin;
+ALTER TABLE rooms DROP COLUMN admin;
+ALTER TABLE rooms ALTER COLUMN admin_id SET NOT NULL;
+
+ALTER TABLE room_members ADD COLUMN room_id integer, ADD COLUMN user_id integer;
+UPDATE room_members SET room_id = rooms.id, user_id = users.id
+  FROM rooms, users
+  WHERE rooms.name = room_members.room AND users.name = room_members.username;
+ALTER TABLE room_members DROP COLUMN room, DROP COLUMN username;
+ALTER TABLE room_members ALTER COLUMN room_id SET NOT NULL, ALTER COLUMN user_id SET NOT NULL;
+
+ALTER TABLE messages ADD COLUMN sender_id integer, ADD COLUMN destination_id integer;
+UPDATE messages SET sender_id = senders.id, destination_id = destinations.id
+  FROM users senders, users destinations
+  WHERE senders.name = messages.sender AND destinations.name = messages.destination;
+ALTER TABLE messages DROP COLUMN sender, DROP COLUMN destination;
+ALTER TABLE messages
+  ALTER COLUMN sender_id SET NOT NULL,
+  ALTER COLUMN destination_id SET NOT NULL,
+  ALTER COLUMN sending_time TYPE bigint USING pg_temp.epoch_millis(sending_time);
+
+ALTER TABLE room_messages ADD COLUMN sender_id integer, ADD COLUMN room_id integer;
+UPDATE room_messages SET sender_id = users.id, room_id = rooms.id
+  FROM users, rooms
+  WHERE users.name = room_messages.sender AND rooms.name = room_messages.room;
+ALTER TABLE room_messages DROP COLUMN sender, DROP COLUMN room;
+ALTER TABLE room_messages
+  ALTER COLUMN sender_id SET NOT NULL,
+  ALTER COLUMN room_id SET NOT NULL,
+  ALTER COLUMN sending_time TYPE bigint USING pg_temp.epoch_millis(sending_time);
+
+-- Nothing refers to the names anymore
+
+ALTER TABLE users DROP CONSTRAINT users_primary_key;
+ALTER TABLE users ADD CONSTRAINT users_primary_key PRIMARY KEY (id);
+ALTER TABLE users ADD CONSTRAINT users_name_key UNIQUE (name);
+
+ALTER TABLE rooms DROP CONSTRAINT rooms_primary_key;
+ALTER TABLE rooms ADD CONSTRAINT rooms_primary_key PRIMARY KEY (id);
+ALTER TABLE rooms ADD CONSTRAINT rooms_name_key UNIQUE (name);
+ALTER TABLE rooms
+  ADD CONSTRAINT room_admin_foreign_key FOREIGN KEY (admin_id) REFERENCES users (id) ON DELETE CASCADE;
+
+ALTER TABLE room_members ADD CONSTRAINT room_members_pkey PRIMARY KEY (room_id, user_id);
+ALTER TABLE room_members
+  ADD CONSTRAINT room_members_room_foreign_key FOREIGN KEY (room_id) REFERENCES rooms (id) ON DELETE CASCADE,
+  ADD CONSTRAINT room_members_user_foreign_key FOREIGN KEY (user_id) REFERENCES users (id) ON DELETE CASCADE;
+
+-- Rooms of a user are read when they connect, the primary key starts with the room
+CREATE INDEX room_members_user_id
+  ON room_members(user_id);
+
+ALTER TABLE messages
+  ADD CONSTRAINT sender_foreign_key FOREIGN KEY (sender_id) REFERENCES users (id) ON DELETE CASCADE,
+  ADD CONSTRAINT destination_foreign_key FOREIGN KEY (destination_id) REFERENCES users (id) ON DELETE CASCADE;
+
+CREATE INDEX messages_sender_id
+  ON messages(sender_id);
+
+CREATE INDEX messages_destination_id
+  ON messages(destination_id);
+
+CREATE INDEX messages_conversation_time_id
+  ON messages(LEAST(sender_id, destination_id), GREATEST(sender_id, destination_id), sending_time, id);
+
+ALTER TABLE room_messages
+  ADD CONSTRAINT room_messages_room_foreign_key FOREIGN KEY (room_id) REFERENCES rooms (id) ON DELETE CASCADE,
+  ADD CONSTRAINT room_messages_sender_foreign_key FOREIGN KEY (sender_id) REFERENCES users (id) ON DELETE CASCADE;
+
+CREATE INDEX room_messages_sender_id
+  ON room_messages(sender_id);
+
+CREATE INDEX room_messages_room_time_id
+  ON room_messages(room_id, sending_time, id);
@@ -0,0 +1,5 @@
+-- Pending deliveries of a user are read and marked in the order of ids. Delivered messages aren't indexed, so the
+-- index stays small however long the history is
+CREATE INDEX messages_undelivered
+  ON messages(destination_id, id)
+  WHERE NOT delivered;